@@ -0,0 +1,162 @@
+package com.shockwave.pdfium;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** LRU closing, pins and reopening of {@link HandleCache}. Handles are page index * 100. */
+public class HandleCacheTest extends TestCase {
+
+    private final List<Long> closed = new ArrayList<>();
+    private final HandleCache.Closer closer = new HandleCache.Closer() {
+        @Override
+        public void close(long ptr) {
+            closed.add(ptr);
+        }
+    };
+
+    public void testLeastRecentlyUsedHandleIsClosed() {
+        HandleCache cache = new HandleCache(2);
+        put(cache, 0, 1);
+        assertEquals(Long.valueOf(0), cache.get(0));
+        put(cache, 2);
+
+        assertClosed(100);
+        assertTrue(cache.contains(0));
+        assertTrue(cache.contains(2));
+        assertTrue(cache.isEvicted(1));
+        assertFalse(cache.isEvicted(0));
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    public void testPeekDoesNotChangeOrder() {
+        HandleCache cache = new HandleCache(2);
+        put(cache, 0, 1);
+        assertEquals(Long.valueOf(0), cache.peek(0));
+        assertNull(cache.peek(5));
+        put(cache, 2);
+        assertClosed(0);
+    }
+
+    public void testPinnedHandleIsNotClosed() {
+        HandleCache cache = new HandleCache(2);
+        put(cache, 0);
+        cache.pin(0);
+        cache.pin(0);
+        put(cache, 1, 2);
+        assertClosed(100);
+
+        cache.unpin(0);
+        put(cache, 3);
+        // still pinned once
+        assertClosed(100, 200);
+
+        cache.unpin(0);
+        put(cache, 4);
+        assertClosed(100, 200, 0);
+        assertEquals(2, cache.size());
+    }
+
+    public void testPinnedHandlesMayExceedLimit() {
+        HandleCache cache = new HandleCache(1);
+        for (int i = 0; i < 3; i++) {
+            cache.pin(i);
+            put(cache, i);
+        }
+        assertEquals(3, cache.size());
+        assertClosed();
+
+        for (int i = 0; i < 3; i++) {
+            cache.unpin(i);
+        }
+        cache.trimToSize(cache.getMaxHandles(), closer);
+        assertClosed(0, 100);
+        assertTrue(cache.contains(2));
+    }
+
+    public void testReopenOfEvictedHandleIsCounted() {
+        HandleCache cache = new HandleCache(1);
+        put(cache, 0, 1);
+        assertTrue(cache.isEvicted(0));
+        assertNull(cache.get(0));
+
+        // owner opens the page again
+        cache.put(0, 1000, closer);
+        assertFalse(cache.isEvicted(0));
+        assertEquals(Long.valueOf(1000), cache.get(0));
+        assertEquals(1, cache.getReopenCount());
+        assertEquals(2, cache.getEvictionCount());
+        assertClosed(0, 100);
+
+        // a page which was never evicted is not a reopen
+        put(cache, 5);
+        assertEquals(1, cache.getReopenCount());
+    }
+
+    public void testRemoveForgetsHandleWithoutClosing() {
+        HandleCache cache = new HandleCache(1);
+        put(cache, 0, 1);
+        assertEquals(Long.valueOf(100), cache.remove(1));
+        assertNull(cache.remove(0));
+        assertFalse(cache.isEvicted(0));
+        assertEquals(0, cache.size());
+        assertClosed(0);
+    }
+
+    public void testEvictAllKeepsPinnedHandles() {
+        HandleCache cache = new HandleCache(0);
+        put(cache, 0, 1, 2);
+        cache.pin(1);
+        cache.evictAll(closer);
+
+        assertClosed(0, 200);
+        assertEquals(1, cache.size());
+        assertTrue(cache.contains(1));
+        assertTrue(cache.isEvicted(0));
+        assertTrue(cache.isEvicted(2));
+    }
+
+    public void testCloseAllClosesPinnedHandles() {
+        HandleCache cache = new HandleCache(3);
+        put(cache, 0, 1, 2);
+        cache.pin(1);
+        cache.closeAll(closer);
+
+        assertClosed(0, 100, 200);
+        assertEquals(0, cache.size());
+        assertFalse(cache.isEvicted(0));
+        // pins are forgotten as well
+        put(cache, 1, 2, 3, 4);
+        assertClosed(0, 100, 200, 100);
+    }
+
+    public void testLimitChangesTrimAndZeroMeansNoLimit() {
+        HandleCache cache = new HandleCache(0);
+        put(cache, 0, 1, 2, 3);
+        assertEquals(4, cache.size());
+        assertClosed();
+
+        cache.setMaxHandles(2, closer);
+        assertEquals(2, cache.getMaxHandles());
+        assertClosed(0, 100);
+
+        cache.setMaxHandles(0, closer);
+        put(cache, 4, 5);
+        assertEquals(4, cache.size());
+    }
+
+    private void put(HandleCache cache, int... indexes) {
+        for (int index : indexes) {
+            cache.put(index, index * 100L, closer);
+        }
+    }
+
+    private void assertClosed(long... ptrs) {
+        List<Long> expected = new ArrayList<>();
+        for (long ptr : ptrs) {
+            expected.add(ptr);
+        }
+        assertEquals(expected, closed);
+    }
+}
@@ -0,0 +1,199 @@
+package com.shockwave.pdfium;
+
+import android.graphics.RectF;
+
+import junit.framework.TestCase;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Grid queries of {@link PageSpatialIndex} compared with a linear scan of the same boxes,
+ * and line and link lookups on a small hand made layout.
+ */
+public class PageSpatialIndexTest extends TestCase {
+    private static final float CHAR_WIDTH = 6;
+    private static final float CHAR_HEIGHT = 10;
+    private static final float LINE_TOP = 700;
+    private static final float LINE_SPACING = 20;
+    private static final float LEFT = 50;
+
+    public void testCharAtPointMatchesLinearScan() {
+        Random random = new Random(42);
+        float[] boxes = randomBoxes(random, 500);
+        PageSpatialIndex index = new PageSpatialIndex(layout(boxes), Collections.<PdfDocument.Link>emptyList());
+
+        float[] tolerances = {0, 2, 15, 100};
+        for (int i = 0; i < 2000; i++) {
+            float x = random.nextFloat() * 800 - 100;
+            float y = random.nextFloat() * 1000 - 100;
+            float tolerance = tolerances[i % tolerances.length];
+            assertEquals("(" + x + ", " + y + ") tolerance " + tolerance,
+                    nearest(boxes, x, y, tolerance), index.getCharIndexAt(x, y, tolerance));
+        }
+    }
+
+    public void testCharsInRectMatchLinearScan() {
+        Random random = new Random(7);
+        float[] boxes = randomBoxes(random, 500);
+        PageSpatialIndex index = new PageSpatialIndex(layout(boxes), Collections.<PdfDocument.Link>emptyList());
+
+        for (int i = 0; i < 500; i++) {
+            float left = random.nextFloat() * 800 - 100;
+            float bottom = random.nextFloat() * 1000 - 100;
+            float right = left + random.nextFloat() * 300;
+            float top = bottom + random.nextFloat() * 300;
+            // top and bottom in either order
+            RectF rect = i % 2 == 0 ? new RectF(left, top, right, bottom) : new RectF(left, bottom, right, top);
+            int[] expected = intersecting(boxes, left, top, right, bottom);
+            int[] actual = index.getCharIndexesIn(rect);
+            assertTrue(Arrays.toString(expected) + " != " + Arrays.toString(actual), Arrays.equals(expected, actual));
+        }
+    }
+
+    public void testPageWithoutVisibleCharacters() {
+        // only generated line breaks, which have empty boxes
+        PageTextLayout layout = new PageTextLayout(0, new int[]{'\r', '\n'}, FloatBuffer.wrap(new float[8]),
+                new float[2]);
+        PageSpatialIndex index = new PageSpatialIndex(layout, Collections.<PdfDocument.Link>emptyList());
+
+        assertEquals(-1, index.getCharIndexAt(0, 0, 1000));
+        assertEquals(0, index.getCharIndexesIn(new RectF(-1000, 1000, 1000, -1000)).length);
+        assertEquals(-1, index.getLineAt(0, 0, 1000));
+        assertNull(index.getSelectionRange(0, 0, 10, 10, 1000));
+        assertNull(index.getLinkAt(0, 0));
+        assertTrue(index.getLinksIn(new RectF(-1000, 1000, 1000, -1000)).isEmpty());
+    }
+
+    public void testLinesAndSelection() {
+        PageSpatialIndex index = new PageSpatialIndex(layout("Hello world", "second line", "end"),
+                Collections.<PdfDocument.Link>emptyList());
+        PageTextLayout layout = index.getTextLayout();
+        assertEquals(3, layout.getLineCount());
+
+        float middle = LINE_TOP - LINE_SPACING - CHAR_HEIGHT / 2;
+        assertEquals(1, index.getLineAt(LEFT + 20, middle, 0));
+        // between lines, closer to line 1
+        assertEquals(1, index.getLineAt(LEFT + 20, LINE_TOP - LINE_SPACING + 3, 5));
+        assertEquals(-1, index.getLineAt(LEFT + 20, LINE_TOP - LINE_SPACING + 3, 1));
+
+        RectF bounds = index.getLineBounds(1);
+        assertEquals(LEFT, bounds.left, 0);
+        assertEquals(LEFT + CHAR_WIDTH * "second line".length(), bounds.right, 0);
+        assertEquals(LINE_TOP - LINE_SPACING, bounds.top, 0);
+        assertEquals(LINE_TOP - LINE_SPACING - CHAR_HEIGHT, bounds.bottom, 0);
+
+        // from "w" of "world" back to "s" of "second", both inclusive
+        int world = layout.getLineStart(0) + 6;
+        int second = layout.getLineStart(1);
+        int[] range = index.getSelectionRange(LEFT + CHAR_WIDTH * 6.5f, middle + LINE_SPACING,
+                LEFT + CHAR_WIDTH * 0.5f, middle, 0);
+        assertTrue(Arrays.toString(range), Arrays.equals(new int[]{world, second + 1}, range));
+        assertEquals("world\r\ns", layout.getText(range[0], range[1]));
+        assertNull(index.getSelectionRange(LEFT, middle, 1000, 1000, 5));
+    }
+
+    public void testLinks() {
+        PdfDocument.Link first = new PdfDocument.Link(new RectF(10, 110, 60, 90), 1, null);
+        // bottom above top, as some documents have it
+        PdfDocument.Link second = new PdfDocument.Link(new RectF(100, 300, 200, 400), null, "http://example.com");
+        PageSpatialIndex index = new PageSpatialIndex(layout("text"), Arrays.asList(first, second));
+
+        assertSame(first, index.getLinkAt(30, 100));
+        assertSame(second, index.getLinkAt(150, 350));
+        assertNull(index.getLinkAt(80, 100));
+        assertNull(index.getLinkAt(150, 250));
+        assertEquals(Arrays.asList(first, second), index.getLinksIn(new RectF(0, 500, 300, 0)));
+        assertEquals(Collections.singletonList(second), index.getLinksIn(new RectF(190, 305, 195, 302)));
+    }
+
+    /** Boxes scattered over the page, a tenth of them empty and some spanning many grid cells */
+    private static float[] randomBoxes(Random random, int count) {
+        float[] boxes = new float[count * 4];
+        for (int i = 0; i < count; i++) {
+            float width = i % 10 == 0 ? 0 : i % 25 == 1 ? random.nextFloat() * 200 : 1 + random.nextFloat() * 11;
+            float height = 5 + random.nextFloat() * 10;
+            float left = random.nextFloat() * 600;
+            float bottom = random.nextFloat() * 800;
+            boxes[i * 4] = left;
+            boxes[i * 4 + 1] = bottom + height;
+            boxes[i * 4 + 2] = left + width;
+            boxes[i * 4 + 3] = bottom;
+        }
+        return boxes;
+    }
+
+    private static PageTextLayout layout(float[] boxes) {
+        int count = boxes.length / 4;
+        int[] unicodes = new int[count];
+        Arrays.fill(unicodes, 'x');
+        return new PageTextLayout(0, unicodes, FloatBuffer.wrap(boxes), new float[count]);
+    }
+
+    /** Lines of fixed width characters separated by generated line breaks with empty boxes */
+    private static PageTextLayout layout(String... lines) {
+        List<Integer> unicodes = new ArrayList<>();
+        List<Float> boxes = new ArrayList<>();
+        for (int line = 0; line < lines.length; line++) {
+            if (line > 0) {
+                for (char c : new char[]{'\r', '\n'}) {
+                    unicodes.add((int) c);
+                    boxes.addAll(Arrays.asList(0f, 0f, 0f, 0f));
+                }
+            }
+            float top = LINE_TOP - line * LINE_SPACING;
+            for (int i = 0; i < lines[line].length(); i++) {
+                unicodes.add((int) lines[line].charAt(i));
+                float left = LEFT + i * CHAR_WIDTH;
+                boxes.addAll(Arrays.asList(left, top, left + CHAR_WIDTH, top - CHAR_HEIGHT));
+            }
+        }
+        int[] unicodeArray = new int[unicodes.size()];
+        float[] boxArray = new float[boxes.size()];
+        for (int i = 0; i < unicodeArray.length; i++) {
+            unicodeArray[i] = unicodes.get(i);
+        }
+        for (int i = 0; i < boxArray.length; i++) {
+            boxArray[i] = boxes.get(i);
+        }
+        return new PageTextLayout(0, unicodeArray, FloatBuffer.wrap(boxArray), new float[unicodeArray.length]);
+    }
+
+    private static boolean isEmpty(float[] boxes, int i) {
+        return boxes[i * 4 + 2] <= boxes[i * 4] || boxes[i * 4 + 1] <= boxes[i * 4 + 3];
+    }
+
+    private static int nearest(float[] boxes, float x, float y, float tolerance) {
+        int result = -1;
+        float best = Float.MAX_VALUE;
+        for (int i = 0; i < boxes.length / 4; i++) {
+            if (isEmpty(boxes, i)) {
+                continue;
+            }
+            float dx = Math.max(0, Math.max(boxes[i * 4] - x, x - boxes[i * 4 + 2]));
+            float dy = Math.max(0, Math.max(boxes[i * 4 + 3] - y, y - boxes[i * 4 + 1]));
+            float distance = (float) Math.sqrt(dx * dx + dy * dy);
+            if (distance <= tolerance && distance < best) {
+                best = distance;
+                result = i;
+            }
+        }
+        return result;
+    }
+
+    private static int[] intersecting(float[] boxes, float left, float top, float right, float bottom) {
+        int[] result = new int[boxes.length / 4];
+        int size = 0;
+        for (int i = 0; i < boxes.length / 4; i++) {
+            if (!isEmpty(boxes, i) && boxes[i * 4] <= right && boxes[i * 4 + 2] >= left
+                    && boxes[i * 4 + 3] <= top && boxes[i * 4 + 1] >= bottom) {
+                result[size++] = i;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+}
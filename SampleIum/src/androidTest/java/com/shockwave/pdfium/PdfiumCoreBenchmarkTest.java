@@ -0,0 +1,244 @@
+package com.shockwave.pdfium;
+
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.shockwave.pdfium.render.PageFlattener;
+import com.shockwave.pdfium.util.Size;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Locale;
+
+/**
+ * Timings of {@link PdfiumCore} calls on generated documents. The numbers are logged, not asserted;
+ * run the same test on an older build to compare before and after a change.
+ */
+public class PdfiumCoreBenchmarkTest extends AndroidTestCase {
+    private static final String TAG = PdfiumCoreBenchmarkTest.class.getSimpleName();
+    /* all of them stay open, more than links are cached for, so every getPageLinks call is native */
+    private static final int CALL_PAGES = PdfiumCore.DEFAULT_MAX_OPEN_PAGES;
+    private static final int CALLS = 20000;
+    private static final int TEXT_PAGES = 1000;
+    private static final int TEXT_LINES = 30;
+    private static final int SPLIT_PAGES = 5000;
+    private static final int SPLIT_CHAPTER_PAGES = 250;
+    private static final int ANNOTATED_PAGES = 4;
+    private static final int ANNOTATIONS_PER_PAGE = 2000;
+    private static final int RENDER_ROUNDS = 5;
+
+    private PdfiumCore core;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        core = new PdfiumCore(getContext());
+    }
+
+    /** Cost of a single call of methods which create Java objects in native code */
+    public void testPerCallCost() throws Exception {
+        PdfDocument doc = core.newDocument(TestPdfs.create(TestPdfs.numberedLines(CALL_PAGES, 4)));
+        try {
+            core.openPage(doc, 0, CALL_PAGES - 1);
+            // warm up code paths, twice the number of cached links so none is left
+            for (int i = 0; i < CALL_PAGES * 2; i++) {
+                callAll(doc, i % CALL_PAGES);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++) {
+                Size size = core.getPageSize(doc, i % CALL_PAGES);
+                assertTrue(size.getWidth() > 0);
+            }
+            logPerCall("getPageSize", System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++) {
+                assertTrue(core.getPageLinks(doc, i % CALL_PAGES).isEmpty());
+            }
+            logPerCall("getPageLinks", System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++) {
+                Point point = core.mapPageCoordsToDevice(doc, i % CALL_PAGES, 0, 0, 600, 800, 0, i % 300, 100);
+                assertTrue(point.x >= 0);
+            }
+            logPerCall("mapPageCoordsToDevice", System.nanoTime() - start);
+        } finally {
+            core.closeDocument(doc);
+        }
+    }
+
+    /** Characters per second extracted from every page of a long text document */
+    public void testTextExtractionThroughput() throws Exception {
+        PdfDocument doc = core.newDocument(TestPdfs.create(TestPdfs.numberedLines(TEXT_PAGES, TEXT_LINES)));
+        try {
+            // warm up, text of these pages is extracted again below
+            for (int i = 0; i < 10; i++) {
+                core.extractPageText(doc, i);
+            }
+            core.trimMemory(doc);
+
+            long chars = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < TEXT_PAGES; i++) {
+                chars += core.extractPageText(doc, i).getText().length();
+            }
+            long nanos = System.nanoTime() - start;
+            assertTrue(chars > TEXT_PAGES * TEXT_LINES * 20);
+            Log.i(TAG, String.format(Locale.ROOT, "%d chars of %d pages in %.1f ms: %.0f chars/s",
+                    chars, TEXT_PAGES, nanos / 1e6, chars * 1e9 / nanos));
+        } finally {
+            core.closeDocument(doc);
+        }
+    }
+
+    /**
+     * Split a document into chapter files with {@link PdfiumCore#extractPages(PdfDocument, int[])} and
+     * {@link PdfiumCore#saveAs(PdfDocument, java.nio.channels.WritableByteChannel)}. The document has about
+     * 8 MB instead of the hundreds of MB of real ones, to fit into time and storage of a test device; memory
+     * is bounded by the largest chapter, so the peak does not grow with the size of the whole document.
+     */
+    public void testSplitThroughputAndPeakMemory() throws Exception {
+        File directory = new File(getContext().getCacheDir(), "split-benchmark");
+        directory.mkdirs();
+        File source = TestPdfs.write(directory, "source.pdf",
+                TestPdfs.create(TestPdfs.numberedLines(SPLIT_PAGES, 30)));
+        PdfDocument doc = core.newDocument(source);
+        MemorySampler sampler = new MemorySampler();
+        try {
+            long bytes = 0;
+            int chapters = 0;
+            sampler.start();
+            long start = System.nanoTime();
+            for (int first = 0; first < SPLIT_PAGES; first += SPLIT_CHAPTER_PAGES, chapters++) {
+                int[] pages = new int[Math.min(SPLIT_CHAPTER_PAGES, SPLIT_PAGES - first)];
+                for (int i = 0; i < pages.length; i++) {
+                    pages[i] = first + i;
+                }
+                PdfDocument chapter = core.extractPages(doc, pages);
+                try {
+                    FileOutputStream out = new FileOutputStream(new File(directory, "chapter-" + chapters + ".pdf"));
+                    try {
+                        bytes += core.saveAs(chapter, out.getChannel());
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    core.closeDocument(chapter);
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            sampler.stop();
+            Log.i(TAG, String.format(Locale.ROOT, "split of %.1f MB into %d chapters: %.1f MB in %.1f ms, "
+                            + "%.1f MB/s, peak native heap +%.1f MB, peak Java heap +%.1f MB",
+                    source.length() / 1e6, chapters, bytes / 1e6, nanos / 1e6, bytes * 1e3 / nanos,
+                    sampler.peakNative / 1e6, sampler.peakJava / 1e6));
+        } finally {
+            sampler.stop();
+            core.closeDocument(doc);
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    /** Render time of pages covered with annotations before and after {@link PageFlattener} flattened them */
+    public void testRenderTimeBeforeAndAfterFlattening() throws Exception {
+        PdfDocument doc = core.newDocument(TestPdfs.create(TestPdfs.numberedLines(ANNOTATED_PAGES, 16),
+                ANNOTATIONS_PER_PAGE));
+        Bitmap bitmap = Bitmap.createBitmap(TestPdfs.PAGE_WIDTH * 2, TestPdfs.PAGE_HEIGHT * 2,
+                Bitmap.Config.RGB_565);
+        PageFlattener flattener = new PageFlattener(core, doc);
+        try {
+            for (int page = 0; page < ANNOTATED_PAGES; page++) {
+                core.openPage(doc, page);
+                // first render also parses the page and its annotations
+                renderWithAnnotations(doc, page, bitmap);
+                long before = 0;
+                for (int i = 0; i < RENDER_ROUNDS; i++) {
+                    before += renderWithAnnotations(doc, page, bitmap);
+                }
+
+                PageFlattener.Result result = flattener.flatten(page);
+                assertEquals(PdfiumCore.FLATTEN_SUCCESS, result.getStatus());
+                renderWithAnnotations(doc, page, bitmap);
+                long after = 0;
+                for (int i = 0; i < RENDER_ROUNDS; i++) {
+                    after += renderWithAnnotations(doc, page, bitmap);
+                }
+                Log.i(TAG, String.format(Locale.ROOT, "page %d, %d annotations: %.2f ms before, %.2f ms after "
+                                + "flattening in %d ms", page, ANNOTATIONS_PER_PAGE, before / 1e6 / RENDER_ROUNDS,
+                        after / 1e6 / RENDER_ROUNDS, result.getFlattenMillis()));
+            }
+        } finally {
+            bitmap.recycle();
+            core.closeDocument(doc);
+        }
+    }
+
+    private long renderWithAnnotations(PdfDocument doc, int pageIndex, Bitmap bitmap) {
+        long start = System.nanoTime();
+        assertTrue(core.renderPageBitmap(doc, bitmap, pageIndex, 0, 0, bitmap.getWidth(), bitmap.getHeight(), true));
+        return System.nanoTime() - start;
+    }
+
+    private void callAll(PdfDocument doc, int pageIndex) {
+        core.getPageSize(doc, pageIndex);
+        core.getPageLinks(doc, pageIndex);
+        core.mapPageCoordsToDevice(doc, pageIndex, 0, 0, 600, 800, 0, 0, 0);
+    }
+
+    private static void logPerCall(String method, long nanos) {
+        Log.i(TAG, String.format(Locale.ROOT, "%s: %.2f us per call", method, nanos / 1e3 / CALLS));
+    }
+
+    /** Polls heap sizes on its own thread and keeps the largest growth over sizes at the start */
+    private static class MemorySampler implements Runnable {
+        private Thread thread;
+        private volatile boolean running;
+        private long baseNative;
+        private long baseJava;
+        volatile long peakNative;
+        volatile long peakJava;
+
+        void start() {
+            System.gc();
+            baseNative = Debug.getNativeHeapAllocatedSize();
+            baseJava = usedJavaHeap();
+            running = true;
+            thread = new Thread(this, "memory-sampler");
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            if (thread != null) {
+                thread.join();
+                thread = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                peakNative = Math.max(peakNative, Debug.getNativeHeapAllocatedSize() - baseNative);
+                peakJava = Math.max(peakJava, usedJavaHeap() - baseJava);
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private static long usedJavaHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+}
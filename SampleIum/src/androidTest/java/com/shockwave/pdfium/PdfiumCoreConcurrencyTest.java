@@ -0,0 +1,181 @@
+package com.shockwave.pdfium;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stress test of the process-wide native lock. Threads open, render and extract text of several
+ * documents at the same time, both of documents shared by all threads and of their own documents.
+ * PDFium keeps global state, so without the lock this crashes or returns corrupted text.
+ * <p>
+ * Render throughput is measured with 1, 2, 4 and as many threads as there are cores. Native calls
+ * are serialized by the lock, so pages per second stay about flat as threads are added: only the work
+ * around the calls (bitmap allocation and copying) runs in parallel. The numbers are logged, not asserted.
+ */
+public class PdfiumCoreConcurrencyTest extends AndroidTestCase {
+    private static final String TAG = PdfiumCoreConcurrencyTest.class.getSimpleName();
+    private static final int DOCUMENTS = 4;
+    private static final int PAGES = 5;
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 40;
+    private static final int THROUGHPUT_PAGES = 240;
+
+    private PdfiumCore core;
+    private byte[][] files;
+    private String[][] expectedText;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        core = new PdfiumCore(getContext());
+        files = new byte[DOCUMENTS][];
+        expectedText = new String[DOCUMENTS][PAGES];
+        for (int d = 0; d < DOCUMENTS; d++) {
+            files[d] = TestPdfs.create(TestPdfs.numberedLines(PAGES, 8 + d * 4));
+            PdfDocument doc = core.newDocument(files[d]);
+            try {
+                for (int p = 0; p < PAGES; p++) {
+                    expectedText[d][p] = core.extractPageText(doc, p).getText();
+                    assertTrue(expectedText[d][p].contains("Page " + p + " line 0"));
+                }
+            } finally {
+                core.closeDocument(doc);
+            }
+        }
+    }
+
+    public void testConcurrentOpenRenderAndText() throws Throwable {
+        final PdfDocument[] shared = new PdfDocument[DOCUMENTS];
+        for (int d = 0; d < DOCUMENTS; d++) {
+            shared[d] = core.newDocument(files[d]);
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Bitmap bitmap = Bitmap.createBitmap(TestPdfs.PAGE_WIDTH / 2, TestPdfs.PAGE_HEIGHT / 2,
+                            Bitmap.Config.RGB_565);
+                    try {
+                        start.await();
+                        for (int i = 0; i < ITERATIONS && failure.get() == null; i++) {
+                            int d = (thread + i) % DOCUMENTS;
+                            int p = (thread * 3 + i) % PAGES;
+                            if (i % 4 == 0) {
+                                PdfDocument own = core.newDocument(files[d]);
+                                try {
+                                    exercise(own, d, p, bitmap);
+                                } finally {
+                                    core.closeDocument(own);
+                                }
+                            } else {
+                                exercise(shared[d], d, p, bitmap);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        bitmap.recycle();
+                    }
+                }
+            }, "pdfium-stress-" + t);
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (PdfDocument doc : shared) {
+            core.closeDocument(doc);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    public void testRenderThroughputByThreadCount() throws Throwable {
+        TreeSet<Integer> threadCounts = new TreeSet<>();
+        threadCounts.add(1);
+        threadCounts.add(2);
+        threadCounts.add(4);
+        threadCounts.add(Runtime.getRuntime().availableProcessors());
+        // warm up fonts and code paths
+        renderPages(1, PAGES);
+        for (int threadCount : threadCounts) {
+            long nanos = renderPages(threadCount, THROUGHPUT_PAGES);
+            Log.i(TAG, String.format(Locale.ROOT, "%d threads: %.1f pages/s", threadCount,
+                    THROUGHPUT_PAGES * 1e9 / nanos));
+        }
+    }
+
+    /** Render pages split between threads, every thread with its own document, and return elapsed time */
+    private long renderPages(int threadCount, final int pageCount) throws Throwable {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch ready = new CountDownLatch(threadCount);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            final int pages = pageCount / threadCount + (t < pageCount % threadCount ? 1 : 0);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Bitmap bitmap = Bitmap.createBitmap(TestPdfs.PAGE_WIDTH, TestPdfs.PAGE_HEIGHT,
+                            Bitmap.Config.RGB_565);
+                    try {
+                        PdfDocument doc;
+                        try {
+                            doc = core.newDocument(files[thread % DOCUMENTS]);
+                        } finally {
+                            ready.countDown();
+                        }
+                        try {
+                            start.await();
+                            for (int i = 0; i < pages; i++) {
+                                int p = i % PAGES;
+                                core.openPage(doc, p);
+                                core.renderPageBitmap(doc, bitmap, p, 0, 0, bitmap.getWidth(), bitmap.getHeight());
+                            }
+                        } finally {
+                            core.closeDocument(doc);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        bitmap.recycle();
+                    }
+                }
+            }, "pdfium-throughput-" + t);
+            threads[t].start();
+        }
+        // documents are opened before the clock starts
+        ready.await();
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return elapsed;
+    }
+
+    private void exercise(PdfDocument doc, int d, int p, Bitmap bitmap) {
+        assertEquals(PAGES, core.getPageCount(doc));
+        core.openPage(doc, p);
+        assertTrue(core.renderPageBitmap(doc, bitmap, p, 0, 0, bitmap.getWidth(), bitmap.getHeight()));
+        assertEquals(expectedText[d][p], core.extractPageText(doc, p).getText());
+        assertEquals(1, core.searchPage(doc, p, "Page " + p + " line 1", false, true, 0).size());
+    }
+}
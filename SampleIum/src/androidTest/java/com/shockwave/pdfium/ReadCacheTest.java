@@ -0,0 +1,169 @@
+package com.shockwave.pdfium;
+
+import android.graphics.Bitmap;
+import android.os.ParcelFileDescriptor;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Block cache of documents opened from {@link ParcelFileDescriptor}, see
+ * {@link PdfiumCore#setReadCacheConfig(int, int, int)}. Whatever the configuration, text read
+ * through the cache must match text of the same document loaded to memory.
+ * Blocks of one byte are rounded up to the memory page size, the smallest block possible.
+ * <p>
+ * Open and first page render times of a larger document are measured with the cache disabled,
+ * which reads the file directly like the loader without cache did, and with a few configurations.
+ * The numbers are logged, not asserted. The file is in the OS page cache after the warm up, so they
+ * show the cost of syscalls rather than of storage, which is what the cache saves on slow storage.
+ */
+public class ReadCacheTest extends AndroidTestCase {
+    private static final String TAG = ReadCacheTest.class.getSimpleName();
+    private static final int PAGES = 120;
+    private static final int BENCHMARK_PAGES = 1000;
+    private static final int BENCHMARK_ROUNDS = 10;
+
+    private PdfiumCore core;
+    private byte[] data;
+    private File file;
+    private String[] expectedText;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        core = new PdfiumCore(getContext());
+        data = TestPdfs.create(TestPdfs.numberedLines(PAGES, 16));
+        file = TestPdfs.write(getContext().getCacheDir(), "read-cache-test.pdf", data);
+        expectedText = new String[PAGES];
+        PdfDocument doc = core.newDocument(data);
+        try {
+            for (int i = 0; i < PAGES; i++) {
+                expectedText[i] = core.extractPageText(doc, i).getText();
+            }
+            assertNull(core.getReadStats(doc));
+        } finally {
+            core.closeDocument(doc);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    public void testDisabledCacheReadsFileDirectly() throws IOException {
+        PdfDocument.ReadStats stats = readAllPages(sequentialOrder(), 4096, 0, 0);
+        assertEquals(0, stats.getBlockHits());
+        assertEquals(0, stats.getBlockMisses());
+        assertTrue(stats.getSyscalls() > 0);
+    }
+
+    public void testReadsAcrossBlockBoundaries() throws IOException {
+        PdfDocument.ReadStats stats = readAllPages(sequentialOrder(), 1, 256, 0);
+        // every block a request touches is counted as a hit, so some requests spanned two blocks
+        assertTrue(stats.toString(), stats.getBlockHits() > stats.getRequests());
+        // the whole file fits into the cache, so every block is read only once
+        assertTrue(stats.toString(), stats.getBytesRead() <= data.length);
+    }
+
+    public void testEvictedBlocksAreReadAgain() throws IOException {
+        // pages from both ends of the file in turn, so a cache of one block never hits the next page
+        PdfDocument.ReadStats large = readAllPages(alternatingOrder(), 1, 256, 0);
+        PdfDocument.ReadStats small = readAllPages(alternatingOrder(), 1, 1, 0);
+        assertEquals(large.getRequests(), small.getRequests());
+        assertTrue(small + " " + large, small.getBlockMisses() > large.getBlockMisses());
+    }
+
+    public void testSequentialReadAheadSavesSyscalls() throws IOException {
+        PdfDocument.ReadStats plain = readAllPages(sequentialOrder(), 1, 256, 0);
+        PdfDocument.ReadStats readAhead = readAllPages(sequentialOrder(), 1, 256, 8);
+        assertEquals(plain.getRequests(), readAhead.getRequests());
+        assertTrue(readAhead + " " + plain, readAhead.getSyscalls() < plain.getSyscalls());
+    }
+
+    public void testOpenAndFirstPageTiming() throws IOException {
+        File large = TestPdfs.write(getContext().getCacheDir(), "read-cache-benchmark.pdf",
+                TestPdfs.create(TestPdfs.numberedLines(BENCHMARK_PAGES, 16)));
+        Bitmap bitmap = Bitmap.createBitmap(TestPdfs.PAGE_WIDTH, TestPdfs.PAGE_HEIGHT, Bitmap.Config.RGB_565);
+        // block size, max blocks, read ahead blocks; the first one disables the cache
+        int[][] configs = {{4096, 0, 0}, {4096, 256, 0}, {16384, 256, 0}, {16384, 256, 8}, {65536, 64, 4}};
+        try {
+            // warm up fonts, code paths and the OS page cache
+            openAndRenderFirstPage(large, bitmap, null);
+            for (int[] config : configs) {
+                core.setReadCacheConfig(config[0], config[1], config[2]);
+                long[] nanos = new long[2];
+                PdfDocument.ReadStats stats = null;
+                for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+                    stats = openAndRenderFirstPage(large, bitmap, nanos);
+                }
+                Log.i(TAG, String.format(Locale.ROOT, "%d x %d B blocks, read ahead %d: open %.2f ms, "
+                                + "first page %.2f ms, %s", config[1], config[0], config[2],
+                        nanos[0] / 1e6 / BENCHMARK_ROUNDS, nanos[1] / 1e6 / BENCHMARK_ROUNDS, stats));
+            }
+        } finally {
+            bitmap.recycle();
+            large.delete();
+        }
+    }
+
+    /**
+     * Open the file with current cache configuration and render its first page
+     *
+     * @param nanos if not null, open and render times are added to its first and second element
+     */
+    private PdfDocument.ReadStats openAndRenderFirstPage(File file, Bitmap bitmap, long[] nanos)
+            throws IOException {
+        long start = System.nanoTime();
+        PdfDocument doc = core.newDocument(ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY));
+        try {
+            long opened = System.nanoTime();
+            core.openPage(doc, 0);
+            assertTrue(core.renderPageBitmap(doc, bitmap, 0, 0, 0, bitmap.getWidth(), bitmap.getHeight()));
+            if (nanos != null) {
+                nanos[0] += opened - start;
+                nanos[1] += System.nanoTime() - opened;
+            }
+            return core.getReadStats(doc);
+        } finally {
+            core.closeDocument(doc);
+        }
+    }
+
+    private static int[] sequentialOrder() {
+        int[] order = new int[PAGES];
+        for (int i = 0; i < PAGES; i++) {
+            order[i] = i;
+        }
+        return order;
+    }
+
+    /** 0, last, 1, last - 1... */
+    private static int[] alternatingOrder() {
+        int[] order = new int[PAGES];
+        for (int i = 0; i < PAGES; i++) {
+            order[i] = i % 2 == 0 ? i / 2 : PAGES - 1 - i / 2;
+        }
+        return order;
+    }
+
+    /** Open the file with given cache configuration and check text of all pages in given order */
+    private PdfDocument.ReadStats readAllPages(int[] order, int blockSize, int maxBlocks,
+                                               int readAheadBlocks) throws IOException {
+        core.setReadCacheConfig(blockSize, maxBlocks, readAheadBlocks);
+        PdfDocument doc = core.newDocument(ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY));
+        try {
+            assertEquals(PAGES, core.getPageCount(doc));
+            for (int i : order) {
+                assertEquals("Page " + i, expectedText[i], core.extractPageText(doc, i).getText());
+            }
+            return core.getReadStats(doc);
+        } finally {
+            core.closeDocument(doc);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.shockwave.pdfium;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+
+/**
+ * {@link StreamingPdfDocument} fed by a simulated slow connection. Data arrives in small chunks
+ * in file order, byte ranges PDFium asks for are fetched before the rest, like with HTTP range
+ * requests. Text of every page must match the same document loaded to memory.
+ */
+public class StreamingPdfDocumentTest extends AndroidTestCase {
+    private static final int PAGES = 6;
+    private static final int CHUNK_SIZE = 512;
+
+    private PdfiumCore core;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        core = new PdfiumCore(getContext());
+    }
+
+    public void testLinearizedDocumentIsAvailableBeforeAllDataArrives() throws IOException {
+        byte[] data = TestPdfs.createLinearized(TestPdfs.numberedLines(PAGES, 15));
+        String[] expectedText = readText(data);
+        StreamingPdfDocument doc = core.newStreamingDocument(data.length);
+        try {
+            ThrottledSource source = new ThrottledSource(doc, data);
+            assertTrue(source.sendNext());
+            // header and linearization dictionary are in the first kilobyte
+            assertEquals(StreamingPdfDocument.LINEARIZATION_UNKNOWN, doc.getLinearization());
+
+            waitForDocument(doc, source);
+            assertEquals(StreamingPdfDocument.LINEARIZED, doc.getLinearization());
+            assertEquals(0, doc.getFirstPageIndex());
+            assertEquals(PAGES, core.getPageCount(doc));
+            assertTrue(doc.isPageAvailable(0));
+            // first page is usable while later pages are still arriving
+            assertFalse(doc.isComplete());
+            assertEquals(expectedText[0], core.extractPageText(doc, 0).getText());
+
+            checkAllPages(doc, source, expectedText);
+        } finally {
+            core.closeDocument(doc);
+        }
+    }
+
+    public void testDocumentWhichIsNotLinearized() throws IOException {
+        byte[] data = TestPdfs.create(TestPdfs.numberedLines(PAGES, 15));
+        String[] expectedText = readText(data);
+        StreamingPdfDocument doc = core.newStreamingDocument(data.length);
+        try {
+            ThrottledSource source = new ThrottledSource(doc, data);
+            waitForDocument(doc, source);
+            assertEquals(StreamingPdfDocument.NOT_LINEARIZED, doc.getLinearization());
+            assertEquals(PAGES, core.getPageCount(doc));
+
+            checkAllPages(doc, source, expectedText);
+        } finally {
+            core.closeDocument(doc);
+        }
+    }
+
+    public void testAppendOutsideOfArrayIsRejected() {
+        StreamingPdfDocument doc = core.newStreamingDocument(100);
+        try {
+            doc.appendData(0, new byte[10], 5, 10);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+            // ok
+        } finally {
+            core.closeDocument(doc);
+        }
+    }
+
+    private String[] readText(byte[] data) throws IOException {
+        PdfDocument doc = core.newDocument(data);
+        try {
+            String[] text = new String[PAGES];
+            for (int i = 0; i < PAGES; i++) {
+                text[i] = core.extractPageText(doc, i).getText();
+                assertTrue(text[i].contains("Page " + i + " line 0"));
+            }
+            return text;
+        } finally {
+            core.closeDocument(doc);
+        }
+    }
+
+    private static void waitForDocument(StreamingPdfDocument doc, ThrottledSource source)
+            throws IOException {
+        while (!doc.isDocumentAvailable(null)) {
+            assertTrue("Document is not available after all data arrived", source.sendNext());
+        }
+    }
+
+    /** Wait for pages one by one and check their text, then the whole file must be received */
+    private void checkAllPages(StreamingPdfDocument doc, ThrottledSource source, String[] expectedText) {
+        for (int i = 0; i < PAGES; i++) {
+            while (!doc.isPageAvailable(i)) {
+                assertTrue("Page " + i + " is not available after all data arrived", source.sendNext());
+            }
+            assertEquals(expectedText[i], core.extractPageText(doc, i).getText());
+        }
+        while (source.sendNext()) {
+            // rest of the file
+        }
+        assertTrue(doc.isComplete());
+        assertEquals(0, doc.takeRequestedRanges().length);
+    }
+
+    /** Sends one chunk per call, from ranges requested by PDFium if there are any */
+    private static final class ThrottledSource {
+        private final StreamingPdfDocument doc;
+        private final byte[] data;
+        private int next;
+
+        ThrottledSource(StreamingPdfDocument doc, byte[] data) {
+            this.doc = doc;
+            this.data = data;
+        }
+
+        /** @return false if the whole file was received already */
+        boolean sendNext() {
+            if (doc.isComplete()) {
+                return false;
+            }
+            long[] ranges = doc.takeRequestedRanges();
+            int start;
+            int length;
+            if (ranges.length > 0) {
+                start = (int) ranges[0];
+                length = (int) Math.min(ranges[1], CHUNK_SIZE);
+            } else {
+                start = next;
+                length = Math.min(CHUNK_SIZE, data.length - next);
+                next += length;
+            }
+            doc.appendData(start, data, start, length);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.shockwave.pdfium;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Small PDF files generated for tests, so no binary fixtures are needed.
+ * <p>
+ * Pages are {@link #PAGE_WIDTH} x {@link #PAGE_HEIGHT} points with lines of text in the standard
+ * Helvetica font, which PDFium renders and extracts without any font file. Lines are printed
+ * {@link #LINE_HEIGHT} points apart from the top left corner. Only ASCII text is supported.
+ */
+public final class TestPdfs {
+    public static final int PAGE_WIDTH = 300;
+    public static final int PAGE_HEIGHT = 400;
+    public static final int FONT_SIZE = 12;
+    public static final int LINE_HEIGHT = 20;
+    public static final int MARGIN = 20;
+    public static final int ANNOTATION_WIDTH = 16;
+    public static final int ANNOTATION_HEIGHT = 12;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private TestPdfs() {
+    }
+
+    /** Lines like "Page 2 line 3 lorem ipsum" for documents whose text does not matter much */
+    public static String[][] numberedLines(int pageCount, int linesPerPage) {
+        String[] words = {"lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit"};
+        String[][] pages = new String[pageCount][linesPerPage];
+        for (int page = 0; page < pageCount; page++) {
+            for (int line = 0; line < linesPerPage; line++) {
+                pages[page][line] = "Page " + page + " line " + line + " "
+                        + words[(page + line) % words.length] + " " + words[(page * 3 + line) % words.length];
+            }
+        }
+        return pages;
+    }
+
+    /** Document with a page for every array of lines */
+    public static byte[] create(String[][] pages) {
+        return create(pages, 0);
+    }
+
+    /**
+     * Document with a page for every array of lines, each page scattered with small square annotations
+     * which have appearance streams, like a markup-heavy review copy. Annotations are
+     * {@link #ANNOTATION_WIDTH} x {@link #ANNOTATION_HEIGHT} points and may overlap each other and the text.
+     */
+    public static byte[] create(String[][] pages, int annotationsPerPage) {
+        int pageCount = pages.length;
+        // 1 catalog, 2 page tree, 3 font, 4 + 2i page i, 5 + 2i its content,
+        // then every annotation of every page followed by its appearance stream
+        int firstAnnotation = 4 + pageCount * 2;
+        int objectCount = firstAnnotation + pageCount * annotationsPerPage * 2;
+        Writer out = new Writer(objectCount);
+        out.header();
+        out.object(1, "<< /Type /Catalog /Pages 2 0 R >>");
+        int[] kids = new int[pageCount];
+        for (int i = 0; i < pageCount; i++) {
+            kids[i] = 4 + i * 2;
+        }
+        out.object(2, pageTree(kids));
+        out.object(3, font());
+        for (int i = 0; i < pageCount; i++) {
+            int annotation = firstAnnotation + i * annotationsPerPage * 2;
+            out.object(4 + i * 2, page(2, 3, 5 + i * 2, annotation, annotationsPerPage));
+            out.stream(5 + i * 2, content(pages[i]));
+            for (int j = 0; j < annotationsPerPage; j++) {
+                out.object(annotation + j * 2, annotation(j, annotation + j * 2 + 1));
+                out.stream(annotation + j * 2 + 1, appearance(), "/Type /XObject /Subtype /Form /BBox [0 0 "
+                        + ANNOTATION_WIDTH + " " + ANNOTATION_HEIGHT + "]");
+            }
+        }
+
+        long xref = out.size();
+        out.print("xref\n0 " + objectCount + "\n");
+        out.entries(0, objectCount);
+        out.print("trailer\n<< /Size " + objectCount + " /Root 1 0 R >>\n");
+        out.print("startxref\n" + xref + "\n%%EOF\n");
+        return out.toByteArray();
+    }
+
+    /**
+     * Linearized ("fast web view") document, laid out as described in Annex F of the PDF
+     * specification: linearization dictionary, first page cross-reference table, catalog, hint stream
+     * and objects of the first page come first, other pages and the main cross-reference table follow.
+     * Hint tables are left empty, PDFium then finds other pages through the main cross-reference table.
+     *
+     * @param pages lines of at least two pages
+     */
+    public static byte[] createLinearized(String[][] pages) {
+        int pageCount = pages.length;
+        if (pageCount < 2) {
+            throw new IllegalArgumentException("At least two pages are needed");
+        }
+        // other pages first: 2i - 1 page i, 2i its content
+        int first = pageCount * 2 - 1;
+        int linearization = first;
+        int catalog = first + 1;
+        int pageTree = first + 2;
+        int hint = first + 3;
+        int firstPage = first + 4;
+        int firstContent = first + 5;
+        int font = first + 6;
+        int objectCount = first + 7;
+
+        int[] kids = new int[pageCount];
+        kids[0] = firstPage;
+        for (int i = 1; i < pageCount; i++) {
+            kids[i] = i * 2 - 1;
+        }
+
+        // the linearization dictionary and the first page table refer to offsets which follow them,
+        // so the file is written twice, second time with the offsets found by the first pass
+        long[] values = new long[5];
+        long[] offsets = new long[objectCount];
+        byte[] result = null;
+        for (int pass = 0; pass < 2; pass++) {
+            Writer out = new Writer(offsets);
+            out.header();
+            out.object(linearization, String.format(Locale.ROOT,
+                    "<< /Linearized 1 /L %10d /H [%10d %10d] /O %d /E %10d /N %d /T %10d >>",
+                    values[0], values[1], values[2], firstPage, values[3], pageCount, values[4]));
+
+            long mainXref = values[4] > 0 ? values[4] - ("xref\n0 " + first).length() : 0;
+            out.print("xref\n" + first + " " + (objectCount - first) + "\n");
+            out.entries(first, objectCount);
+            out.print(String.format(Locale.ROOT, "trailer\n<< /Size %d /Root %d 0 R /Prev %10d >>\n",
+                    objectCount, catalog, mainXref));
+            out.print("startxref\n0\n%%EOF\n");
+
+            out.object(catalog, "<< /Type /Catalog /Pages " + pageTree + " 0 R >>");
+            out.object(pageTree, pageTree(kids));
+            long hintStart = out.size();
+            out.stream(hint, new byte[4], "/S 0");
+            long hintLength = out.size() - hintStart;
+            out.object(firstPage, page(pageTree, font, firstContent));
+            out.stream(firstContent, content(pages[0]));
+            out.object(font, font());
+            long firstPageEnd = out.size();
+
+            for (int i = 1; i < pageCount; i++) {
+                out.object(i * 2 - 1, page(pageTree, font, i * 2));
+                out.stream(i * 2, content(pages[i]));
+            }
+
+            out.print("xref\n0 " + first);
+            // white space preceding the first entry of the main table
+            long mainEntries = out.size();
+            out.print("\n");
+            out.entries(0, first);
+            out.print("trailer\n<< /Size " + first + " >>\n");
+            out.print("startxref\n" + out.offsetOfFirstXref() + "\n%%EOF\n");
+
+            result = out.toByteArray();
+            offsets = out.offsets;
+            values = new long[]{result.length, hintStart, hintLength, firstPageEnd, mainEntries};
+        }
+        return result;
+    }
+
+    /** Write data to a file in the directory */
+    public static File write(File directory, String name, byte[] data) throws IOException {
+        File file = new File(directory, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static String pageTree(int[] kids) {
+        StringBuilder sb = new StringBuilder("<< /Type /Pages /Kids [");
+        for (int kid : kids) {
+            sb.append(kid).append(" 0 R ");
+        }
+        return sb.append("] /Count ").append(kids.length).append(" >>").toString();
+    }
+
+    private static String page(int parent, int font, int content) {
+        return page(parent, font, content, 0, 0);
+    }
+
+    /** Page with annotations numbered firstAnnotation, firstAnnotation + 2... */
+    private static String page(int parent, int font, int content, int firstAnnotation, int annotationCount) {
+        StringBuilder sb = new StringBuilder("<< /Type /Page /Parent ").append(parent)
+                .append(" 0 R /MediaBox [0 0 ").append(PAGE_WIDTH).append(' ').append(PAGE_HEIGHT)
+                .append("] /Resources << /Font << /F1 ").append(font).append(" 0 R >> >> /Contents ")
+                .append(content).append(" 0 R");
+        if (annotationCount > 0) {
+            sb.append(" /Annots [");
+            for (int i = 0; i < annotationCount; i++) {
+                sb.append(firstAnnotation + i * 2).append(" 0 R ");
+            }
+            sb.append(']');
+        }
+        return sb.append(" >>").toString();
+    }
+
+    /** Printable square annotation, spread over the page by its index */
+    private static String annotation(int index, int appearance) {
+        int x = index * 37 % (PAGE_WIDTH - ANNOTATION_WIDTH);
+        int y = index * 53 % (PAGE_HEIGHT - ANNOTATION_HEIGHT);
+        return "<< /Type /Annot /Subtype /Square /F 4 /C [1 0 0] /Rect [" + x + " " + y + " "
+                + (x + ANNOTATION_WIDTH) + " " + (y + ANNOTATION_HEIGHT) + "] /AP << /N " + appearance + " 0 R >> >>";
+    }
+
+    /** Red frame with a diagonal */
+    private static byte[] appearance() {
+        return ("1 0 0 RG 1 w 0.5 0.5 " + (ANNOTATION_WIDTH - 1) + " " + (ANNOTATION_HEIGHT - 1) + " re S\n"
+                + "0 0 m " + ANNOTATION_WIDTH + " " + ANNOTATION_HEIGHT + " l S\n").getBytes(ASCII);
+    }
+
+    private static String font() {
+        return "<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica /Encoding /WinAnsiEncoding >>";
+    }
+
+    private static byte[] content(String[] lines) {
+        StringBuilder sb = new StringBuilder("BT\n/F1 " + FONT_SIZE + " Tf\n");
+        sb.append(MARGIN).append(' ').append(PAGE_HEIGHT - MARGIN - FONT_SIZE).append(" Td\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0) {
+                sb.append("0 -").append(LINE_HEIGHT).append(" Td\n");
+            }
+            sb.append('(');
+            for (int j = 0; j < lines[i].length(); j++) {
+                char c = lines[i].charAt(j);
+                if (c == '(' || c == ')' || c == '\\') {
+                    sb.append('\\');
+                }
+                sb.append(c);
+            }
+            sb.append(") Tj\n");
+        }
+        return sb.append("ET\n").toString().getBytes(ASCII);
+    }
+
+    /** Output remembering offsets of objects and cross-reference tables */
+    private static final class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final long[] offsets;
+        private long firstXref = -1;
+
+        Writer(int objectCount) {
+            this(new long[objectCount]);
+        }
+
+        /** @param offsets offsets of objects known in advance, for tables written before the objects */
+        Writer(long[] offsets) {
+            this.offsets = offsets.clone();
+        }
+
+        void header() {
+            print("%PDF-1.4\n");
+            out.write('%');
+            out.write(0xE2);
+            out.write(0xE3);
+            out.write(0xCF);
+            out.write(0xD3);
+            out.write('\n');
+        }
+
+        void object(int number, String body) {
+            offsets[number] = out.size();
+            print(number + " 0 obj\n" + body + "\nendobj\n");
+        }
+
+        void stream(int number, byte[] data) {
+            stream(number, data, "");
+        }
+
+        void stream(int number, byte[] data, String extraKeys) {
+            offsets[number] = out.size();
+            print(number + " 0 obj\n<< /Length " + data.length + (extraKeys.isEmpty() ? "" : " " + extraKeys)
+                    + " >>\nstream\n");
+            out.write(data, 0, data.length);
+            print("\nendstream\nendobj\n");
+        }
+
+        /** Cross-reference entries of objects [from, to), 20 bytes each */
+        void entries(int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (i == 0) {
+                    print("0000000000 65535 f \n");
+                } else {
+                    print(String.format(Locale.ROOT, "%010d 00000 n \n", offsets[i]));
+                }
+            }
+        }
+
+        void print(String s) {
+            if (firstXref == -1 && s.startsWith("xref")) {
+                firstXref = out.size();
+            }
+            byte[] bytes = s.getBytes(ASCII);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        long offsetOfFirstXref() {
+            return firstXref;
+        }
+
+        long size() {
+            return out.size();
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.shockwave.pdfium.render;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import junit.framework.TestCase;
+
+/**
+ * Ownership of bitmaps shared by {@link PageBitmapCache} and {@link BitmapPool}: a bitmap held by
+ * a caller must not be handed to another render, even after the cache evicted it.
+ */
+public class PageBitmapCacheTest extends TestCase {
+    private static final int TILE = 10;
+    /* RGB_565 tile */
+    private static final int TILE_BYTES = TILE * TILE * 2;
+
+    private BitmapPool pool;
+    private PageBitmapCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        pool = new BitmapPool(100 * TILE_BYTES);
+        cache = new PageBitmapCache(2 * TILE_BYTES);
+        cache.setBitmapPool(pool);
+    }
+
+    public void testBitmapLargerThanCacheIsNotCached() {
+        Bitmap large = Bitmap.createBitmap(TILE * 3, TILE, Bitmap.Config.RGB_565);
+        assertFalse(cache.put(key(0, TILE * 3), large));
+        assertFalse(cache.putAndAcquire(key(0, TILE * 3), large));
+        assertEquals(0, cache.entryCount());
+        assertEquals(0, cache.size());
+        assertEquals(0, pool.size());
+
+        // still owned by the caller, which gives it to the pool
+        cache.release(large);
+        assertSame(large, pool.acquire(TILE * 3, TILE, Bitmap.Config.RGB_565));
+    }
+
+    public void testEvictedBitmapIsPooledOnlyAfterRelease() {
+        Bitmap first = tile();
+        assertTrue(cache.putAndAcquire(key(0, TILE), first));
+        cache.put(key(1, TILE), tile());
+        cache.put(key(2, TILE), tile());
+
+        assertEquals(1, cache.evictionCount());
+        assertNull(cache.get(key(0, TILE)));
+        assertEquals(0, pool.size());
+        assertNotSame(first, pool.acquire(TILE, TILE, Bitmap.Config.RGB_565));
+
+        cache.release(first);
+        assertEquals(TILE_BYTES, pool.size());
+        assertSame(first, pool.acquire(TILE, TILE, Bitmap.Config.RGB_565));
+    }
+
+    public void testBitmapHeldTwiceNeedsTwoReleases() {
+        Bitmap bitmap = tile();
+        cache.put(key(0, TILE), bitmap);
+        assertSame(bitmap, cache.acquire(key(0, TILE)));
+        assertSame(bitmap, cache.find(key(0, TILE)).getBitmap());
+        cache.clear();
+
+        cache.release(bitmap);
+        assertEquals(0, pool.size());
+        cache.release(bitmap);
+        assertEquals(TILE_BYTES, pool.size());
+    }
+
+    public void testScaledHitIsHeld() {
+        Bitmap large = Bitmap.createBitmap(2 * TILE, TILE, Bitmap.Config.RGB_565);
+        cache.put(new PageBitmapCache.Key(null, 0, 4 * TILE, 4 * TILE, new Rect(0, 0, 2 * TILE, TILE),
+                Bitmap.Config.RGB_565, false), large);
+
+        // same area of the page at half the zoom
+        PageBitmapCache.Hit hit = cache.find(new PageBitmapCache.Key(null, 0, 2 * TILE, 2 * TILE,
+                new Rect(0, 0, TILE, TILE / 2), Bitmap.Config.RGB_565, false));
+        assertFalse(hit.isExact());
+        assertSame(large, hit.getBitmap());
+        assertEquals(new Rect(0, 0, 2 * TILE, TILE), hit.getSourceRect());
+
+        cache.put(key(1, TILE), tile());
+        assertEquals(1, cache.evictionCount());
+        assertEquals(0, pool.size());
+        cache.release(large);
+        assertEquals(2 * TILE_BYTES, pool.size());
+    }
+
+    public void testReleaseOfCachedBitmapWhichIsNotHeldIsIgnored() {
+        Bitmap bitmap = tile();
+        cache.put(key(0, TILE), bitmap);
+        cache.release(bitmap);
+        assertSame(bitmap, cache.get(key(0, TILE)));
+        assertEquals(0, pool.size());
+    }
+
+    public void testPoolIgnoresBitmapReleasedTwice() {
+        Bitmap bitmap = tile();
+        pool.release(bitmap);
+        pool.release(bitmap);
+        assertEquals(TILE_BYTES, pool.size());
+
+        assertSame(bitmap, pool.acquire(TILE, TILE, Bitmap.Config.RGB_565));
+        assertNotSame(bitmap, pool.acquire(TILE, TILE, Bitmap.Config.RGB_565));
+        assertEquals(1, pool.hitCount());
+        assertEquals(1, pool.missCount());
+
+        // can be pooled again once it was handed out
+        pool.release(bitmap);
+        assertEquals(TILE_BYTES, pool.size());
+    }
+
+    private static Bitmap tile() {
+        return Bitmap.createBitmap(TILE, TILE, Bitmap.Config.RGB_565);
+    }
+
+    /** Key of a fragment at the top left corner of given page */
+    private static PageBitmapCache.Key key(int pageIndex, int width) {
+        return new PageBitmapCache.Key(null, pageIndex, 100, 100, new Rect(0, 0, width, TILE),
+                Bitmap.Config.RGB_565, false);
+    }
+}
@@ -0,0 +1,175 @@
+package com.shockwave.pdfium.search;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.shockwave.pdfium.PdfDocument;
+import com.shockwave.pdfium.PdfiumCore;
+import com.shockwave.pdfium.TestPdfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@link TextIndex} over a small generated document: query matching and resuming of a build
+ * interrupted in the middle of a page record.
+ * <p>
+ * Build time, size and query latency of an index of a larger document are logged, not asserted,
+ * next to the time of searching the same document page by page without the index.
+ */
+public class TextIndexTest extends AndroidTestCase {
+    private static final String TAG = TextIndexTest.class.getSimpleName();
+    private static final String HASH = "text-index-test";
+    private static final int BENCHMARK_PAGES = 500;
+    private static final int BENCHMARK_QUERIES = 100;
+
+    private static final String[][] PAGES = {
+            {"Alpha beta gamma", "delta Epsilon"},
+            {"alphabet soup", "beta Gamma ray"},
+            {"nothing to see here"},
+    };
+
+    private PdfiumCore core;
+    private PdfDocument doc;
+    private File directory;
+    private TextIndex index;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        core = new PdfiumCore(getContext());
+        doc = core.newDocument(TestPdfs.create(PAGES));
+        directory = new File(getContext().getCacheDir(), "text-index-test");
+        index = TextIndex.open(core, doc, directory, HASH);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        index.close();
+        index.delete();
+        core.closeDocument(doc);
+        super.tearDown();
+    }
+
+    public void testSearchMatchesAtWordStartsIgnoringCase() throws IOException {
+        assertEquals(3, index.indexPages(10));
+        assertTrue(index.isComplete());
+
+        assertHits(index.search("alpha", false, 0), 0, 1);
+        assertHits(index.search("ALPHA", true, 0), 0);
+        assertHits(index.search("pha", false, 0));
+        assertHits(index.search("beta gamma", false, 0), 0, 1);
+        // whitespace in the query matches the line break
+        assertHits(index.search("gamma  delta", false, 0), 0);
+        assertHits(index.search("alpha", false, 1), 0);
+        assertHits(index.search("  ", false, 0));
+
+        SearchHit hit = index.search("epsilon", true, 0).get(0);
+        String text = core.extractPageText(doc, 0).getText();
+        assertEquals("Epsilon", text.substring(hit.getTextIndex(), hit.getTextIndex() + hit.getLength()));
+        assertTrue(hit.getBounds().length > 0);
+    }
+
+    public void testBuildResumesAfterTruncatedRecord() throws IOException {
+        assertEquals(2, index.indexPages(2));
+        index.close();
+
+        // build interrupted while the second record was written
+        RandomAccessFile pages = new RandomAccessFile(new File(directory, HASH + ".pages"), "rw");
+        try {
+            pages.setLength(pages.length() - 3);
+        } finally {
+            pages.close();
+        }
+
+        index = TextIndex.open(core, doc, directory, HASH);
+        assertEquals(1, index.getIndexedPageCount());
+        // postings saved for two pages are dropped and rebuilt from the remaining record
+        assertHits(index.search("beta", true, 0), 0);
+
+        assertEquals(2, index.indexPages(10));
+        assertTrue(index.isComplete());
+        assertHits(index.search("beta", true, 0), 0, 1);
+        index.close();
+
+        index = TextIndex.open(core, doc, directory, HASH);
+        assertTrue(index.isComplete());
+        assertHits(index.search("beta", true, 0), 0, 1);
+        assertHits(index.search("see", true, 0), 2);
+    }
+
+    public void testIndexOfOtherContentIsNotReused() throws IOException {
+        index.indexPages(10);
+        index.close();
+
+        // same hash, different page count
+        PdfDocument other = core.newDocument(TestPdfs.create(TestPdfs.numberedLines(5, 1)));
+        try {
+            TextIndex otherIndex = TextIndex.open(core, other, directory, HASH);
+            try {
+                assertEquals(0, otherIndex.getIndexedPageCount());
+                assertHits(otherIndex.search("alpha", false, 0));
+            } finally {
+                otherIndex.close();
+            }
+        } finally {
+            core.closeDocument(other);
+        }
+        index = TextIndex.open(core, doc, directory, HASH);
+    }
+
+    public void testBuildSizeAndQueryTiming() throws IOException {
+        String[][] pages = TestPdfs.numberedLines(BENCHMARK_PAGES, 30);
+        PdfDocument large = core.newDocument(TestPdfs.create(pages));
+        TextIndex largeIndex = TextIndex.open(core, large, directory, HASH + "-benchmark");
+        try {
+            long start = System.nanoTime();
+            assertEquals(BENCHMARK_PAGES, largeIndex.indexPages(Integer.MAX_VALUE));
+            Log.i(TAG, String.format(Locale.ROOT, "build of %d pages: %.1f ms (%d ms extracting), %d KiB",
+                    BENCHMARK_PAGES, (System.nanoTime() - start) / 1e6, largeIndex.getBuildTimeMillis(),
+                    largeIndex.getSizeBytes() / 1024));
+
+            largeIndex.close();
+            start = System.nanoTime();
+            largeIndex = TextIndex.open(core, large, directory, HASH + "-benchmark");
+            Log.i(TAG, String.format(Locale.ROOT, "reopen: %.1f ms", (System.nanoTime() - start) / 1e6));
+            assertTrue(largeIndex.isComplete());
+
+            // common word, rare phrase, word found on every page only as a prefix, no match
+            String[] queries = {"lorem", "page 321 line 7", "consect", "nothing"};
+            for (String query : queries) {
+                List<SearchHit> hits = largeIndex.search(query, false, 0);
+                start = System.nanoTime();
+                for (int i = 0; i < BENCHMARK_QUERIES; i++) {
+                    largeIndex.search(query, false, 0);
+                }
+                Log.i(TAG, String.format(Locale.ROOT, "\"%s\": %d hits, %.1f us per query", query, hits.size(),
+                        (System.nanoTime() - start) / 1e3 / BENCHMARK_QUERIES));
+            }
+            assertHits(largeIndex.search("page 321 line 7", false, 0), 321);
+
+            start = System.nanoTime();
+            int hits = 0;
+            for (int i = 0; i < BENCHMARK_PAGES; i++) {
+                hits += core.searchPage(large, i, "page 321 line 7", false, false, 0).size();
+            }
+            assertEquals(1, hits);
+            Log.i(TAG, String.format(Locale.ROOT, "same query without index: %.1f ms",
+                    (System.nanoTime() - start) / 1e6));
+        } finally {
+            largeIndex.close();
+            largeIndex.delete();
+            core.closeDocument(large);
+        }
+    }
+
+    private static void assertHits(List<SearchHit> hits, int... pageIndexes) {
+        assertEquals(hits.toString(), pageIndexes.length, hits.size());
+        for (int i = 0; i < pageIndexes.length; i++) {
+            assertEquals(pageIndexes[i], hits.get(i).getPageIndex());
+        }
+    }
+}
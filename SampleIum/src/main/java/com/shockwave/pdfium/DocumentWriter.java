@@ -0,0 +1,54 @@
+package com.shockwave.pdfium;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Destination of a document being saved. Native code fills the direct buffer with saved bytes
+ * and calls {@link #flush(int)} every time it is full, so the saved file never has to be held
+ * in memory as a whole.
+ */
+/*package*/ class DocumentWriter {
+
+    /*package*/ static final int BUFFER_SIZE = 64 * 1024;
+
+    /*package*/ final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final WritableByteChannel channel;
+    private IOException error;
+    private long bytesWritten;
+
+    /*package*/ DocumentWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Called from native code with the first length bytes of the buffer filled.
+     *
+     * @return false if the bytes could not be written, saving is then aborted
+     */
+    @SuppressWarnings("unused")
+    private boolean flush(int length) {
+        try {
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            bytesWritten += length;
+            return true;
+        } catch (IOException e) {
+            error = e;
+            return false;
+        }
+    }
+
+    /** Exception thrown by the destination, which aborted saving */
+    /*package*/ IOException getError() {
+        return error;
+    }
+
+    /*package*/ long getBytesWritten() {
+        return bytesWritten;
+    }
+}
@@ -0,0 +1,157 @@
+package com.shockwave.pdfium;
+
+import androidx.collection.ArrayMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Native handles (pages or text pages) of a document keyed by page index, kept in LRU order.
+ * <p>
+ * When more than the maximum number of handles is open, least recently used handles are closed.
+ * Indexes of closed handles are remembered, so the owner can open them again transparently
+ * on the next access. Pinned handles are never closed by the limit, e.g. a page being rendered
+ * progressively. Not thread safe, used with the document lock held.
+ */
+/*package*/ class HandleCache {
+
+    /*package*/ interface Closer {
+        void close(long ptr);
+    }
+
+    private final LinkedHashMap<Integer, Long> handles = new LinkedHashMap<>(16, 0.75f, true);
+    /* same handles, for lookups which must not change LRU order */
+    private final HashMap<Integer, Long> lookup = new HashMap<>();
+    private final Set<Integer> evicted = new HashSet<>();
+    private final Map<Integer, Integer> pins = new ArrayMap<>();
+    private int maxHandles;
+    private int evictionCount;
+    private int reopenCount;
+
+    /** @param maxHandles maximum number of open handles, 0 for no limit */
+    /*package*/ HandleCache(int maxHandles) {
+        this.maxHandles = maxHandles;
+    }
+
+    /** Get handle and mark it as recently used, null if it is not open */
+    /*package*/ Long get(int index) {
+        return handles.get(index);
+    }
+
+    /** Get handle without changing LRU order */
+    /*package*/ Long peek(int index) {
+        return lookup.get(index);
+    }
+
+    /*package*/ boolean contains(int index) {
+        return handles.containsKey(index);
+    }
+
+    /** True if handle was opened before and closed because of the limit */
+    /*package*/ boolean isEvicted(int index) {
+        return evicted.contains(index);
+    }
+
+    /** Store newly opened handle and close least recently used ones over the limit */
+    /*package*/ void put(int index, long ptr, Closer closer) {
+        if (evicted.remove(index)) {
+            reopenCount++;
+        }
+        handles.put(index, ptr);
+        lookup.put(index, ptr);
+        trimToSize(maxHandles, closer);
+    }
+
+    /** Forget handle without closing it */
+    /*package*/ Long remove(int index) {
+        evicted.remove(index);
+        lookup.remove(index);
+        return handles.remove(index);
+    }
+
+    /*package*/ void pin(int index) {
+        Integer count = pins.get(index);
+        pins.put(index, count == null ? 1 : count + 1);
+    }
+
+    /*package*/ void unpin(int index) {
+        Integer count = pins.get(index);
+        if (count == null || count <= 1) {
+            pins.remove(index);
+        } else {
+            pins.put(index, count - 1);
+        }
+    }
+
+    /*package*/ void setMaxHandles(int maxHandles, Closer closer) {
+        this.maxHandles = maxHandles;
+        trimToSize(maxHandles, closer);
+    }
+
+    /*package*/ int getMaxHandles() {
+        return maxHandles;
+    }
+
+    /**
+     * Close least recently used handles which are not pinned until at most given number is open.
+     *
+     * @param size maximum number of open handles, 0 for no limit
+     */
+    /*package*/ void trimToSize(int size, Closer closer) {
+        if (size <= 0 || handles.size() <= size) {
+            return;
+        }
+        Iterator<Map.Entry<Integer, Long>> it = handles.entrySet().iterator();
+        while (handles.size() > size && it.hasNext()) {
+            Map.Entry<Integer, Long> entry = it.next();
+            if (pins.containsKey(entry.getKey())) {
+                continue;
+            }
+            closer.close(entry.getValue());
+            evicted.add(entry.getKey());
+            evictionCount++;
+            lookup.remove(entry.getKey());
+            it.remove();
+        }
+    }
+
+    /** Close all handles which are not pinned, they will be reopened on next access */
+    /*package*/ void evictAll(Closer closer) {
+        for (Integer index : new ArrayList<>(handles.keySet())) {
+            if (!pins.containsKey(index)) {
+                closer.close(handles.remove(index));
+                lookup.remove(index);
+                evicted.add(index);
+                evictionCount++;
+            }
+        }
+    }
+
+    /** Close all handles and forget them */
+    /*package*/ void closeAll(Closer closer) {
+        for (Long ptr : handles.values()) {
+            closer.close(ptr);
+        }
+        handles.clear();
+        lookup.clear();
+        evicted.clear();
+        pins.clear();
+    }
+
+    /*package*/ int size() {
+        return handles.size();
+    }
+
+    /*package*/ int getEvictionCount() {
+        return evictionCount;
+    }
+
+    /*package*/ int getReopenCount() {
+        return reopenCount;
+    }
+}
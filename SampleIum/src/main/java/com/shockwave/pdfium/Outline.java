@@ -0,0 +1,77 @@
+package com.shockwave.pdfium;
+
+/**
+ * Document outline (table of contents) flattened to parallel arrays, read by
+ * {@link PdfiumCore#getOutline(PdfDocument, int)} with a single native call.
+ * <p>
+ * Entries are in preorder: children of an entry follow it directly. Entries loaded with a depth
+ * limit may have children which were not loaded yet, see {@link #hasUnloadedChildren(int)} and
+ * {@link PdfiumCore#getOutlineChildren(PdfDocument, Outline, int, int)}.
+ */
+public class Outline {
+
+    private final int[] parents;
+    private final String[] titles;
+    private final int[] pageIndexes;
+    private final long[] nativePtrs;
+    private final boolean[] unloadedChildren;
+    private final int[] depths;
+    private final int[] childCounts;
+
+    /* called from native code */
+    /*package*/ Outline(int[] parents, String[] titles, int[] pageIndexes, long[] nativePtrs,
+                        boolean[] unloadedChildren) {
+        this.parents = parents;
+        this.titles = titles;
+        this.pageIndexes = pageIndexes;
+        this.nativePtrs = nativePtrs;
+        this.unloadedChildren = unloadedChildren;
+        this.depths = new int[parents.length];
+        this.childCounts = new int[parents.length];
+        // parents precede their children
+        for (int i = 0; i < parents.length; i++) {
+            if (parents[i] != -1) {
+                depths[i] = depths[parents[i]] + 1;
+                childCounts[parents[i]]++;
+            }
+        }
+    }
+
+    public int getCount() {
+        return parents.length;
+    }
+
+    /** Index of the parent entry, -1 for top level entries */
+    public int getParent(int index) {
+        return parents[index];
+    }
+
+    /** Depth of the entry, 0 for top level entries */
+    public int getDepth(int index) {
+        return depths[index];
+    }
+
+    public String getTitle(int index) {
+        return titles[index];
+    }
+
+    /** Target page index, -1 if entry has no destination */
+    public int getPageIndex(int index) {
+        return pageIndexes[index];
+    }
+
+    /** Number of loaded children */
+    public int getChildCount(int index) {
+        return childCounts[index];
+    }
+
+    /** True if entry has children which were not loaded because of the depth limit */
+    public boolean hasUnloadedChildren(int index) {
+        return unloadedChildren[index];
+    }
+
+    /** Native bookmark pointer, valid until the document is closed */
+    /*package*/ long getNativePtr(int index) {
+        return nativePtrs[index];
+    }
+}
@@ -0,0 +1,81 @@
+package com.shockwave.pdfium;
+
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * All links of a page in packed arrays, read by {@link PdfiumCore#getPackedPageLinks} with
+ * a single native call.
+ * <p>
+ * Link annotations come first, followed by web links detected in page text if they were requested.
+ * A web link spanning several lines has one entry per line with the same URI. Web links covered
+ * by a link annotation are left out.
+ */
+public class PageLinks {
+
+    private final float[] rects;
+    private final int[] destPageIndexes;
+    private final String[] uris;
+    private final int annotationCount;
+    /* set before the object is published, true if web links were looked for */
+    /*package*/ boolean includesWebLinks;
+
+    /* called from native code */
+    /*package*/ PageLinks(float[] rects, int[] destPageIndexes, String[] uris, int annotationCount) {
+        this.rects = rects;
+        this.destPageIndexes = destPageIndexes;
+        this.uris = uris;
+        this.annotationCount = annotationCount;
+    }
+
+    public int getCount() {
+        return destPageIndexes.length;
+    }
+
+    /** Number of link annotations, entries from this index on are web links */
+    public int getAnnotationCount() {
+        return annotationCount;
+    }
+
+    public boolean includesWebLinks() {
+        return includesWebLinks;
+    }
+
+    public boolean isWebLink(int index) {
+        return index >= annotationCount;
+    }
+
+    /**
+     * Link rectangles in PDF "user space", four values (left, top, right, bottom) per link.
+     * Must not be modified.
+     */
+    public float[] getRects() {
+        return rects;
+    }
+
+    /** Target page indexes, -1 for links without destination. Must not be modified. */
+    public int[] getDestPageIndexes() {
+        return destPageIndexes;
+    }
+
+    /** Link URIs, null for links without action. Must not be modified. */
+    public String[] getUris() {
+        return uris;
+    }
+
+    public RectF getBounds(int index) {
+        return new RectF(rects[index * 4], rects[index * 4 + 1], rects[index * 4 + 2], rects[index * 4 + 3]);
+    }
+
+    /** Convert to {@link PdfDocument.Link} objects */
+    public List<PdfDocument.Link> toLinks() {
+        List<PdfDocument.Link> links = new ArrayList<>(destPageIndexes.length);
+        for (int i = 0; i < destPageIndexes.length; i++) {
+            Integer dest = destPageIndexes[i] != -1 ? destPageIndexes[i] : null;
+            links.add(new PdfDocument.Link(getBounds(i), dest, uris[i]));
+        }
+        return links;
+    }
+}
@@ -0,0 +1,291 @@
+package com.shockwave.pdfium;
+
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Uniform grid index over character boxes, line rectangles and link rectangles of a page.
+ * <p>
+ * Built once by {@link PdfiumCore#getPageSpatialIndex(PdfDocument, int)} and cached in the document.
+ * Point and range queries (tap, drag selection, hover) are answered in Java without native calls.
+ * All coordinates are in PDF "user space", where top is greater than bottom.
+ */
+public class PageSpatialIndex {
+
+    /**
+     * Rectangles bucketed to grid cells. Cell items are stored in one array,
+     * items of cell i are at [cellStarts[i], cellStarts[i + 1]).
+     */
+    private static final class Grid {
+        /* four values (left, top, right, bottom) per item */
+        final float[] rects;
+        final int count;
+        float minX;
+        float minY;
+        float cellSize = 1;
+        int columns;
+        int rows;
+        int[] cellStarts;
+        int[] cellItems;
+
+        Grid(float[] rects, int count) {
+            this.rects = rects;
+            this.count = count;
+
+            float maxX = -Float.MAX_VALUE;
+            float maxY = -Float.MAX_VALUE;
+            minX = Float.MAX_VALUE;
+            minY = Float.MAX_VALUE;
+            int nonEmpty = 0;
+            for (int i = 0; i < count; i++) {
+                if (isEmpty(i)) {
+                    continue;
+                }
+                minX = Math.min(minX, rects[i * 4]);
+                maxY = Math.max(maxY, rects[i * 4 + 1]);
+                maxX = Math.max(maxX, rects[i * 4 + 2]);
+                minY = Math.min(minY, rects[i * 4 + 3]);
+                nonEmpty++;
+            }
+            if (nonEmpty == 0) {
+                columns = 0;
+                rows = 0;
+                cellStarts = new int[1];
+                cellItems = new int[0];
+                return;
+            }
+
+            // aim at about two items per cell
+            float width = Math.max(1, maxX - minX);
+            float height = Math.max(1, maxY - minY);
+            cellSize = Math.max(1, (float) Math.sqrt(width * height * 2 / nonEmpty));
+            columns = Math.min(MAX_CELLS_PER_SIDE, (int) (width / cellSize) + 1);
+            rows = Math.min(MAX_CELLS_PER_SIDE, (int) (height / cellSize) + 1);
+            cellSize = Math.max(width / columns, height / rows) * 1.0001f;
+
+            int[] counts = new int[columns * rows + 1];
+            for (int i = 0; i < count; i++) {
+                if (isEmpty(i)) {
+                    continue;
+                }
+                for (int row = rowOf(rects[i * 4 + 3]); row <= rowOf(rects[i * 4 + 1]); row++) {
+                    for (int col = columnOf(rects[i * 4]); col <= columnOf(rects[i * 4 + 2]); col++) {
+                        counts[row * columns + col + 1]++;
+                    }
+                }
+            }
+            for (int i = 1; i < counts.length; i++) {
+                counts[i] += counts[i - 1];
+            }
+            cellStarts = counts;
+            cellItems = new int[counts[counts.length - 1]];
+            int[] fill = Arrays.copyOf(counts, counts.length - 1);
+            for (int i = 0; i < count; i++) {
+                if (isEmpty(i)) {
+                    continue;
+                }
+                for (int row = rowOf(rects[i * 4 + 3]); row <= rowOf(rects[i * 4 + 1]); row++) {
+                    for (int col = columnOf(rects[i * 4]); col <= columnOf(rects[i * 4 + 2]); col++) {
+                        cellItems[fill[row * columns + col]++] = i;
+                    }
+                }
+            }
+        }
+
+        boolean isEmpty(int i) {
+            return rects[i * 4 + 2] <= rects[i * 4] || rects[i * 4 + 1] <= rects[i * 4 + 3];
+        }
+
+        int columnOf(float x) {
+            return clamp((int) ((x - minX) / cellSize), columns);
+        }
+
+        int rowOf(float y) {
+            return clamp((int) ((y - minY) / cellSize), rows);
+        }
+
+        private static int clamp(int value, int size) {
+            return value < 0 ? 0 : value >= size ? size - 1 : value;
+        }
+
+        /** Distance of the point from the item rectangle, 0 if it is inside */
+        float distance(int i, float x, float y) {
+            float dx = Math.max(0, Math.max(rects[i * 4] - x, x - rects[i * 4 + 2]));
+            float dy = Math.max(0, Math.max(rects[i * 4 + 3] - y, y - rects[i * 4 + 1]));
+            return (float) Math.sqrt(dx * dx + dy * dy);
+        }
+
+        /** Closest item within tolerance from the point or -1 */
+        int nearest(float x, float y, float tolerance) {
+            if (columns == 0) {
+                return -1;
+            }
+            int result = -1;
+            float best = Float.MAX_VALUE;
+            for (int row = rowOf(y - tolerance); row <= rowOf(y + tolerance); row++) {
+                for (int col = columnOf(x - tolerance); col <= columnOf(x + tolerance); col++) {
+                    int cell = row * columns + col;
+                    for (int j = cellStarts[cell]; j < cellStarts[cell + 1]; j++) {
+                        int item = cellItems[j];
+                        float distance = distance(item, x, y);
+                        if (distance <= tolerance && (distance < best || (distance == best && item < result))) {
+                            best = distance;
+                            result = item;
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        /** Sorted indexes of items intersecting the rectangle */
+        int[] intersecting(float left, float top, float right, float bottom) {
+            if (columns == 0) {
+                return new int[0];
+            }
+            int[] found = new int[16];
+            int size = 0;
+            for (int row = rowOf(bottom); row <= rowOf(top); row++) {
+                for (int col = columnOf(left); col <= columnOf(right); col++) {
+                    int cell = row * columns + col;
+                    for (int j = cellStarts[cell]; j < cellStarts[cell + 1]; j++) {
+                        int item = cellItems[j];
+                        if (rects[item * 4] <= right && rects[item * 4 + 2] >= left
+                                && rects[item * 4 + 3] <= top && rects[item * 4 + 1] >= bottom) {
+                            if (size == found.length) {
+                                found = Arrays.copyOf(found, size * 2);
+                            }
+                            found[size++] = item;
+                        }
+                    }
+                }
+            }
+            // items spanning several cells are found more than once
+            Arrays.sort(found, 0, size);
+            int unique = 0;
+            for (int i = 0; i < size; i++) {
+                if (unique == 0 || found[unique - 1] != found[i]) {
+                    found[unique++] = found[i];
+                }
+            }
+            return Arrays.copyOf(found, unique);
+        }
+    }
+
+    private static final int MAX_CELLS_PER_SIDE = 128;
+
+    private final PageTextLayout layout;
+    private final List<PdfDocument.Link> links;
+    private final Grid chars;
+    private final Grid lines;
+    private final Grid linkGrid;
+
+    /*package*/ PageSpatialIndex(PageTextLayout layout, List<PdfDocument.Link> links) {
+        this.layout = layout;
+        this.links = links;
+
+        int charCount = layout.getCharCount();
+        float[] charRects = new float[charCount * 4];
+        layout.getCharBoxes().get(charRects);
+        chars = new Grid(charRects, charCount);
+
+        int lineCount = layout.getLineCount();
+        float[] lineRects = new float[lineCount * 4];
+        for (int i = 0; i < lineCount; i++) {
+            List<RectF> rects = layout.getSelectionRects(layout.getLineStart(i), layout.getLineEnd(i));
+            if (!rects.isEmpty()) {
+                RectF rect = rects.get(0);
+                for (int j = 1; j < rects.size(); j++) {
+                    RectF other = rects.get(j);
+                    rect.left = Math.min(rect.left, other.left);
+                    rect.top = Math.max(rect.top, other.top);
+                    rect.right = Math.max(rect.right, other.right);
+                    rect.bottom = Math.min(rect.bottom, other.bottom);
+                }
+                putRect(lineRects, i, rect);
+            }
+        }
+        lines = new Grid(lineRects, lineCount);
+
+        float[] linkRects = new float[links.size() * 4];
+        for (int i = 0; i < links.size(); i++) {
+            putRect(linkRects, i, links.get(i).getBounds());
+        }
+        linkGrid = new Grid(linkRects, links.size());
+    }
+
+    private static void putRect(float[] rects, int index, RectF rect) {
+        rects[index * 4] = rect.left;
+        rects[index * 4 + 1] = Math.max(rect.top, rect.bottom);
+        rects[index * 4 + 2] = rect.right;
+        rects[index * 4 + 3] = Math.min(rect.top, rect.bottom);
+    }
+
+    public PageTextLayout getTextLayout() {
+        return layout;
+    }
+
+    public List<PdfDocument.Link> getLinks() {
+        return links;
+    }
+
+    /**
+     * @param tolerance maximum distance of the character box from the point, in points
+     * @return index of the closest character or -1
+     */
+    public int getCharIndexAt(float x, float y, float tolerance) {
+        return chars.nearest(x, y, tolerance);
+    }
+
+    /** Sorted indexes of characters whose boxes intersect the rectangle */
+    public int[] getCharIndexesIn(RectF rect) {
+        return chars.intersecting(rect.left, Math.max(rect.top, rect.bottom), rect.right,
+                Math.min(rect.top, rect.bottom));
+    }
+
+    /**
+     * Characters selected by dragging from one point to another, in reading order.
+     *
+     * @return {start, end} range of character indexes (end exclusive) or null if there is
+     * no character near one of the points
+     */
+    public int[] getSelectionRange(float startX, float startY, float endX, float endY, float tolerance) {
+        int start = getCharIndexAt(startX, startY, tolerance);
+        int end = getCharIndexAt(endX, endY, tolerance);
+        if (start == -1 || end == -1) {
+            return null;
+        }
+        return new int[]{Math.min(start, end), Math.max(start, end) + 1};
+    }
+
+    /** Index of the text line at the point or -1, see {@link PageTextLayout#getLineStart(int)} */
+    public int getLineAt(float x, float y, float tolerance) {
+        return lines.nearest(x, y, tolerance);
+    }
+
+    /** Bounds of the text line, empty if it has no visible characters */
+    public RectF getLineBounds(int line) {
+        return new RectF(lines.rects[line * 4], lines.rects[line * 4 + 1],
+                lines.rects[line * 4 + 2], lines.rects[line * 4 + 3]);
+    }
+
+    /** Link at the point or null */
+    public PdfDocument.Link getLinkAt(float x, float y) {
+        int index = linkGrid.nearest(x, y, 0);
+        return index != -1 ? links.get(index) : null;
+    }
+
+    /** Links intersecting the rectangle */
+    public List<PdfDocument.Link> getLinksIn(RectF rect) {
+        int[] indexes = linkGrid.intersecting(rect.left, Math.max(rect.top, rect.bottom), rect.right,
+                Math.min(rect.top, rect.bottom));
+        List<PdfDocument.Link> result = new ArrayList<>(indexes.length);
+        for (int index : indexes) {
+            result.add(links.get(index));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,251 @@
+package com.shockwave.pdfium;
+
+import android.graphics.RectF;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Characters of a page with their boxes and font sizes, read by {@link PdfiumCore#getPageTextLayout}
+ * in a single native pass.
+ * <p>
+ * Character boxes are stored in a direct {@link FloatBuffer}, four values (left, top, right, bottom)
+ * per character in PDF "user space". Lines and words are computed once when the layout is created,
+ * so selection, copy and hit testing are plain Java lookups. Generated characters (line breaks
+ * inserted by PDFium) have empty boxes. Layout does not refer to any native resources.
+ */
+public class PageTextLayout {
+
+    private final int pageIndex;
+    private final int[] unicodes;
+    private final FloatBuffer boxes;
+    private final float[] fontSizes;
+    /* line i covers characters [lineStarts[i], lineStarts[i + 1]) */
+    private final int[] lineStarts;
+    /* word i covers characters [wordStarts[i], wordEnds[i]) */
+    private final int[] wordStarts;
+    private final int[] wordEnds;
+
+    /*package*/ PageTextLayout(int pageIndex, int[] unicodes, FloatBuffer boxes, float[] fontSizes) {
+        this.pageIndex = pageIndex;
+        this.unicodes = unicodes;
+        this.boxes = boxes;
+        this.fontSizes = fontSizes;
+        this.lineStarts = computeLines();
+
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        int words = 0;
+        int i = 0;
+        while (i < unicodes.length) {
+            while (i < unicodes.length && !Character.isLetterOrDigit(unicodes[i])) {
+                i++;
+            }
+            int start = i;
+            while (i < unicodes.length && Character.isLetterOrDigit(unicodes[i])) {
+                i++;
+            }
+            if (start < i) {
+                if (words == starts.length) {
+                    starts = Arrays.copyOf(starts, words * 2);
+                    ends = Arrays.copyOf(ends, words * 2);
+                }
+                starts[words] = start;
+                ends[words] = i;
+                words++;
+            }
+        }
+        this.wordStarts = Arrays.copyOf(starts, words);
+        this.wordEnds = Arrays.copyOf(ends, words);
+    }
+
+    public int getPageIndex() {
+        return pageIndex;
+    }
+
+    public int getCharCount() {
+        return unicodes.length;
+    }
+
+    /** Unicode code point of the character, 0 if character is not encoded in Unicode */
+    public int getUnicode(int index) {
+        return unicodes[index];
+    }
+
+    /** Font size of the character in points */
+    public float getFontSize(int index) {
+        return fontSizes[index];
+    }
+
+    /** Read box of the character to given rectangle, returns false if the box is empty */
+    public boolean getCharBox(int index, RectF out) {
+        int offset = index * 4;
+        out.set(boxes.get(offset), boxes.get(offset + 1), boxes.get(offset + 2), boxes.get(offset + 3));
+        return out.right > out.left && out.top > out.bottom;
+    }
+
+    /** Read-only view of all character boxes */
+    public FloatBuffer getCharBoxes() {
+        return boxes.asReadOnlyBuffer();
+    }
+
+    /** Text of characters [start, end) */
+    public String getText(int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            if (unicodes[i] != 0) {
+                sb.appendCodePoint(unicodes[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    public int getLineCount() {
+        return lineStarts.length - 1;
+    }
+
+    public int getLineStart(int line) {
+        return lineStarts[line];
+    }
+
+    /** Exclusive end of the line, includes line break characters */
+    public int getLineEnd(int line) {
+        return lineStarts[line + 1];
+    }
+
+    public int getLineForChar(int index) {
+        int line = Arrays.binarySearch(lineStarts, 0, lineStarts.length - 1, index);
+        return line >= 0 ? line : -line - 2;
+    }
+
+    public int getWordCount() {
+        return wordStarts.length;
+    }
+
+    public int getWordStart(int word) {
+        return wordStarts[word];
+    }
+
+    public int getWordEnd(int word) {
+        return wordEnds[word];
+    }
+
+    /** Index of the word containing the character or -1 */
+    public int getWordForChar(int index) {
+        int word = Arrays.binarySearch(wordStarts, index);
+        if (word < 0) {
+            word = -word - 2;
+        }
+        return word >= 0 && index < wordEnds[word] ? word : -1;
+    }
+
+    /**
+     * Find character whose box contains given point, enlarged by the tolerance.
+     *
+     * @return index of the closest such character or -1
+     */
+    public int getCharIndexAt(float x, float y, float tolerance) {
+        int result = -1;
+        float best = Float.MAX_VALUE;
+        for (int i = 0; i < unicodes.length; i++) {
+            int offset = i * 4;
+            float left = boxes.get(offset);
+            float top = boxes.get(offset + 1);
+            float right = boxes.get(offset + 2);
+            float bottom = boxes.get(offset + 3);
+            if (right <= left || top <= bottom) {
+                continue;
+            }
+            float dx = Math.max(0, Math.max(left - x, x - right));
+            float dy = Math.max(0, Math.max(bottom - y, y - top));
+            if (dx <= tolerance && dy <= tolerance && dx + dy < best) {
+                best = dx + dy;
+                result = i;
+                if (best == 0) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Highlight rectangles of characters [start, end), one per line */
+    public List<RectF> getSelectionRects(int start, int end) {
+        List<RectF> rects = new ArrayList<>();
+        RectF box = new RectF();
+        int line = -1;
+        RectF lineRect = null;
+        for (int i = start; i < end; i++) {
+            if (!getCharBox(i, box)) {
+                continue;
+            }
+            int charLine = getLineForChar(i);
+            if (lineRect == null || charLine != line) {
+                lineRect = new RectF(box);
+                rects.add(lineRect);
+                line = charLine;
+            } else {
+                lineRect.left = Math.min(lineRect.left, box.left);
+                lineRect.right = Math.max(lineRect.right, box.right);
+                lineRect.top = Math.max(lineRect.top, box.top);
+                lineRect.bottom = Math.min(lineRect.bottom, box.bottom);
+            }
+        }
+        return rects;
+    }
+
+    /**
+     * Lines end after line break characters or where the next character does not overlap
+     * the previous one vertically.
+     */
+    private int[] computeLines() {
+        if (unicodes.length == 0) {
+            return new int[]{0};
+        }
+        int[] starts = new int[16];
+        int lines = 0;
+        starts[lines++] = 0;
+        float prevTop = 0;
+        float prevBottom = 0;
+        boolean hasPrev = false;
+        for (int i = 0; i < unicodes.length; i++) {
+            int c = unicodes[i];
+            if (c == '\n' || c == '\r') {
+                boolean crlf = c == '\r' && i + 1 < unicodes.length && unicodes[i + 1] == '\n';
+                if (crlf) {
+                    i++;
+                }
+                if (i + 1 < unicodes.length) {
+                    starts = addLine(starts, lines++, i + 1);
+                }
+                hasPrev = false;
+                continue;
+            }
+            int offset = i * 4;
+            float top = boxes.get(offset + 1);
+            float bottom = boxes.get(offset + 3);
+            if (boxes.get(offset + 2) <= boxes.get(offset) || top <= bottom) {
+                continue;
+            }
+            if (hasPrev && Math.min(top, prevTop) <= Math.max(bottom, prevBottom)
+                    && starts[lines - 1] != i) {
+                starts = addLine(starts, lines++, i);
+            }
+            prevTop = top;
+            prevBottom = bottom;
+            hasPrev = true;
+        }
+        starts = addLine(starts, lines++, unicodes.length);
+        return Arrays.copyOf(starts, lines);
+    }
+
+    private static int[] addLine(int[] starts, int index, int start) {
+        if (index == starts.length) {
+            starts = Arrays.copyOf(starts, index * 2);
+        }
+        starts[index] = start;
+        return starts;
+    }
+}
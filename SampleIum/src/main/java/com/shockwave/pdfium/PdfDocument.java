@@ -4,9 +4,12 @@ import android.graphics.RectF;
 import android.os.ParcelFileDescriptor;
 import androidx.collection.ArrayMap;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PdfDocument {
 
@@ -53,6 +56,43 @@ public class PdfDocument {
         }
     }
 
+    public static class ReadStats {
+        long requests;
+        long syscalls;
+        long bytesRead;
+        long blockHits;
+        long blockMisses;
+
+        /** Number of blocks requested by PDFium */
+        public long getRequests() {
+            return requests;
+        }
+
+        /** Number of read system calls */
+        public long getSyscalls() {
+            return syscalls;
+        }
+
+        /** Number of bytes read from file, including read-ahead */
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getBlockHits() {
+            return blockHits;
+        }
+
+        public long getBlockMisses() {
+            return blockMisses;
+        }
+
+        @Override
+        public String toString() {
+            return "ReadStats[requests=" + requests + ",syscalls=" + syscalls + ",bytesRead=" + bytesRead
+                    + ",blockHits=" + blockHits + ",blockMisses=" + blockMisses + "]";
+        }
+    }
+
     public static class Bookmark {
         private List<Bookmark> children = new ArrayList<>();
         String title;
@@ -100,15 +140,196 @@ public class PdfDocument {
         }
     }
 
+    /** Text of a page with bounding boxes of its characters */
+    public static class PageText {
+        private final String text;
+        private final float[] charBoxes;
+
+        public PageText(String text, float[] charBoxes) {
+            this.text = text;
+            this.charBoxes = charBoxes;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Boxes of all characters in PDF "user space", four values (left, top, right, bottom)
+         * per character. Generated characters, like line breaks, have empty boxes.
+         */
+        public float[] getCharBoxes() {
+            return charBoxes;
+        }
+    }
+
+    /** Native handles held by a document, see {@link PdfiumCore#getMemoryStats(PdfDocument)} */
+    public static class MemoryStats {
+        int openPages;
+        int maxOpenPages;
+        int openTextPages;
+        int maxOpenTextPages;
+        int evictions;
+        int reopens;
+        long nativeHeapAllocated;
+        long nativeHeapSize;
+
+        public int getOpenPages() {
+            return openPages;
+        }
+
+        public int getMaxOpenPages() {
+            return maxOpenPages;
+        }
+
+        /**
+         * Number of open text pages. Every text page keeps its own parsed copy of the page, separate from
+         * an open page of the same index, so it takes about as much memory as an open page plus the text.
+         */
+        public int getOpenTextPages() {
+            return openTextPages;
+        }
+
+        public int getMaxOpenTextPages() {
+            return maxOpenTextPages;
+        }
+
+        /** Number of pages parsed in memory: open pages and the page held by every open text page */
+        public int getLoadedPages() {
+            return openPages + openTextPages;
+        }
+
+        /** Number of handles closed because of the limits */
+        public int getEvictions() {
+            return evictions;
+        }
+
+        /** Number of closed handles opened again on access */
+        public int getReopens() {
+            return reopens;
+        }
+
+        /** Bytes allocated on the native heap of the process, PDFium allocates there */
+        public long getNativeHeapAllocated() {
+            return nativeHeapAllocated;
+        }
+
+        public long getNativeHeapSize() {
+            return nativeHeapSize;
+        }
+
+        @Override
+        public String toString() {
+            return "MemoryStats{pages=" + openPages + "/" + maxOpenPages
+                    + ", textPages=" + openTextPages + "/" + maxOpenTextPages
+                    + ", loadedPages=" + getLoadedPages()
+                    + ", evictions=" + evictions + ", reopens=" + reopens
+                    + ", nativeHeap=" + nativeHeapAllocated + "/" + nativeHeapSize + "}";
+        }
+    }
+
+    private static final int MAX_CACHED_SPATIAL_INDEXES = 8;
+    private static final int MAX_CACHED_PAGE_LINKS = 16;
+    private static final AtomicLong nextId = new AtomicLong();
+
     /*package*/ PdfDocument() {
     }
 
+    /**
+     * Guards Java-side state of this document: open handles, render tasks and cached per-page data.
+     * Native calls additionally hold the process-wide PDFium lock, which is always taken after this one,
+     * because PDFium shares font, page and module caches between all documents.
+     */
+    /*package*/ final Object lock = new Object();
+
+    /* creation order, locks of two documents are taken lower id first */
+    /*package*/ final long id = nextId.getAndIncrement();
+
     /*package*/ long mNativeDocPtr;
     /*package*/ ParcelFileDescriptor parcelFileDescriptor;
+    /* keeps direct buffer used by native document alive until it is closed */
+    /*package*/ ByteBuffer sourceBuffer;
+
+    /* opened pages, guarded by lock */
+    /*package*/ final HandleCache mNativePagesPtr = new HandleCache(PdfiumCore.DEFAULT_MAX_OPEN_PAGES);
+
+    /* loaded text pages, guarded by lock */
+    /*package*/ final HandleCache mNativeTextPagesPtr = new HandleCache(PdfiumCore.DEFAULT_MAX_OPEN_TEXT_PAGES);
+
+    /* running page searches by page index, guarded by lock */
+    /*package*/ final Map<Integer, Long> mNativeSearchHandlePtr = new ArrayMap<>();
+
+    /* spatial indexes of recently used pages, guarded by lock */
+    /*package*/ final Map<Integer, PageSpatialIndex> mSpatialIndexes =
+            new LinkedHashMap<Integer, PageSpatialIndex>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, PageSpatialIndex> eldest) {
+                    return size() > MAX_CACHED_SPATIAL_INDEXES;
+                }
+            };
+
+    /* links of recently used pages, guarded by lock */
+    /*package*/ final Map<Integer, PageLinks> mPageLinks =
+            new LinkedHashMap<Integer, PageLinks>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, PageLinks> eldest) {
+                    return size() > MAX_CACHED_PAGE_LINKS;
+                }
+            };
+
+    /* form fill environment, 0 until first render with forms, guarded by lock */
+    /*package*/ long mNativeFormPtr;
+    /*package*/ boolean mRenderForms;
+
+    /* page sizes in points, (width, height) pairs, guarded by lock */
+    /*package*/ float[] mPageSizesPt;
+
+    /* progressive renders in progress, guarded by lock */
+    private final Map<Integer, RenderTask> mRenderTasks = new ArrayMap<>();
 
-    /*package*/ final Map<Integer, Long> mNativePagesPtr = new ArrayMap<>();
+    /*package*/ void attachRenderTask(RenderTask task) {
+        RenderTask previous = mRenderTasks.put(task.getPageIndex(), task);
+        if (previous != null && previous != task) {
+            previous.abort(true);
+        }
+    }
+
+    /*package*/ void detachRenderTask(RenderTask task) {
+        if (mRenderTasks.get(task.getPageIndex()) == task) {
+            mRenderTasks.remove(task.getPageIndex());
+        }
+    }
+
+    /** Abort progressive render of given page, must be called before page is rendered differently or closed */
+    /*package*/ void abortRenderTask(int pageIndex) {
+        RenderTask task = mRenderTasks.get(pageIndex);
+        if (task != null) {
+            task.abort(true);
+        }
+    }
+
+    /*package*/ void abortRenderTasks() {
+        for (RenderTask task : new ArrayList<>(mRenderTasks.values())) {
+            task.abort(true);
+        }
+    }
 
+    /** True if page was opened, it may be temporarily closed by the open pages limit */
     public boolean hasPage(int index) {
-        return mNativePagesPtr.containsKey(index);
+        synchronized (lock) {
+            return mNativePagesPtr.contains(index) || mNativePagesPtr.isEvicted(index);
+        }
+    }
+
+    public boolean hasTextPage(int index) {
+        synchronized (lock) {
+            return mNativeTextPagesPtr.contains(index) || mNativeTextPagesPtr.isEvicted(index);
+        }
+    }
+
+    public boolean hasSearchHandle(int index) {
+        synchronized (lock) {
+            return mNativeSearchHandlePtr.containsKey(index);
+        }
     }
 }
@@ -0,0 +1,135 @@
+package com.shockwave.pdfium;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Combines pages of many documents into one.
+ * <p>
+ * Sources are opened one at a time: pages of a source are copied into an in-memory destination
+ * document as soon as it is added and the source is closed right afterwards, so only the largest
+ * source and the copied pages are held in memory, never all sources together. Sources given
+ * as files are memory mapped. The result is written with {@link #writeTo(OutputStream)} through
+ * the fixed-size save buffer of {@link PdfiumCore#saveAs(PdfDocument, OutputStream)}.
+ * <p>
+ * Sample usage:
+ * <pre>
+ * PdfMerger merger = new PdfMerger(core);
+ * try {
+ *     for (File file : files) {
+ *         merger.add(file);
+ *     }
+ *     merger.writeTo(out);
+ * } finally {
+ *     merger.close();
+ * }
+ * </pre>
+ * Not thread safe.
+ */
+public class PdfMerger {
+
+    private final PdfiumCore core;
+    private final PdfDocument destination;
+    private boolean copyViewerPreferences;
+    private boolean viewerPreferencesCopied;
+    private int sourceCount;
+    private boolean closed;
+
+    public PdfMerger(PdfiumCore core) throws IOException {
+        this.core = core;
+        this.destination = core.newDocument();
+    }
+
+    /**
+     * Copy viewer preferences (page layout, print scaling etc.) of the first source added afterwards
+     * to the result. Off by default.
+     */
+    public PdfMerger setCopyViewerPreferences(boolean copyViewerPreferences) {
+        this.copyViewerPreferences = copyViewerPreferences;
+        return this;
+    }
+
+    /** Append all pages of the file */
+    public PdfMerger add(File file) throws IOException {
+        return add(file, null);
+    }
+
+    /** Append all pages of the password protected file */
+    public PdfMerger add(File file, String password) throws IOException {
+        ensureOpen();
+        PdfDocument source = core.newDocument(file, password);
+        try {
+            append(source, null);
+        } finally {
+            core.closeDocument(source);
+        }
+        return this;
+    }
+
+    /**
+     * Append pages of a document opened by the caller. The document stays open.
+     *
+     * @param pageIndexes indexes of pages to append in the order they should appear, null for all pages
+     */
+    public PdfMerger add(PdfDocument source, int[] pageIndexes) throws IOException {
+        ensureOpen();
+        append(source, pageIndexes);
+        return this;
+    }
+
+    /** Number of sources added so far */
+    public int getSourceCount() {
+        return sourceCount;
+    }
+
+    /** Number of pages of the result so far */
+    public int getPageCount() {
+        ensureOpen();
+        return core.getPageCount(destination);
+    }
+
+    /**
+     * Write the result. Merger can be written more than once and more sources can be added in between.
+     * Stream is not closed.
+     *
+     * @return number of bytes written
+     */
+    public long writeTo(OutputStream out) throws IOException {
+        ensureOpen();
+        return core.saveAs(destination, out);
+    }
+
+    /**
+     * Write the result to a channel, e.g. a {@link java.nio.channels.FileChannel}. Channel is not closed.
+     *
+     * @return number of bytes written
+     */
+    public long writeTo(WritableByteChannel channel) throws IOException {
+        ensureOpen();
+        return core.saveAs(destination, channel);
+    }
+
+    /** Release the destination document */
+    public void close() {
+        if (!closed) {
+            closed = true;
+            core.closeDocument(destination);
+        }
+    }
+
+    private void append(PdfDocument source, int[] pageIndexes) throws IOException {
+        core.importPages(destination, source, pageIndexes, core.getPageCount(destination));
+        if (copyViewerPreferences && !viewerPreferencesCopied) {
+            viewerPreferencesCopied = core.copyViewerPreferences(destination, source);
+        }
+        sourceCount++;
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Merger is closed");
+        }
+    }
+}
@@ -4,33 +4,39 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.graphics.RectF;
+import android.os.Debug;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import android.view.Surface;
 
-import androidx.collection.ArrayMap;
+import com.shockwave.pdfium.render.BitmapPool;
 import com.shockwave.pdfium.search.FPDFTextSearchContext;
+import com.shockwave.pdfium.search.SearchHit;
 import com.shockwave.pdfium.search.TextSearchContext;
 import com.shockwave.pdfium.util.Size;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 public class PdfiumCore {
     private static final String TAG = PdfiumCore.class.getName();
     private static final Class FD_CLASS = FileDescriptor.class;
     private static final String FD_FIELD_NAME = "descriptor";
 
-    private final Map<Integer, Long> mNativePagesPtr = new ArrayMap<>();
-    private final Map<Integer, Long> mNativeTextPagesPtr = new ArrayMap<>();
-    private final Map<Integer, Long> mNativeSearchHandlePtr = new ArrayMap<>();
-    private long mNativeDocPtr;
+    /* FPDF_NO_INCREMENTAL from fpdf_save.h */
+    private static final int SAVE_NO_INCREMENTAL = 2;
 
 
     static {
@@ -45,14 +51,48 @@ public class PdfiumCore {
         }
     }
 
-    private native long nativeOpenDocument(int fd, String password);
+    private static native boolean nativeSetSystemFonts(String[] files, String[] families, int[] faceData);
+
+    private native long nativeOpenDocument(int fd, String password, int cacheBlockSize,
+                                           int cacheMaxBlocks, int cacheReadAheadBlocks);
 
     private native long nativeOpenMemDocument(byte[] data, String password);
 
+    private native long nativeOpenByteBufferDocument(ByteBuffer buffer, int offset, int length,
+                                                     String password);
+
+    private native long nativeOpenMappedDocument(int fd, String password);
+
     private native void nativeCloseDocument(long docPtr);
 
+    private native long nativeCreateDocument();
+
+    private native boolean nativeImportPages(long destDocPtr, long srcDocPtr, String pageRange, int index);
+
+    private native boolean nativeCopyViewerPreferences(long destDocPtr, long srcDocPtr);
+
+    private native boolean nativeSaveAsCopy(long docPtr, DocumentWriter writer, ByteBuffer buffer, int flags);
+
     private native int nativeGetPageCount(long docPtr);
 
+    private native long[] nativeGetReadStats(long docPtr);
+
+    private native long nativeStreamingCreate(long fileLength);
+
+    private native void nativeStreamingAppend(long docPtr, long position, byte[] data, int offset, int length);
+
+    private native int nativeStreamingIsDocAvail(long docPtr, String password);
+
+    private native int nativeStreamingIsPageAvail(long docPtr, int pageIndex);
+
+    private native int nativeStreamingIsLinearized(long docPtr);
+
+    private native int nativeStreamingGetFirstPageNum(long docPtr);
+
+    private native long nativeStreamingGetReceivedBytes(long docPtr);
+
+    private native long[] nativeStreamingTakeRequestedRanges(long docPtr);
+
     private native long nativeLoadPage(long docPtr, int pageIndex);
 
     private native long[] nativeLoadPages(long docPtr, int fromIndex, int toIndex);
@@ -71,35 +111,45 @@ public class PdfiumCore {
 
     //private native long nativeGetNativeWindow(Surface surface);
     //private native void nativeRenderPage(long pagePtr, long nativeWindowPtr);
-    private native void nativeRenderPage(long pagePtr, Surface surface, int dpi,
+    private native void nativeRenderPage(long pagePtr, long formPtr, Surface surface, int dpi,
                                          int startX, int startY,
                                          int drawSizeHor, int drawSizeVer,
                                          boolean renderAnnot);
 
-    private native void nativeRenderPageBitmap(long pagePtr, Bitmap bitmap, int dpi,
+    private native boolean nativeRenderPageBitmap(long pagePtr, long formPtr, Bitmap bitmap, int dpi,
                                                int startX, int startY,
                                                int drawSizeHor, int drawSizeVer,
-                                               boolean renderAnnot);
+                                               boolean renderAnnot, boolean grayscale);
 
-    private native String nativeGetDocumentMetaText(long docPtr, String tag);
+    private native long nativeRenderPageBitmapStart(long pagePtr, long formPtr, int width, int height,
+                                                    boolean rgb565,
+                                                    int startX, int startY,
+                                                    int drawSizeHor, int drawSizeVer,
+                                                    boolean renderAnnot, int budgetMillis);
 
-    private native Long nativeGetFirstChildBookmark(long docPtr, Long bookmarkPtr);
+    private native int nativeRenderPageContinue(long renderPtr, int budgetMillis);
 
-    private native Long nativeGetSiblingBookmark(long docPtr, long bookmarkPtr);
+    private native long nativeInitFormFill(long docPtr);
 
-    private native String nativeGetBookmarkTitle(long bookmarkPtr);
+    private native int nativeFlattenPage(long pagePtr);
 
-    private native long nativeGetBookmarkDestIndex(long docPtr, long bookmarkPtr);
+    private native int nativeRenderPageGetStatus(long renderPtr);
 
-    private native Size nativeGetPageSizeByIndex(long docPtr, int pageIndex, int dpi);
+    private native void nativeRenderPageCancel(long renderPtr);
+
+    private native boolean nativeRenderPageCopyToBitmap(long renderPtr, Bitmap bitmap);
+
+    private native void nativeRenderPageClose(long renderPtr, boolean pageOpened);
 
-    private native long[] nativeGetPageLinks(long pagePtr);
+    private native String nativeGetDocumentMetaText(long docPtr, String tag);
+
+    private native Outline nativeGetOutline(long docPtr, long bookmarkPtr, int maxDepth);
 
-    private native Integer nativeGetDestPageIndex(long docPtr, long linkPtr);
+    private native Size nativeGetPageSizeByIndex(long docPtr, int pageIndex, int dpi);
 
-    private native String nativeGetLinkURI(long docPtr, long linkPtr);
+    private native float[] nativeGetAllPageSizes(long docPtr);
 
-    private native RectF nativeGetLinkRect(long linkPtr);
+    private native PageLinks nativeGetPageLinksPacked(long docPtr, long pagePtr, long textPagePtr);
 
     private native Point nativePageCoordsToDevice(long pagePtr, int startX, int startY, int sizeX,
                                                   int sizeY, int rotate, double pageX, double pageY);
@@ -120,10 +170,17 @@ public class PdfiumCore {
 
     private native int nativeTextGetText(long textPagePtr, int start_index, int count, short[] result);
 
+    private native String nativeTextGetTextString(long textPagePtr, int start_index, int count);
+
     private native int nativeTextGetUnicode(long textPagePtr, int index);
 
     private native double[] nativeTextGetCharBox(long textPagePtr, int index);
 
+    private native float[] nativeTextGetCharBoxes(long textPagePtr);
+
+    private native boolean nativeTextGetLayout(long textPagePtr, int[] unicodes, FloatBuffer boxes,
+                                               float[] fontSizes);
+
     private native int nativeTextGetCharIndexAtPos(long textPagePtr, double x, double y, double xTolerance, double yTolerance);
 
     private native int nativeTextCountRects(long textPagePtr, int start_index, int count);
@@ -134,6 +191,8 @@ public class PdfiumCore {
 
     private native int nativeTextGetBoundedText(long textPagePtr, double left, double top, double right, double bottom, short[] arr);
 
+    private native String nativeTextGetBoundedTextString(long textPagePtr, double left, double top, double right, double bottom);
+
 
     ///////////////////////////////////////
     // PDF Search API
@@ -151,11 +210,60 @@ public class PdfiumCore {
 
     private native int nativeCountSearchResult(long searchHandlePtr);
 
+    private native int[] nativeSearchAll(long textPagePtr, String query, boolean matchCase,
+                                         boolean matchWholeWord, int maxHits);
+
+    private native float[] nativeTextGetRectsForRanges(long textPagePtr, int[] ranges, int[] rectCounts);
 
-    /* synchronize native methods */
+
+    /*
+     * Synchronize native methods. PDFium keeps process-wide state shared by all documents (font mapper,
+     * page and module caches, allocators), so every FPDF and FORM call is made with this lock held.
+     * Document locks guard only Java-side state of a document and are always taken before this lock.
+     */
     private static final Object lock = new Object();
     private static Field mFdField = null;
     private int mCurrentDpi;
+    /* temporary copies of documents saved to streams, see saveAs */
+    private final File mSpoolDir;
+
+    public static final int DEFAULT_READ_CACHE_BLOCK_SIZE = 16 * 1024;
+    public static final int DEFAULT_READ_CACHE_MAX_BLOCKS = 64;
+    public static final int DEFAULT_READ_CACHE_READ_AHEAD_BLOCKS = 4;
+
+    /** Page could not be flattened, see {@link #flattenPage(PdfDocument, int)} */
+    public static final int FLATTEN_FAIL = 0;
+    /** Annotations of the page were merged into its content */
+    public static final int FLATTEN_SUCCESS = 1;
+    /** Page has no annotations which could be flattened */
+    public static final int FLATTEN_NOTHING_TO_DO = 2;
+
+    /** Default limit of pages kept open per document, see {@link #setMaxOpenPages(PdfDocument, int)} */
+    public static final int DEFAULT_MAX_OPEN_PAGES = 32;
+    /** Default limit of text pages kept open, see {@link #setMaxOpenTextPages(PdfDocument, int)} */
+    public static final int DEFAULT_MAX_OPEN_TEXT_PAGES = 16;
+
+    private final HandleCache.Closer mPageCloser = new HandleCache.Closer() {
+        @Override
+        public void close(long ptr) {
+            synchronized (lock) {
+                nativeClosePage(ptr);
+            }
+        }
+    };
+
+    private final HandleCache.Closer mTextPageCloser = new HandleCache.Closer() {
+        @Override
+        public void close(long ptr) {
+            synchronized (lock) {
+                nativeCloseTextPage(ptr);
+            }
+        }
+    };
+
+    private int mReadCacheBlockSize = DEFAULT_READ_CACHE_BLOCK_SIZE;
+    private int mReadCacheMaxBlocks = DEFAULT_READ_CACHE_MAX_BLOCKS;
+    private int mReadCacheReadAheadBlocks = DEFAULT_READ_CACHE_READ_AHEAD_BLOCKS;
 
     public static int getNumFd(ParcelFileDescriptor fdObj) {
         try {
@@ -175,9 +283,24 @@ public class PdfiumCore {
     }
 
 
+    /**
+     * Use installed fonts from the index for fonts not embedded in documents, instead of PDFium's
+     * own font enumeration. Fonts are shared by all documents. Can be installed only once per process.
+     * Call it before the first document is opened, otherwise it takes effect after all open
+     * documents are closed.
+     *
+     * @return false if an index was installed before
+     */
+    public static boolean setSystemFontIndex(SystemFontIndex index) {
+        synchronized (lock) {
+            return nativeSetSystemFonts(index.files, index.families, index.faceData);
+        }
+    }
+
     /** Context needed to get screen density */
     public PdfiumCore(Context ctx) {
         mCurrentDpi = ctx.getResources().getDisplayMetrics().densityDpi;
+        mSpoolDir = ctx.getCacheDir();
         Log.d(TAG, "Starting PdfiumAndroid " + BuildConfig.VERSION_NAME);
     }
 
@@ -191,12 +314,30 @@ public class PdfiumCore {
         PdfDocument document = new PdfDocument();
         document.parcelFileDescriptor = fd;
         synchronized (lock) {
-            document.mNativeDocPtr = nativeOpenDocument(getNumFd(fd), password);
+            document.mNativeDocPtr = nativeOpenDocument(getNumFd(fd), password,
+                    mReadCacheBlockSize, mReadCacheMaxBlocks, mReadCacheReadAheadBlocks);
         }
 
         return document;
     }
 
+    /**
+     * Configure read cache of documents opened from {@link ParcelFileDescriptor} afterwards.
+     * Blocks are rounded up to a multiple of memory page size.
+     *
+     * @param blockSize       size of a cached block in bytes
+     * @param maxBlocks       maximum number of cached blocks per document, 0 disables the cache
+     * @param readAheadBlocks number of blocks read in advance when the file is read sequentially
+     */
+    public void setReadCacheConfig(int blockSize, int maxBlocks, int readAheadBlocks) {
+        if (blockSize <= 0 || maxBlocks < 0 || readAheadBlocks < 0) {
+            throw new IllegalArgumentException("Invalid read cache config");
+        }
+        mReadCacheBlockSize = blockSize;
+        mReadCacheMaxBlocks = maxBlocks;
+        mReadCacheReadAheadBlocks = readAheadBlocks;
+    }
+
     /** Create new document from bytearray */
     public PdfDocument newDocument(byte[] data) throws IOException {
         return newDocument(data, null);
@@ -211,38 +352,215 @@ public class PdfiumCore {
         return document;
     }
 
+    /**
+     * Create new document from direct {@link ByteBuffer}, without copying its content.
+     * Bytes between position and limit of the buffer are used. Buffer is referenced by
+     * the document and must not be modified until the document is closed.
+     */
+    public PdfDocument newDocument(ByteBuffer buffer) throws IOException {
+        return newDocument(buffer, null);
+    }
+
+    /** Create new document from direct {@link ByteBuffer} with password */
+    public PdfDocument newDocument(ByteBuffer buffer, String password) throws IOException {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer must be direct");
+        }
+        PdfDocument document = new PdfDocument();
+        synchronized (lock) {
+            document.mNativeDocPtr = nativeOpenByteBufferDocument(buffer, buffer.position(),
+                    buffer.remaining(), password);
+            document.sourceBuffer = buffer;
+        }
+        return document;
+    }
+
+    /**
+     * Create new document from file mapped to memory. File is not copied, pages are read by
+     * the system on demand and the mapping is released when the document is closed.
+     */
+    public PdfDocument newDocument(File file) throws IOException {
+        return newDocument(file, null);
+    }
+
+    /** Create new document from file mapped to memory with password */
+    public PdfDocument newDocument(File file, String password) throws IOException {
+        PdfDocument document = new PdfDocument();
+        ParcelFileDescriptor fd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        try {
+            synchronized (lock) {
+                document.mNativeDocPtr = nativeOpenMappedDocument(getNumFd(fd), password);
+            }
+        } finally {
+            // mapping stays valid after the descriptor is closed
+            fd.close();
+        }
+        return document;
+    }
+
+    /**
+     * Create document which is loaded from data arriving progressively.
+     * See {@link StreamingPdfDocument} for usage.
+     *
+     * @param fileLength length of the whole file in bytes
+     */
+    public StreamingPdfDocument newStreamingDocument(long fileLength) {
+        StreamingPdfDocument document = new StreamingPdfDocument(this, fileLength);
+        synchronized (lock) {
+            document.mNativeDocPtr = nativeStreamingCreate(fileLength);
+        }
+        return document;
+    }
+
+    /* StreamingPdfDocument calls these with document lock held */
+
+    /*package*/ void streamingAppend(StreamingPdfDocument doc, long position, byte[] data,
+                                     int offset, int length) {
+        synchronized (lock) {
+            nativeStreamingAppend(doc.mNativeDocPtr, position, data, offset, length);
+        }
+    }
+
+    /*package*/ int streamingIsDocAvail(StreamingPdfDocument doc, String password) {
+        synchronized (lock) {
+            return nativeStreamingIsDocAvail(doc.mNativeDocPtr, password);
+        }
+    }
+
+    /*package*/ int streamingIsPageAvail(StreamingPdfDocument doc, int pageIndex) {
+        synchronized (lock) {
+            return nativeStreamingIsPageAvail(doc.mNativeDocPtr, pageIndex);
+        }
+    }
+
+    /*package*/ int streamingIsLinearized(StreamingPdfDocument doc) {
+        synchronized (lock) {
+            return nativeStreamingIsLinearized(doc.mNativeDocPtr);
+        }
+    }
+
+    /*package*/ int streamingGetFirstPageNum(StreamingPdfDocument doc) {
+        synchronized (lock) {
+            return nativeStreamingGetFirstPageNum(doc.mNativeDocPtr);
+        }
+    }
+
+    /*package*/ long streamingGetReceivedBytes(StreamingPdfDocument doc) {
+        synchronized (lock) {
+            return nativeStreamingGetReceivedBytes(doc.mNativeDocPtr);
+        }
+    }
+
+    /*package*/ long[] streamingTakeRequestedRanges(StreamingPdfDocument doc) {
+        synchronized (lock) {
+            return nativeStreamingTakeRequestedRanges(doc.mNativeDocPtr);
+        }
+    }
+
     /** Get total numer of pages in document */
     public int getPageCount(PdfDocument doc) {
-        synchronized (lock) {
-            return nativeGetPageCount(doc.mNativeDocPtr);
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                return nativeGetPageCount(doc.mNativeDocPtr);
+            }
         }
     }
 
-    /** Open page and store native pointer in {@link PdfDocument} */
+    /**
+     * Get file read statistics of a document opened from {@link ParcelFileDescriptor}.
+     *
+     * @return statistics or null if document was loaded from memory
+     */
+    public PdfDocument.ReadStats getReadStats(PdfDocument doc) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                long[] stats = nativeGetReadStats(doc.mNativeDocPtr);
+                if (stats == null) {
+                    return null;
+                }
+                PdfDocument.ReadStats readStats = new PdfDocument.ReadStats();
+                readStats.requests = stats[0];
+                readStats.syscalls = stats[1];
+                readStats.bytesRead = stats[2];
+                readStats.blockHits = stats[3];
+                readStats.blockMisses = stats[4];
+                return readStats;
+            }
+        }
+    }
+
+    /**
+     * Open page and store native pointer in {@link PdfDocument}. Already opened page is not opened again.
+     * <p>
+     * Document keeps at most {@link #setMaxOpenPages(PdfDocument, int)} pages open, least recently
+     * used pages are closed and opened again when they are accessed.
+     */
     public long openPage(PdfDocument doc, int pageIndex) {
         long pagePtr;
-        synchronized (lock) {
-            pagePtr = nativeLoadPage(doc.mNativeDocPtr, pageIndex);
-            doc.mNativePagesPtr.put(pageIndex, pagePtr);
-            return pagePtr;
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                Long opened = doc.mNativePagesPtr.get(pageIndex);
+                if (opened != null) {
+                    return opened;
+                }
+                pagePtr = nativeLoadPage(doc.mNativeDocPtr, pageIndex);
+                doc.mNativePagesPtr.put(pageIndex, pagePtr, mPageCloser);
+                return pagePtr;
+            }
         }
 
     }
 
-    /** Open range of pages and store native pointers in {@link PdfDocument} */
+    /**
+     * Open range of pages and store native pointers in {@link PdfDocument}.
+     * Range must not be larger than the open pages limit, otherwise pages of the range would close
+     * each other, see {@link #setMaxOpenPages(PdfDocument, int)}.
+     */
     public long[] openPage(PdfDocument doc, int fromIndex, int toIndex) {
         long[] pagesPtr;
-        synchronized (lock) {
-            pagesPtr = nativeLoadPages(doc.mNativeDocPtr, fromIndex, toIndex);
-            int pageIndex = fromIndex;
-            for (long page : pagesPtr) {
-                if (pageIndex > toIndex) break;
-                doc.mNativePagesPtr.put(pageIndex, page);
-                pageIndex++;
+        synchronized (doc.lock) {
+            checkRangeSize(doc.mNativePagesPtr, fromIndex, toIndex);
+            synchronized (lock) {
+                pagesPtr = nativeLoadPages(doc.mNativeDocPtr, fromIndex, toIndex);
+                int pageIndex = fromIndex;
+                try {
+                    for (int i = 0; i < pagesPtr.length && pageIndex <= toIndex; i++, pageIndex++) {
+                        // pages of the range must not be closed by the limit while it is being filled
+                        doc.mNativePagesPtr.pin(pageIndex);
+                        Long opened = doc.mNativePagesPtr.get(pageIndex);
+                        if (opened != null) {
+                            nativeClosePage(pagesPtr[i]);
+                            pagesPtr[i] = opened;
+                        } else {
+                            doc.mNativePagesPtr.put(pageIndex, pagesPtr[i], mPageCloser);
+                        }
+                    }
+                } finally {
+                    for (int i = fromIndex; i < pageIndex; i++) {
+                        doc.mNativePagesPtr.unpin(i);
+                    }
+                }
+
+                return pagesPtr;
             }
+        }
+    }
+
+    private static void checkRangeSize(HandleCache cache, int fromIndex, int toIndex) {
+        int maxHandles = cache.getMaxHandles();
+        if (maxHandles > 0 && toIndex - fromIndex + 1 > maxHandles) {
+            throw new IllegalArgumentException("Range of " + (toIndex - fromIndex + 1)
+                    + " pages is larger than the limit of " + maxHandles + " open pages");
+        }
+    }
 
-            return pagesPtr;
+    /** Get pointer of opened page, opening it again if it was closed by the open pages limit */
+    private Long ensurePage(PdfDocument doc, int pageIndex) {
+        Long pagePtr = doc.mNativePagesPtr.get(pageIndex);
+        if (pagePtr == null && doc.mNativePagesPtr.isEvicted(pageIndex)) {
+            pagePtr = openPage(doc, pageIndex);
         }
+        return pagePtr;
     }
 
     /**
@@ -250,12 +568,14 @@ public class PdfiumCore {
      * This method requires page to be opened.
      */
     public int getPageWidth(PdfDocument doc, int index) {
-        synchronized (lock) {
-            Long pagePtr;
-            if ((pagePtr = doc.mNativePagesPtr.get(index)) != null) {
-                return nativeGetPageWidthPixel(pagePtr, mCurrentDpi);
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                Long pagePtr;
+                if ((pagePtr = ensurePage(doc, index)) != null) {
+                    return nativeGetPageWidthPixel(pagePtr, mCurrentDpi);
+                }
+                return 0;
             }
-            return 0;
         }
     }
 
@@ -264,12 +584,14 @@ public class PdfiumCore {
      * This method requires page to be opened.
      */
     public int getPageHeight(PdfDocument doc, int index) {
-        synchronized (lock) {
-            Long pagePtr;
-            if ((pagePtr = doc.mNativePagesPtr.get(index)) != null) {
-                return nativeGetPageHeightPixel(pagePtr, mCurrentDpi);
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                Long pagePtr;
+                if ((pagePtr = ensurePage(doc, index)) != null) {
+                    return nativeGetPageHeightPixel(pagePtr, mCurrentDpi);
+                }
+                return 0;
             }
-            return 0;
         }
     }
 
@@ -278,12 +600,14 @@ public class PdfiumCore {
      * This method requires page to be opened.
      */
     public int getPageWidthPoint(PdfDocument doc, int index) {
-        synchronized (lock) {
-            Long pagePtr;
-            if ((pagePtr = doc.mNativePagesPtr.get(index)) != null) {
-                return nativeGetPageWidthPoint(pagePtr);
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                Long pagePtr;
+                if ((pagePtr = ensurePage(doc, index)) != null) {
+                    return nativeGetPageWidthPoint(pagePtr);
+                }
+                return 0;
             }
-            return 0;
         }
     }
 
@@ -292,23 +616,73 @@ public class PdfiumCore {
      * This method requires page to be opened.
      */
     public int getPageHeightPoint(PdfDocument doc, int index) {
-        synchronized (lock) {
-            Long pagePtr;
-            if ((pagePtr = doc.mNativePagesPtr.get(index)) != null) {
-                return nativeGetPageHeightPoint(pagePtr);
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                Long pagePtr;
+                if ((pagePtr = ensurePage(doc, index)) != null) {
+                    return nativeGetPageHeightPoint(pagePtr);
+                }
+                return 0;
             }
-            return 0;
         }
     }
 
     /**
      * Get size of page in pixels.<br>
-     * This method does not require given page to be opened.
+     * This method does not require given page to be opened. Result is the same as the size of the page
+     * in {@link #getAllPageSizes(PdfDocument, int)} for {@link #getCurrentDpi()}.
      */
     public Size getPageSize(PdfDocument doc, int index) {
-        synchronized (lock) {
-            return nativeGetPageSizeByIndex(doc.mNativeDocPtr, index, mCurrentDpi);
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                return nativeGetPageSizeByIndex(doc.mNativeDocPtr, index, mCurrentDpi);
+            }
+        }
+    }
+
+    /**
+     * Get sizes of all pages in PostScript points (1/72th of an inch), read with a single native call.
+     * Result is cached in the document, so only the first call is expensive.
+     * This method does not require pages to be opened.
+     *
+     * @return new array of (width, height) pairs, page index i at positions 2*i and 2*i+1
+     */
+    public float[] getAllPageSizesPoint(PdfDocument doc) {
+        synchronized (doc.lock) {
+            return pageSizesPoint(doc).clone();
+        }
+    }
+
+    /**
+     * Get sizes of all pages in pixels for given dpi.
+     * This method does not require pages to be opened.
+     *
+     * @return array of (width, height) pairs, page index i at positions 2*i and 2*i+1
+     */
+    public int[] getAllPageSizes(PdfDocument doc, int dpi) {
+        synchronized (doc.lock) {
+            float[] sizes = pageSizesPoint(doc);
+            int[] result = new int[sizes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                result[i] = toPixels(sizes[i], dpi);
+            }
+            return result;
+        }
+    }
+
+    /** Cached page sizes in points, read on first use. Document lock must be held. */
+    private float[] pageSizesPoint(PdfDocument doc) {
+        if (doc.mPageSizesPt == null) {
+            synchronized (lock) {
+                doc.mPageSizesPt = nativeGetAllPageSizes(doc.mNativeDocPtr);
+            }
         }
+        return doc.mPageSizesPt;
+    }
+
+    /** Same rounding as native getPageSize, see nativeGetPageSizeByIndex */
+    private static int toPixels(float points, int dpi) {
+        return (int) (points * dpi / 72.0);
     }
 
     /**
@@ -327,21 +701,87 @@ public class PdfiumCore {
     public void renderPage(PdfDocument doc, Surface surface, int pageIndex,
                            int startX, int startY, int drawSizeX, int drawSizeY,
                            boolean renderAnnot) {
-        synchronized (lock) {
-            try {
-                //nativeRenderPage(doc.mNativePagesPtr.get(pageIndex), surface, mCurrentDpi);
-                nativeRenderPage(doc.mNativePagesPtr.get(pageIndex), surface, mCurrentDpi,
-                        startX, startY, drawSizeX, drawSizeY, renderAnnot);
-            } catch (NullPointerException e) {
-                Log.e(TAG, "mContext may be null");
-                e.printStackTrace();
-            } catch (Exception e) {
-                Log.e(TAG, "Exception throw from native");
-                e.printStackTrace();
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                doc.abortRenderTask(pageIndex);
+                try {
+                    //nativeRenderPage(doc.mNativePagesPtr.get(pageIndex), surface, mCurrentDpi);
+                    nativeRenderPage(ensurePage(doc, pageIndex), getFormHandle(doc, renderAnnot), surface, mCurrentDpi,
+                            startX, startY, drawSizeX, drawSizeY, renderAnnot);
+                } catch (NullPointerException e) {
+                    Log.e(TAG, "mContext may be null");
+                    e.printStackTrace();
+                } catch (Exception e) {
+                    Log.e(TAG, "Exception throw from native");
+                    e.printStackTrace();
+                }
             }
         }
     }
 
+    /**
+     * Merge appearances of annotations and form fields of the page into its content, so they are
+     * no longer evaluated on every render. Page is opened if needed and loaded again after flattening,
+     * renders started afterwards use the flattened page. Text page and search of the page are released,
+     * text is read from the flattened page on next access. Only the document in memory is changed,
+     * but {@link #saveAs(PdfDocument, OutputStream)} then writes the flattened page.
+     * Flattened annotations are no longer interactive.
+     *
+     * @return {@link #FLATTEN_SUCCESS}, {@link #FLATTEN_NOTHING_TO_DO} or {@link #FLATTEN_FAIL},
+     * also when the flattened page cannot be loaded again, the page is then left closed
+     */
+    public int flattenPage(PdfDocument doc, int pageIndex) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                doc.abortRenderTask(pageIndex);
+                long pagePtr = openPage(doc, pageIndex);
+                int result = nativeFlattenPage(pagePtr);
+                if (result == FLATTEN_SUCCESS) {
+                    // loaded page and text page keep the parsed content from before flattening
+                    releaseTextInfo(doc, pageIndex);
+                    doc.mSpatialIndexes.remove(pageIndex);
+                    doc.mPageLinks.remove(pageIndex);
+                    doc.mNativePagesPtr.remove(pageIndex);
+                    nativeClosePage(pagePtr);
+                    long flattenedPtr;
+                    try {
+                        flattenedPtr = nativeLoadPage(doc.mNativeDocPtr, pageIndex);
+                    } catch (IllegalStateException e) {
+                        Log.e(TAG, "Cannot load flattened page " + pageIndex, e);
+                        return FLATTEN_FAIL;
+                    }
+                    doc.mNativePagesPtr.put(pageIndex, flattenedPtr, mPageCloser);
+                }
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Draw form fields (AcroForm widgets) with their current values when the document is rendered
+     * with annotations. Fields are drawn by the PDFium form filler in a second pass over the rendered page.
+     * <p>
+     * Off by default, so documents without forms never pay for the form fill environment and
+     * per-page form views. Enable it for documents known to contain forms. Bitmaps cached before
+     * the change are not updated.
+     */
+    public void setRenderForms(PdfDocument doc, boolean renderForms) {
+        synchronized (doc.lock) {
+            doc.mRenderForms = renderForms;
+        }
+    }
+
+    /** Form fill environment used for the render, created on first use, 0 if there is no form pass */
+    private long getFormHandle(PdfDocument doc, boolean renderAnnot) {
+        if (!renderAnnot || !doc.mRenderForms) {
+            return 0;
+        }
+        if (doc.mNativeFormPtr == 0) {
+            doc.mNativeFormPtr = nativeInitFormFill(doc.mNativeDocPtr);
+        }
+        return doc.mNativeFormPtr;
+    }
+
     /**
      * Render page fragment on {@link Bitmap}.<br>
      * Page must be opened before rendering.
@@ -351,10 +791,12 @@ public class PdfiumCore {
      * <li>ARGB_8888 - best quality, high memory usage, higher possibility of OutOfMemoryError
      * <li>RGB_565 - little worse quality, twice less memory usage
      * </ul>
+     *
+     * @return false if the page could not be rendered, the bitmap content is undefined then
      */
-    public void renderPageBitmap(PdfDocument doc, Bitmap bitmap, int pageIndex,
-                                 int startX, int startY, int drawSizeX, int drawSizeY) {
-        renderPageBitmap(doc, bitmap, pageIndex, startX, startY, drawSizeX, drawSizeY, false);
+    public boolean renderPageBitmap(PdfDocument doc, Bitmap bitmap, int pageIndex,
+                                    int startX, int startY, int drawSizeX, int drawSizeY) {
+        return renderPageBitmap(doc, bitmap, pageIndex, startX, startY, drawSizeX, drawSizeY, false);
     }
 
     /**
@@ -362,112 +804,485 @@ public class PdfiumCore {
      * Page must be opened before rendering.
      * <p>
      * For more info see {@link PdfiumCore#renderPageBitmap(PdfDocument, Bitmap, int, int, int, int, int)}
+     *
+     * @return false if the page could not be rendered
      */
-    public void renderPageBitmap(PdfDocument doc, Bitmap bitmap, int pageIndex,
-                                 int startX, int startY, int drawSizeX, int drawSizeY,
-                                 boolean renderAnnot) {
-        synchronized (lock) {
-            try {
-                nativeRenderPageBitmap(doc.mNativePagesPtr.get(pageIndex), bitmap, mCurrentDpi,
-                        startX, startY, drawSizeX, drawSizeY, renderAnnot);
-            } catch (NullPointerException e) {
-                Log.e(TAG, "mContext may be null");
-                e.printStackTrace();
-            } catch (Exception e) {
-                Log.e(TAG, "Exception throw from native");
-                e.printStackTrace();
+    public boolean renderPageBitmap(PdfDocument doc, Bitmap bitmap, int pageIndex,
+                                    int startX, int startY, int drawSizeX, int drawSizeY,
+                                    boolean renderAnnot) {
+        return renderPageBitmap(doc, bitmap, pageIndex, startX, startY, drawSizeX, drawSizeY, renderAnnot, false);
+    }
+
+    /**
+     * Render page fragment on {@link Bitmap}, optionally in grayscale.
+     * Grayscale output is cheaper to look at in small sizes, e.g. thumbnails.
+     * <p>
+     * For more info see {@link PdfiumCore#renderPageBitmap(PdfDocument, Bitmap, int, int, int, int, int)}
+     *
+     * @return false if the page could not be rendered
+     */
+    public boolean renderPageBitmap(PdfDocument doc, Bitmap bitmap, int pageIndex,
+                                    int startX, int startY, int drawSizeX, int drawSizeY,
+                                    boolean renderAnnot, boolean grayscale) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                doc.abortRenderTask(pageIndex);
+                try {
+                    return nativeRenderPageBitmap(ensurePage(doc, pageIndex), getFormHandle(doc, renderAnnot), bitmap,
+                            mCurrentDpi,
+                            startX, startY, drawSizeX, drawSizeY, renderAnnot, grayscale);
+                } catch (NullPointerException e) {
+                    Log.e(TAG, "mContext may be null");
+                    e.printStackTrace();
+                } catch (Exception e) {
+                    Log.e(TAG, "Exception throw from native");
+                    e.printStackTrace();
+                }
+                return false;
             }
         }
     }
 
+    /**
+     * Render page fragment into a bitmap of given size taken from the pool instead of allocating
+     * a new one for every render. Release the bitmap to the pool once it is no longer drawn.
+     * <p>
+     * For more info see {@link PdfiumCore#renderPageBitmap(PdfDocument, Bitmap, int, int, int, int, int)}
+     *
+     * @return rendered bitmap, owned by the caller, or null if the page could not be rendered
+     */
+    public Bitmap renderPageBitmap(PdfDocument doc, BitmapPool pool, int width, int height,
+                                   Bitmap.Config config, int pageIndex, int startX, int startY,
+                                   int drawSizeX, int drawSizeY, boolean renderAnnot) {
+        Bitmap bitmap = pool.acquire(width, height, config);
+        if (!renderPageBitmap(doc, bitmap, pageIndex, startX, startY, drawSizeX, drawSizeY, renderAnnot)) {
+            pool.release(bitmap);
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Create task rendering page fragment on {@link Bitmap} progressively, in time slices.
+     * Page is opened on first step of the task if needed. Parameters have the same meaning as in
+     * {@link PdfiumCore#renderPageBitmap(PdfDocument, Bitmap, int, int, int, int, int, boolean)}.
+     */
+    public RenderTask newRenderTask(PdfDocument doc, Bitmap bitmap, int pageIndex,
+                                    int startX, int startY, int drawSizeX, int drawSizeY,
+                                    boolean renderAnnot) {
+        return new RenderTask(this, doc, bitmap, pageIndex, startX, startY, drawSizeX, drawSizeY,
+                renderAnnot);
+    }
+
+    /**
+     * Create progressive render task with the target bitmap of given size taken from the pool.
+     * Release {@link RenderTask#getBitmap()} to the pool once it is no longer drawn, also when
+     * the task failed or was cancelled.
+     */
+    public RenderTask newRenderTask(PdfDocument doc, BitmapPool pool, int width, int height,
+                                    Bitmap.Config config, int pageIndex, int startX, int startY,
+                                    int drawSizeX, int drawSizeY, boolean renderAnnot) {
+        return newRenderTask(doc, pool.acquire(width, height, config), pageIndex, startX, startY,
+                drawSizeX, drawSizeY, renderAnnot);
+    }
+
+    /*package*/ long startRenderNative(PdfDocument doc, long pagePtr, Bitmap bitmap, int startX, int startY,
+                                       int drawSizeX, int drawSizeY, boolean renderAnnot,
+                                       int budgetMillis) {
+        synchronized (lock) {
+            return nativeRenderPageBitmapStart(pagePtr, getFormHandle(doc, renderAnnot),
+                    bitmap.getWidth(), bitmap.getHeight(),
+                    bitmap.getConfig() == Bitmap.Config.RGB_565, startX, startY, drawSizeX, drawSizeY,
+                    renderAnnot, budgetMillis);
+        }
+    }
+
+    /*package*/ int continueRenderNative(long renderPtr, int budgetMillis) {
+        synchronized (lock) {
+            return nativeRenderPageContinue(renderPtr, budgetMillis);
+        }
+    }
+
+    /*package*/ int getRenderStatusNative(long renderPtr) {
+        synchronized (lock) {
+            return nativeRenderPageGetStatus(renderPtr);
+        }
+    }
+
+    /* only raises the cancel flag checked by PDFium, so it does not wait for the running slice */
+    /*package*/ void cancelRenderNative(long renderPtr) {
+        nativeRenderPageCancel(renderPtr);
+    }
+
+    /*package*/ boolean copyRenderNative(long renderPtr, Bitmap bitmap) {
+        synchronized (lock) {
+            return nativeRenderPageCopyToBitmap(renderPtr, bitmap);
+        }
+    }
+
+    /*package*/ void closeRenderNative(long renderPtr, boolean pageOpened) {
+        synchronized (lock) {
+            nativeRenderPageClose(renderPtr, pageOpened);
+        }
+    }
+
     /** Release native resources and opened file */
     public void closeDocument(PdfDocument doc) {
-        synchronized (lock) {
-            for (Integer index : doc.mNativePagesPtr.keySet()) {
-                nativeClosePage(doc.mNativePagesPtr.get(index));
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                closePages(doc);
+
+                nativeCloseDocument(doc.mNativeDocPtr);
+                doc.mNativeFormPtr = 0;
+
+                if (doc.parcelFileDescriptor != null) { //if document was loaded from file
+                    try {
+                        doc.parcelFileDescriptor.close();
+                    } catch (IOException e) {
+                    /* ignore */
+                    }
+                    doc.parcelFileDescriptor = null;
+                }
+                doc.sourceBuffer = null;
             }
-            doc.mNativePagesPtr.clear();
+        }
+    }
+
+    /**
+     * Write complete copy of the document to the stream. Saved bytes pass through a fixed
+     * {@link DocumentWriter#BUFFER_SIZE} buffer, the whole file is never held in memory.
+     * Stream is not closed.
+     * <p>
+     * PDFium writes while the process-wide lock is held, so the copy is first saved to a temporary file
+     * in the cache directory and copied to the stream after the lock is released. A slow stream, e.g.
+     * a network upload, then does not block other documents. The cache directory needs room for the file.
+     *
+     * @return number of bytes written
+     */
+    public long saveAs(PdfDocument doc, OutputStream out) throws IOException {
+        return spoolAndCopy(doc, Channels.newChannel(out));
+    }
 
-            nativeCloseDocument(doc.mNativeDocPtr);
+    /**
+     * Write complete copy of the document to the channel. Channel is not closed.
+     * <p>
+     * A {@link FileChannel} is written directly while the process-wide PDFium lock is held. Other channels
+     * get a copy of a temporary file written after the lock is released, see
+     * {@link #saveAs(PdfDocument, OutputStream)}.
+     *
+     * @return number of bytes written
+     */
+    public long saveAs(PdfDocument doc, WritableByteChannel channel) throws IOException {
+        if (channel instanceof FileChannel) {
+            return saveAs(doc, new DocumentWriter(channel));
+        }
+        return spoolAndCopy(doc, channel);
+    }
 
-            if (doc.parcelFileDescriptor != null) { //if document was loaded from file
-                try {
-                    doc.parcelFileDescriptor.close();
-                } catch (IOException e) {
-                /* ignore */
+    /** Save to a temporary file with the locks held, then copy it to the destination without them */
+    private long spoolAndCopy(PdfDocument doc, WritableByteChannel destination) throws IOException {
+        File spool = File.createTempFile("save", ".pdf", mSpoolDir);
+        try {
+            RandomAccessFile file = new RandomAccessFile(spool, "rw");
+            try {
+                FileChannel channel = file.getChannel();
+                long length = saveAs(doc, new DocumentWriter(channel));
+                long position = 0;
+                while (position < length) {
+                    position += channel.transferTo(position, length - position, destination);
                 }
-                doc.parcelFileDescriptor = null;
+                return length;
+            } finally {
+                file.close();
             }
+        } finally {
+            spool.delete();
         }
     }
 
-    /** Get metadata for given document */
-    public PdfDocument.Meta getDocumentMeta(PdfDocument doc) {
+    private long saveAs(PdfDocument doc, DocumentWriter writer) throws IOException {
+        boolean saved;
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                saved = nativeSaveAsCopy(doc.mNativeDocPtr, writer, writer.buffer, SAVE_NO_INCREMENTAL);
+            }
+        }
+        if (writer.getError() != null) {
+            throw writer.getError();
+        }
+        if (!saved) {
+            throw new IOException("Cannot save document");
+        }
+        return writer.getBytesWritten();
+    }
+
+    /**
+     * Create new empty in-memory document, e.g. a destination for {@link #importPages}.
+     * Close it with {@link #closeDocument(PdfDocument)}.
+     */
+    public PdfDocument newDocument() throws IOException {
+        PdfDocument document = new PdfDocument();
         synchronized (lock) {
-            PdfDocument.Meta meta = new PdfDocument.Meta();
-            meta.title = nativeGetDocumentMetaText(doc.mNativeDocPtr, "Title");
-            meta.author = nativeGetDocumentMetaText(doc.mNativeDocPtr, "Author");
-            meta.subject = nativeGetDocumentMetaText(doc.mNativeDocPtr, "Subject");
-            meta.keywords = nativeGetDocumentMetaText(doc.mNativeDocPtr, "Keywords");
-            meta.creator = nativeGetDocumentMetaText(doc.mNativeDocPtr, "Creator");
-            meta.producer = nativeGetDocumentMetaText(doc.mNativeDocPtr, "Producer");
-            meta.creationDate = nativeGetDocumentMetaText(doc.mNativeDocPtr, "CreationDate");
-            meta.modDate = nativeGetDocumentMetaText(doc.mNativeDocPtr, "ModDate");
+            document.mNativeDocPtr = nativeCreateDocument();
+        }
+        return document;
+    }
+
+    /**
+     * Copy pages of one document into another. Copies do not depend on the source document,
+     * which can be closed right afterwards. Locks of both documents are held, taken in the order the documents
+     * were created, so imports in opposite directions at the same time cannot deadlock.
+     *
+     * @param pageIndexes indexes of source pages in the order they should be inserted, null for all pages
+     * @param insertIndex index in the destination at which pages are inserted
+     */
+    public void importPages(PdfDocument dest, PdfDocument src, int[] pageIndexes, int insertIndex)
+            throws IOException {
+        PdfDocument first = lockedFirst(dest, src);
+        synchronized (first.lock) {
+            synchronized ((first == dest ? src : dest).lock) {
+                synchronized (lock) {
+                    String pageRange = pageIndexes != null
+                            ? toPageRange(pageIndexes, nativeGetPageCount(src.mNativeDocPtr)) : null;
+                    if (insertIndex < nativeGetPageCount(dest.mNativeDocPtr)) {
+                        // handles and caches are keyed by page index, which changes for following pages
+                        closePages(dest);
+                    }
+                    if (!nativeImportPages(dest.mNativeDocPtr, src.mNativeDocPtr, pageRange, insertIndex)) {
+                        throw new IOException("Cannot import pages " + (pageRange != null ? pageRange : ""));
+                    }
+                    dest.mPageSizesPt = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy viewer preferences (e.g. page layout, print scaling) of one document to another.
+     *
+     * @return true on success
+     */
+    public boolean copyViewerPreferences(PdfDocument dest, PdfDocument src) {
+        PdfDocument first = lockedFirst(dest, src);
+        synchronized (first.lock) {
+            synchronized ((first == dest ? src : dest).lock) {
+                synchronized (lock) {
+                    return nativeCopyViewerPreferences(dest.mNativeDocPtr, src.mNativeDocPtr);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create new in-memory document with copies of given pages, e.g. to split a document
+     * into chapters. Pages are copied in the given order. Result does not depend on the source
+     * document, save it with {@link #saveAs(PdfDocument, OutputStream)} and close it
+     * with {@link #closeDocument(PdfDocument)}.
+     *
+     * @param pageIndexes indexes of pages to copy
+     */
+    public PdfDocument extractPages(PdfDocument doc, int[] pageIndexes) throws IOException {
+        PdfDocument result = newDocument();
+        try {
+            importPages(result, doc, pageIndexes, 0);
+        } catch (IOException e) {
+            closeDocument(result);
+            throw e;
+        } catch (RuntimeException e) {
+            closeDocument(result);
+            throw e;
+        }
+        return result;
+    }
+
+    /** Of two documents, the one whose lock must be taken first when both are locked */
+    private static PdfDocument lockedFirst(PdfDocument a, PdfDocument b) {
+        return a.id <= b.id ? a : b;
+    }
+
+    /** Convert page indexes to PDFium page range, e.g. "1,3,5-7", consecutive pages are joined */
+    /*package*/ static String toPageRange(int[] pageIndexes, int pageCount) {
+        if (pageIndexes.length == 0) {
+            throw new IllegalArgumentException("No pages given");
+        }
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < pageIndexes.length) {
+            int start = pageIndexes[i];
+            if (start < 0 || start >= pageCount) {
+                throw new IndexOutOfBoundsException("Page index " + start + ", page count " + pageCount);
+            }
+            int end = start;
+            while (i + 1 < pageIndexes.length && pageIndexes[i + 1] == end + 1 && end + 1 < pageCount) {
+                end++;
+                i++;
+            }
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(start + 1);
+            if (end > start) {
+                sb.append('-').append(end + 1);
+            }
+            i++;
+        }
+        return sb.toString();
+    }
+
+    /** Close all pages, text pages and searches of the document and drop data cached per page */
+    private void closePages(PdfDocument doc) {
+        doc.abortRenderTasks();
+        for (Long searchPtr : doc.mNativeSearchHandlePtr.values()) {
+            nativeSearchStop(searchPtr);
+        }
+        doc.mNativeSearchHandlePtr.clear();
+        doc.mNativeTextPagesPtr.closeAll(mTextPageCloser);
+        doc.mNativePagesPtr.closeAll(mPageCloser);
+        doc.mSpatialIndexes.clear();
+        doc.mPageLinks.clear();
+    }
 
-            return meta;
+    /** Get metadata for given document */
+    public PdfDocument.Meta getDocumentMeta(PdfDocument doc) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                PdfDocument.Meta meta = new PdfDocument.Meta();
+                meta.title = nativeGetDocumentMetaText(doc.mNativeDocPtr, "Title");
+                meta.author = nativeGetDocumentMetaText(doc.mNativeDocPtr, "Author");
+                meta.subject = nativeGetDocumentMetaText(doc.mNativeDocPtr, "Subject");
+                meta.keywords = nativeGetDocumentMetaText(doc.mNativeDocPtr, "Keywords");
+                meta.creator = nativeGetDocumentMetaText(doc.mNativeDocPtr, "Creator");
+                meta.producer = nativeGetDocumentMetaText(doc.mNativeDocPtr, "Producer");
+                meta.creationDate = nativeGetDocumentMetaText(doc.mNativeDocPtr, "CreationDate");
+                meta.modDate = nativeGetDocumentMetaText(doc.mNativeDocPtr, "ModDate");
+
+                return meta;
+            }
         }
     }
 
     /** Get table of contents (bookmarks) for given document */
     public List<PdfDocument.Bookmark> getTableOfContents(PdfDocument doc) {
-        synchronized (lock) {
-            List<PdfDocument.Bookmark> topLevel = new ArrayList<>();
-            Long first = nativeGetFirstChildBookmark(doc.mNativeDocPtr, null);
-            if (first != null) {
-                recursiveGetBookmark(topLevel, doc, first);
+        Outline outline = getOutline(doc, 0);
+        List<PdfDocument.Bookmark> topLevel = new ArrayList<>();
+        PdfDocument.Bookmark[] bookmarks = new PdfDocument.Bookmark[outline.getCount()];
+        for (int i = 0; i < bookmarks.length; i++) {
+            PdfDocument.Bookmark bookmark = new PdfDocument.Bookmark();
+            bookmark.mNativePtr = outline.getNativePtr(i);
+            bookmark.title = outline.getTitle(i);
+            bookmark.pageIdx = outline.getPageIndex(i);
+            bookmarks[i] = bookmark;
+
+            int parent = outline.getParent(i);
+            if (parent == -1) {
+                topLevel.add(bookmark);
+            } else {
+                bookmarks[parent].getChildren().add(bookmark);
             }
-            return topLevel;
         }
+        return topLevel;
     }
 
-    private void recursiveGetBookmark(List<PdfDocument.Bookmark> tree, PdfDocument doc, long bookmarkPtr) {
-        PdfDocument.Bookmark bookmark = new PdfDocument.Bookmark();
-        bookmark.mNativePtr = bookmarkPtr;
-        bookmark.title = nativeGetBookmarkTitle(bookmarkPtr);
-        bookmark.pageIdx = nativeGetBookmarkDestIndex(doc.mNativeDocPtr, bookmarkPtr);
-        tree.add(bookmark);
-
-        Long child = nativeGetFirstChildBookmark(doc.mNativeDocPtr, bookmarkPtr);
-        if (child != null) {
-            recursiveGetBookmark(bookmark.getChildren(), doc, child);
+    /**
+     * Read document outline with a single native call.
+     *
+     * @param maxDepth number of levels to load, 0 for the whole outline
+     */
+    public Outline getOutline(PdfDocument doc, int maxDepth) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                return nativeGetOutline(doc.mNativeDocPtr, 0, maxDepth);
+            }
         }
+    }
 
-        Long sibling = nativeGetSiblingBookmark(doc.mNativeDocPtr, bookmarkPtr);
-        if (sibling != null) {
-            recursiveGetBookmark(tree, doc, sibling);
+    /**
+     * Load children of an outline entry which has {@link Outline#hasUnloadedChildren(int) unloaded children}.
+     *
+     * @param outline  outline of the same document
+     * @param index    index of the entry in the outline
+     * @param maxDepth number of levels to load below the entry, 0 for all
+     * @return outline of the entry's descendants, direct children are its top level entries
+     */
+    public Outline getOutlineChildren(PdfDocument doc, Outline outline, int index, int maxDepth) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                return nativeGetOutline(doc.mNativeDocPtr, outline.getNativePtr(index), maxDepth);
+            }
         }
     }
 
     /** Get all links from given page */
     public List<PdfDocument.Link> getPageLinks(PdfDocument doc, int pageIndex) {
-        synchronized (lock) {
-            List<PdfDocument.Link> links = new ArrayList<>();
-            Long nativePagePtr = doc.mNativePagesPtr.get(pageIndex);
-            if (nativePagePtr == null) {
-                return links;
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                PageLinks links = getPackedPageLinks(doc, pageIndex, false);
+                if (links == null) {
+                    return new ArrayList<>();
+                }
+                List<PdfDocument.Link> result = links.toLinks();
+                return links.includesWebLinks
+                        ? new ArrayList<>(result.subList(0, links.getAnnotationCount())) : result;
             }
-            long[] linkPtrs = nativeGetPageLinks(nativePagePtr);
-            for (long linkPtr : linkPtrs) {
-                Integer index = nativeGetDestPageIndex(doc.mNativeDocPtr, linkPtr);
-                String uri = nativeGetLinkURI(doc.mNativeDocPtr, linkPtr);
+        }
+    }
 
-                RectF rect = nativeGetLinkRect(linkPtr);
-                if (rect != null && (index != null || uri != null)) {
-                    links.add(new PdfDocument.Link(rect, index, uri));
+    /**
+     * Get all links of the page in packed arrays with a single native call.
+     * Result is cached in the document for a few most recently used pages.
+     * This method requires page to be opened.
+     *
+     * @param includeWebLinks also detect URLs in page text
+     * @return links of the page, null if page is not opened
+     */
+    public PageLinks getPackedPageLinks(PdfDocument doc, int pageIndex, boolean includeWebLinks) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                PageLinks links = doc.mPageLinks.get(pageIndex);
+                if (links != null && (links.includesWebLinks || !includeWebLinks)) {
+                    return links;
                 }
+                Long pagePtr = ensurePage(doc, pageIndex);
+                if (pagePtr == null) {
+                    return null;
+                }
+                long textPagePtr = 0;
+                if (includeWebLinks) {
+                    Long ptr = ensureTextPage(doc, pageIndex);
+                    textPagePtr = validPtr(ptr) ? ptr : 0;
+                }
+                links = nativeGetPageLinksPacked(doc.mNativeDocPtr, pagePtr, textPagePtr);
+                links.includesWebLinks = includeWebLinks;
+                doc.mPageLinks.put(pageIndex, links);
+                return links;
+            }
+        }
+    }
 
+    /**
+     * Get spatial index of page characters, text lines and links for hit testing without native calls.
+     * Index is built on first use and cached in the document for a few most recently used pages.
+     * Page is opened if needed.
+     *
+     * @return index of the page, null if text of the page cannot be loaded
+     */
+    public PageSpatialIndex getPageSpatialIndex(PdfDocument doc, int pageIndex) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                PageSpatialIndex index = doc.mSpatialIndexes.get(pageIndex);
+                if (index == null) {
+                    PageTextLayout layout = getPageTextLayout(doc, pageIndex);
+                    if (layout == null) {
+                        return null;
+                    }
+                    openPage(doc, pageIndex);
+                    PageLinks links = getPackedPageLinks(doc, pageIndex, true);
+                    index = new PageSpatialIndex(layout, links != null
+                            ? links.toLinks() : new ArrayList<PdfDocument.Link>());
+                    doc.mSpatialIndexes.put(pageIndex, index);
+                }
+                return index;
             }
-            return links;
         }
     }
 
@@ -488,8 +1303,12 @@ public class PdfiumCore {
      */
     public Point mapPageCoordsToDevice(PdfDocument doc, int pageIndex, int startX, int startY, int sizeX,
                                        int sizeY, int rotate, double pageX, double pageY) {
-        long pagePtr = doc.mNativePagesPtr.get(pageIndex);
-        return nativePageCoordsToDevice(pagePtr, startX, startY, sizeX, sizeY, rotate, pageX, pageY);
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                long pagePtr = ensurePage(doc, pageIndex);
+                return nativePageCoordsToDevice(pagePtr, startX, startY, sizeX, sizeY, rotate, pageX, pageY);
+            }
+        }
     }
 
     /**
@@ -512,54 +1331,83 @@ public class PdfiumCore {
 
     /**
      * Prepare information about all characters in a page.
-     * Application must call FPDFText_ClosePage to release the text page information.
+     * Text page is kept in the document until {@link #releaseTextInfo(PdfDocument, int)} or
+     * document is closed. Document keeps at most {@link #setMaxOpenTextPages(PdfDocument, int)}
+     * text pages, least recently used ones are released and loaded again when needed.
      *
      * @param pageIndex index of page.
-     * @return A handle to the text page information structure. NULL if something goes wrong.
+     * @return A handle to the text page information structure. -1 if something goes wrong.
      */
-    public long prepareTextInfo(int pageIndex) {
-        long textPagePtr;
-        textPagePtr = nativeLoadTextPage(mNativeDocPtr, pageIndex);
-        if (validPtr(textPagePtr)) {
-            mNativeTextPagesPtr.put(pageIndex, textPagePtr);
+    public long prepareTextInfo(PdfDocument doc, int pageIndex) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                Long opened = doc.mNativeTextPagesPtr.get(pageIndex);
+                if (opened != null) {
+                    return opened;
+                }
+                long textPagePtr = nativeLoadTextPage(doc.mNativeDocPtr, pageIndex);
+                if (validPtr(textPagePtr)) {
+                    doc.mNativeTextPagesPtr.put(pageIndex, textPagePtr, mTextPageCloser);
+                }
+                return textPagePtr;
+            }
         }
-        return textPagePtr;
     }
 
     /**
      * Release all resources allocated for a text page information structure.
+     * Search running on the page is stopped.
      *
      * @param pageIndex index of page.
      */
-    public void releaseTextInfo(int pageIndex) {
-        long textPagePtr;
-        textPagePtr = mNativeTextPagesPtr.get(pageIndex);
-        if (validPtr(textPagePtr)) {
-            nativeCloseTextPage(textPagePtr);
+    public void releaseTextInfo(PdfDocument doc, int pageIndex) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                stopSearchHandle(doc, pageIndex);
+                Long textPagePtr = doc.mNativeTextPagesPtr.remove(pageIndex);
+                if (validPtr(textPagePtr)) {
+                    nativeCloseTextPage(textPagePtr);
+                }
+            }
         }
     }
 
     /**
      * Prepare information about all characters in a range of pages.
-     * Application must call FPDFText_ClosePage to release the text page information.
+     * Range must not be larger than {@link #setMaxOpenTextPages(PdfDocument, int)}.
      *
      * @param fromIndex start index of page.
      * @param toIndex   end index of page.
-     * @return list of handles to the text page information structure. NULL if something goes wrong.
+     * @return list of handles to the text page information structure. -1 if something goes wrong.
+     * @see #prepareTextInfo(PdfDocument, int)
      */
-    public long[] prepareTextInfo(int fromIndex, int toIndex) {
-        long[] textPagesPtr;
-        textPagesPtr = nativeLoadTextPages(mNativeDocPtr, fromIndex, toIndex);
-        int pageIndex = fromIndex;
-        for (long page : textPagesPtr) {
-            if (pageIndex > toIndex) break;
-            if (validPtr(page)) {
-                mNativeTextPagesPtr.put(pageIndex, page);
+    public long[] prepareTextInfo(PdfDocument doc, int fromIndex, int toIndex) {
+        synchronized (doc.lock) {
+            checkRangeSize(doc.mNativeTextPagesPtr, fromIndex, toIndex);
+            synchronized (lock) {
+                long[] textPagesPtr = nativeLoadTextPages(doc.mNativeDocPtr, fromIndex, toIndex);
+                int pageIndex = fromIndex;
+                try {
+                    for (int i = 0; i < textPagesPtr.length && pageIndex <= toIndex; i++, pageIndex++) {
+                        doc.mNativeTextPagesPtr.pin(pageIndex);
+                        Long opened = doc.mNativeTextPagesPtr.get(pageIndex);
+                        if (opened != null) {
+                            if (validPtr(textPagesPtr[i])) {
+                                nativeCloseTextPage(textPagesPtr[i]);
+                            }
+                            textPagesPtr[i] = opened;
+                        } else if (validPtr(textPagesPtr[i])) {
+                            doc.mNativeTextPagesPtr.put(pageIndex, textPagesPtr[i], mTextPageCloser);
+                        }
+                    }
+                } finally {
+                    for (int i = fromIndex; i < pageIndex; i++) {
+                        doc.mNativeTextPagesPtr.unpin(i);
+                    }
+                }
+                return textPagesPtr;
             }
-            pageIndex++;
         }
-
-        return textPagesPtr;
     }
 
     /**
@@ -568,30 +1416,35 @@ public class PdfiumCore {
      * @param fromIndex start index of page.
      * @param toIndex   end index of page.
      */
-    public void releaseTextInfo(int fromIndex, int toIndex) {
-        long textPagesPtr;
-        for (int i = fromIndex; i < toIndex + 1; i++) {
-            textPagesPtr = mNativeTextPagesPtr.get(i);
-            if (validPtr(textPagesPtr)) {
-                nativeCloseTextPage(textPagesPtr);
+    public void releaseTextInfo(PdfDocument doc, int fromIndex, int toIndex) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                for (int i = fromIndex; i < toIndex + 1; i++) {
+                    releaseTextInfo(doc, i);
+                }
             }
         }
     }
 
-    private Long ensureTextPage(int pageIndex) {
-        Long ptr = mNativeTextPagesPtr.get(pageIndex);
+    /* called with doc.lock held */
+    private Long ensureTextPage(PdfDocument doc, int pageIndex) {
+        Long ptr = doc.mNativeTextPagesPtr.get(pageIndex);
         if (!validPtr(ptr)) {
-            return prepareTextInfo(pageIndex);
+            return prepareTextInfo(doc, pageIndex);
         }
         return ptr;
     }
 
-    public int countCharactersOnPage(int pageIndex) {
-        try {
-            Long ptr = ensureTextPage(pageIndex);
-            return validPtr(ptr) ? nativeTextCountChars(ptr) : 0;
-        } catch (Exception e) {
-            return 0;
+    public int countCharactersOnPage(PdfDocument doc, int pageIndex) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                try {
+                    Long ptr = ensureTextPage(doc, pageIndex);
+                    return validPtr(ptr) ? nativeTextCountChars(ptr) : 0;
+                } catch (Exception e) {
+                    return 0;
+                }
+            }
         }
     }
 
@@ -601,30 +1454,21 @@ public class PdfiumCore {
      * @param pageIndex  index of page.
      * @param startIndex Index for the start characters.
      * @param length     Number of characters to be extracted.
-     * @return Number of characters written into the result buffer, including the trailing terminator.
+     * @return extracted text or null if something goes wrong.
      */
-    public String extractCharacters(int pageIndex, int startIndex, int length) {
-        try {
-            Long ptr = ensureTextPage(pageIndex);
-            if (!validPtr(ptr)) {
-                return null;
-            }
-            short[] buf = new short[length + 1];
-
-            int r = nativeTextGetText(ptr, startIndex, length, buf);
-
-            byte[] bytes = new byte[(r - 1) * 2];
-            ByteBuffer bb = ByteBuffer.wrap(bytes);
-            bb.order(ByteOrder.LITTLE_ENDIAN);
-
-            for (int i = 0; i < r - 1; i++) {
-                short s = buf[i];
-                bb.putShort(s);
+    public String extractCharacters(PdfDocument doc, int pageIndex, int startIndex, int length) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                try {
+                    Long ptr = ensureTextPage(doc, pageIndex);
+                    if (!validPtr(ptr)) {
+                        return null;
+                    }
+                    return nativeTextGetTextString(ptr, startIndex, length);
+                } catch (Exception e) {
+                    return null;
+                }
             }
-
-            return new String(bytes, "UTF-16LE");
-        } catch (Exception e) {
-            return null;
         }
     }
 
@@ -635,12 +1479,16 @@ public class PdfiumCore {
      * @param index     Zero-based index of the character.
      * @return The Unicode of the particular character. If a character is not encoded in Unicode, the return value will be zero.
      */
-    public char extractCharacter(int pageIndex, int index) {
-        try {
-            Long ptr = ensureTextPage(pageIndex);
-            return validPtr(ptr) ? (char) nativeTextGetUnicode(ptr, index) : (char) 0;
-        } catch (Exception e) {
-            return 0;
+    public char extractCharacter(PdfDocument doc, int pageIndex, int index) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                try {
+                    Long ptr = ensureTextPage(doc, pageIndex);
+                    return validPtr(ptr) ? (char) nativeTextGetUnicode(ptr, index) : (char) 0;
+                } catch (Exception e) {
+                    return 0;
+                }
+            }
         }
     }
 
@@ -651,21 +1499,52 @@ public class PdfiumCore {
      * @param index     Zero-based index of the character.
      * @return the character position measured in PDF "user space".
      */
-    public RectF measureCharacterBox(int pageIndex, int index) {
-        try {
-            Long ptr = ensureTextPage(pageIndex);
-            if (!validPtr(ptr)) {
-                return null;
-            }
-            double[] o = nativeTextGetCharBox(ptr, index);
-            RectF r = new RectF();
-            r.left = (float) o[0];
-            r.right = (float) o[1];
-            r.bottom = (float) o[2];
-            r.top = (float) o[3];
-            return r;
-        } catch (Exception e) {
-            return null;
+    public RectF measureCharacterBox(PdfDocument doc, int pageIndex, int index) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                try {
+                    Long ptr = ensureTextPage(doc, pageIndex);
+                    if (!validPtr(ptr)) {
+                        return null;
+                    }
+                    double[] o = nativeTextGetCharBox(ptr, index);
+                    RectF r = new RectF();
+                    r.left = (float) o[0];
+                    r.right = (float) o[1];
+                    r.bottom = (float) o[2];
+                    r.top = (float) o[3];
+                    return r;
+                } catch (Exception e) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read all characters of the page with their boxes and font sizes at once. Use it instead of
+     * calling {@link #measureCharacterBox} for every character.
+     *
+     * @param pageIndex index of page.
+     * @return layout of page text, null if text of the page cannot be loaded
+     */
+    public PageTextLayout getPageTextLayout(PdfDocument doc, int pageIndex) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                Long ptr = ensureTextPage(doc, pageIndex);
+                if (!validPtr(ptr)) {
+                    return null;
+                }
+                int count = Math.max(0, nativeTextCountChars(ptr));
+                int[] unicodes = new int[count];
+                float[] fontSizes = new float[count];
+                FloatBuffer boxes = ByteBuffer.allocateDirect(count * 16)
+                        .order(ByteOrder.nativeOrder()).asFloatBuffer();
+                if (!nativeTextGetLayout(ptr, unicodes, boxes, fontSizes)) {
+                    return null;
+                }
+                return new PageTextLayout(pageIndex, unicodes, boxes, fontSizes);
+            }
         }
     }
 
@@ -679,12 +1558,17 @@ public class PdfiumCore {
      * @param yTolerance A y-axis tolerance value for character hit detection, in point unit.
      * @return The zero-based index of the character at, or nearby the point (x,y). If there is no character at or nearby the point, return value will be -1. If an error occurs, -3 will be returned.
      */
-    public int getCharacterIndex(int pageIndex, double x, double y, double xTolerance, double yTolerance) {
-        try {
-            Long ptr = ensureTextPage(pageIndex);
-            return validPtr(ptr) ? nativeTextGetCharIndexAtPos(ptr, x, y, xTolerance, yTolerance) : -1;
-        } catch (Exception e) {
-            return -1;
+    public int getCharacterIndex(PdfDocument doc, int pageIndex, double x, double y,
+                                 double xTolerance, double yTolerance) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                try {
+                    Long ptr = ensureTextPage(doc, pageIndex);
+                    return validPtr(ptr) ? nativeTextGetCharIndexAtPos(ptr, x, y, xTolerance, yTolerance) : -1;
+                } catch (Exception e) {
+                    return -1;
+                }
+            }
         }
     }
 
@@ -701,81 +1585,71 @@ public class PdfiumCore {
      * @param count     Number of characters.
      * @return texts areas count.
      */
-    public int countTextRect(int pageIndex, int charIndex, int count) {
-        try {
-            Long ptr = ensureTextPage(pageIndex);
-            return validPtr(ptr) ? nativeTextCountRects(ptr, charIndex, count) : -1;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return -1;
+    public int countTextRect(PdfDocument doc, int pageIndex, int charIndex, int count) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                try {
+                    Long ptr = ensureTextPage(doc, pageIndex);
+                    return validPtr(ptr) ? nativeTextCountRects(ptr, charIndex, count) : -1;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    return -1;
+                }
+            }
         }
     }
 
     /**
      * Get a rectangular area from the result generated by FPDFText_CountRects.
+     * Rectangles come from the last {@link #countTextRect} call for the page, use
+     * {@link #searchPage} to get rectangles of search hits in one call.
      *
      * @param pageIndex index of page.
      * @param rectIndex Zero-based index for the rectangle.
      * @return the text rectangle.
      */
-    public RectF getTextRect(int pageIndex, int rectIndex) {
-        try {
-            Long ptr = ensureTextPage(pageIndex);
-            if (!validPtr(ptr)) {
-                return null;
-            }
-            double[] o = nativeTextGetRect(ptr, rectIndex);
-            RectF r = new RectF();
-            r.left = (float) o[0];
-            r.top = (float) o[1];
-            r.right = (float) o[2];
-            r.bottom = (float) o[3];
-            return r;
-        } catch (Exception e) {
-            return null;
+    public RectF getTextRect(PdfDocument doc, int pageIndex, int rectIndex) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                try {
+                    Long ptr = ensureTextPage(doc, pageIndex);
+                    if (!validPtr(ptr)) {
+                        return null;
+                    }
+                    double[] o = nativeTextGetRect(ptr, rectIndex);
+                    RectF r = new RectF();
+                    r.left = (float) o[0];
+                    r.top = (float) o[1];
+                    r.right = (float) o[2];
+                    r.bottom = (float) o[3];
+                    return r;
+                } catch (Exception e) {
+                    return null;
+                }
+            }
         }
     }
 
     /**
      * Extract unicode text within a rectangular boundary on the page.
-     * If the buffer is too small, as much text as will fit is copied into it.
      *
      * @param pageIndex index of page.
      * @param rect      the text rectangle to extract.
-     * @return If buffer is NULL or buflen is zero, return number of characters (not bytes) of text
-     * present within the rectangle, excluding a terminating NUL.
-     * <p>
-     * Generally you should pass a buffer at least one larger than this if you want a terminating NUL,
-     * which will be provided if space is available. Otherwise, return number of characters copied
-     * into the buffer, including the terminating NUL  when space for it is available.
+     * @return text within the rectangle or null if something goes wrong.
      */
-    public String extractText(int pageIndex, RectF rect) {
-        try {
-            Long ptr = ensureTextPage(pageIndex);
-            if (!validPtr(ptr)) {
-                return null;
-            }
-
-            int length = nativeTextGetBoundedTextLength(ptr, rect.left, rect.top, rect.right, rect.bottom);
-            if (length <= 0) {
-                return null;
-            }
-
-            short[] buf = new short[length + 1];
-
-            int r = nativeTextGetBoundedText(ptr, rect.left, rect.top, rect.right, rect.bottom, buf);
-
-            byte[] bytes = new byte[(r - 1) * 2];
-            ByteBuffer bb = ByteBuffer.wrap(bytes);
-            bb.order(ByteOrder.LITTLE_ENDIAN);
-
-            for (int i = 0; i < r - 1; i++) {
-                short s = buf[i];
-                bb.putShort(s);
+    public String extractText(PdfDocument doc, int pageIndex, RectF rect) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                try {
+                    Long ptr = ensureTextPage(doc, pageIndex);
+                    if (!validPtr(ptr)) {
+                        return null;
+                    }
+                    return nativeTextGetBoundedTextString(ptr, rect.left, rect.top, rect.right, rect.bottom);
+                } catch (Exception e) {
+                    return null;
+                }
             }
-            return new String(bytes, "UTF-16LE");
-        } catch (Exception e) {
-            return null;
         }
     }
 
@@ -783,8 +1657,19 @@ public class PdfiumCore {
         return ptr != null && ptr != -1;
     }
 
+    /* stop search registered for the page, called with doc.lock held */
+    private void stopSearchHandle(PdfDocument doc, int pageIndex) {
+        Long searchPtr = doc.mNativeSearchHandlePtr.remove(pageIndex);
+        if (validPtr(searchPtr)) {
+            nativeSearchStop(searchPtr);
+            doc.mNativeTextPagesPtr.unpin(pageIndex);
+        }
+    }
+
     /**
      * A handle class for the search context. stopSearch must be called to release this handle.
+     * Only one search per page may run at a time, starting a new search for the page stops
+     * the previous one.
      *
      * @param pageIndex      index of page.
      * @param query          A unicode match pattern.
@@ -792,76 +1677,230 @@ public class PdfiumCore {
      * @param matchWholeWord match the whole word
      * @return A handle for the search context.
      */
-    public TextSearchContext newPageSearch(int pageIndex, String query, boolean matchCase, boolean matchWholeWord) {
+    public TextSearchContext newPageSearch(final PdfDocument doc, int pageIndex, String query,
+                                           boolean matchCase, boolean matchWholeWord) {
         return new FPDFTextSearchContext(pageIndex, query, matchCase, matchWholeWord) {
 
             private Long mSearchHandlePtr;
 
+            /* handle is valid only while it is registered in the document, called with doc.lock held */
+            private boolean isActive() {
+                return validPtr(mSearchHandlePtr)
+                        && mSearchHandlePtr.equals(doc.mNativeSearchHandlePtr.get(pageIndex));
+            }
+
             @Override
             public void prepareSearch() {
-
-                long textPage = prepareTextInfo(pageIndex);
-
-                if (hasSearchHandle(pageIndex)) {
-                    long sPtr = mNativeSearchHandlePtr.get(pageIndex);
-                    nativeSearchStop(sPtr);
+                synchronized (doc.lock) {
+                    synchronized (lock) {
+                        stopSearchHandle(doc, pageIndex);
+
+                        long textPage = prepareTextInfo(doc, pageIndex);
+                        if (!validPtr(textPage)) {
+                            mSearchHandlePtr = null;
+                            return;
+                        }
+                        mSearchHandlePtr = nativeSearchStart(textPage, query, matchCase, matchWholeWord);
+                        if (validPtr(mSearchHandlePtr)) {
+                            doc.mNativeSearchHandlePtr.put(pageIndex, mSearchHandlePtr);
+                            // search handle refers to the text page, keep it open until the search is stopped
+                            doc.mNativeTextPagesPtr.pin(pageIndex);
+                        }
+                    }
                 }
-
-                this.mSearchHandlePtr = nativeSearchStart(textPage, query, matchCase, matchWholeWord);
             }
 
             @Override
             public int countResult() {
-                if (validPtr(mSearchHandlePtr)) {
-                    return nativeCountSearchResult(mSearchHandlePtr);
+                synchronized (doc.lock) {
+                    synchronized (lock) {
+                        if (isActive()) {
+                            return nativeCountSearchResult(mSearchHandlePtr);
+                        }
+                        return -1;
+                    }
                 }
-                return -1;
             }
 
             @Override
             public RectF searchNext() {
-                if (validPtr(mSearchHandlePtr)) {
-                    mHasNext = nativeSearchNext(mSearchHandlePtr);
-                    if (mHasNext) {
-                        int index = nativeGetCharIndexOfSearchResult(mSearchHandlePtr);
-                        if (index > -1) {
-                            return measureCharacterBox(this.getPageIndex(), index);
+                synchronized (doc.lock) {
+                    synchronized (lock) {
+                        if (isActive()) {
+                            mHasNext = nativeSearchNext(mSearchHandlePtr);
+                            if (mHasNext) {
+                                int index = nativeGetCharIndexOfSearchResult(mSearchHandlePtr);
+                                if (index > -1) {
+                                    return measureCharacterBox(doc, this.getPageIndex(), index);
+                                }
+                            }
                         }
+
+                        mHasNext = false;
+                        return null;
                     }
                 }
-
-                mHasNext = false;
-                return null;
             }
 
             @Override
             public RectF searchPrev() {
-                if (validPtr(mSearchHandlePtr)) {
-                    mHasPrev = nativeSearchPrev(mSearchHandlePtr);
-                    if (mHasPrev) {
-                        int index = nativeGetCharIndexOfSearchResult(mSearchHandlePtr);
-                        if (index > -1) {
-                            return measureCharacterBox(this.getPageIndex(), index);
+                synchronized (doc.lock) {
+                    synchronized (lock) {
+                        if (isActive()) {
+                            mHasPrev = nativeSearchPrev(mSearchHandlePtr);
+                            if (mHasPrev) {
+                                int index = nativeGetCharIndexOfSearchResult(mSearchHandlePtr);
+                                if (index > -1) {
+                                    return measureCharacterBox(doc, this.getPageIndex(), index);
+                                }
+                            }
                         }
+
+                        mHasPrev = false;
+                        return null;
                     }
                 }
-
-                mHasPrev = false;
-                return null;
             }
 
             @Override
             public void stopSearch() {
                 super.stopSearch();
-                if (validPtr(mSearchHandlePtr)) {
-                    nativeSearchStop(mSearchHandlePtr);
-                    mNativeSearchHandlePtr.remove(getPageIndex());
+                synchronized (doc.lock) {
+                    synchronized (lock) {
+                        if (isActive()) {
+                            stopSearchHandle(doc, getPageIndex());
+                        }
+                        mSearchHandlePtr = null;
+                    }
                 }
             }
         };
 
     }
 
+    /**
+     * Extract text of a page together with boxes of all characters.
+     * Text page is loaded only for this call.
+     *
+     * @return page text, empty if text of the page cannot be loaded
+     */
+    public PdfDocument.PageText extractPageText(PdfDocument doc, int pageIndex) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                long textPagePtr = nativeLoadTextPage(doc.mNativeDocPtr, pageIndex);
+                if (!validPtr(textPagePtr)) {
+                    return new PdfDocument.PageText("", new float[0]);
+                }
+                try {
+                    float[] boxes = nativeTextGetCharBoxes(textPagePtr);
+                    String text = nativeTextGetTextString(textPagePtr, 0, boxes.length / 4);
+                    return new PdfDocument.PageText(text != null ? text : "", boxes);
+                } finally {
+                    nativeCloseTextPage(textPagePtr);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find all occurrences of the query on a page.
+     * Text page is loaded only for this call, hits and their highlight rectangles are collected
+     * with a few native calls.
+     *
+     * @param maxHits maximum number of returned hits, 0 for no limit
+     * @return hits in the order of appearance on the page
+     */
+    public List<SearchHit> searchPage(PdfDocument doc, int pageIndex, String query,
+                                      boolean matchCase, boolean matchWholeWord, int maxHits) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                long textPagePtr = nativeLoadTextPage(doc.mNativeDocPtr, pageIndex);
+                if (!validPtr(textPagePtr)) {
+                    return new ArrayList<>();
+                }
+                try {
+                    int[] ranges = nativeSearchAll(textPagePtr, query, matchCase, matchWholeWord, maxHits);
+                    int[] rectCounts = new int[ranges.length / 2];
+                    float[] rects = nativeTextGetRectsForRanges(textPagePtr, ranges, rectCounts);
+
+                    List<SearchHit> hits = new ArrayList<>(rectCounts.length);
+                    int r = 0;
+                    for (int i = 0; i < rectCounts.length; i++) {
+                        RectF[] bounds = new RectF[rectCounts[i]];
+                        for (int j = 0; j < bounds.length; j++, r += 4) {
+                            bounds[j] = new RectF(rects[r], rects[r + 1], rects[r + 2], rects[r + 3]);
+                        }
+                        hits.add(new SearchHit(pageIndex, ranges[i * 2], ranges[i * 2 + 1], bounds));
+                    }
+                    return hits;
+                } finally {
+                    nativeCloseTextPage(textPagePtr);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set maximum number of pages kept open for the document. Least recently used pages over
+     * the limit are closed, methods requiring an opened page open them again when needed.
+     *
+     * @param maxOpenPages maximum number of open pages, 0 for no limit
+     */
+    public void setMaxOpenPages(PdfDocument doc, int maxOpenPages) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                doc.mNativePagesPtr.setMaxHandles(maxOpenPages, mPageCloser);
+            }
+        }
+    }
+
+    /**
+     * Set maximum number of text pages kept open for the document, least recently used text pages
+     * over the limit are closed and loaded again when needed. Every text page loads its own copy of
+     * the page, not counted by {@link #setMaxOpenPages(PdfDocument, int)}, so at most the sum of both
+     * limits of pages is parsed in memory, see {@link PdfDocument.MemoryStats#getLoadedPages()}.
+     *
+     * @param maxOpenTextPages maximum number of open text pages, 0 for no limit
+     */
+    public void setMaxOpenTextPages(PdfDocument doc, int maxOpenTextPages) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                doc.mNativeTextPagesPtr.setMaxHandles(maxOpenTextPages, mTextPageCloser);
+            }
+        }
+    }
+
+    /** Get number of open native handles and native heap usage */
+    public PdfDocument.MemoryStats getMemoryStats(PdfDocument doc) {
+        PdfDocument.MemoryStats stats = new PdfDocument.MemoryStats();
+        synchronized (doc.lock) {
+            stats.openPages = doc.mNativePagesPtr.size();
+            stats.maxOpenPages = doc.mNativePagesPtr.getMaxHandles();
+            stats.evictions = doc.mNativePagesPtr.getEvictionCount();
+            stats.reopens = doc.mNativePagesPtr.getReopenCount();
+            stats.openTextPages = doc.mNativeTextPagesPtr.size();
+            stats.maxOpenTextPages = doc.mNativeTextPagesPtr.getMaxHandles();
+            stats.evictions += doc.mNativeTextPagesPtr.getEvictionCount();
+            stats.reopens += doc.mNativeTextPagesPtr.getReopenCount();
+        }
+        stats.nativeHeapAllocated = Debug.getNativeHeapAllocatedSize();
+        stats.nativeHeapSize = Debug.getNativeHeapSize();
+        return stats;
+    }
+
+    /**
+     * Close all pages and text pages which are not in use, e.g. from
+     * {@code ComponentCallbacks2#onTrimMemory()}. They are opened again when accessed.
+     */
+    public void trimMemory(PdfDocument doc) {
+        synchronized (doc.lock) {
+            synchronized (lock) {
+                doc.mNativePagesPtr.evictAll(mPageCloser);
+                doc.mNativeTextPagesPtr.evictAll(mTextPageCloser);
+            }
+        }
+    }
+
     public int getCurrentDpi() {
         return mCurrentDpi;
     }
@@ -870,15 +1909,15 @@ public class PdfiumCore {
         mCurrentDpi = d;
     }
 
-    public boolean hasPage(int index) {
-        return mNativePagesPtr.containsKey(index);
+    public boolean hasPage(PdfDocument doc, int index) {
+        return doc.hasPage(index);
     }
 
-    public boolean hasTextPage(int index) {
-        return mNativeTextPagesPtr.containsKey(index);
+    public boolean hasTextPage(PdfDocument doc, int index) {
+        return doc.hasTextPage(index);
     }
 
-    public boolean hasSearchHandle(int index) {
-        return mNativeSearchHandlePtr.containsKey(index);
+    public boolean hasSearchHandle(PdfDocument doc, int index) {
+        return doc.hasSearchHandle(index);
     }
 }
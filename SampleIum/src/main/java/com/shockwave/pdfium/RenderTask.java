@@ -0,0 +1,240 @@
+package com.shockwave.pdfium;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+/**
+ * Progressive rendering of a page fragment, executed in time slices.
+ * <p>
+ * Task is created by {@link PdfiumCore#newRenderTask}. Each call to {@link #step(int)} renders for
+ * at most given number of milliseconds and holds the document and PDFium locks only for that time,
+ * so other calls for this and other documents can be executed between slices. Pixels are rendered into a native
+ * buffer and copied to the target bitmap when rendering is done
+ * (or after every slice if {@link #setPublishPartialResults(boolean)} is enabled).
+ * <p>
+ * Only one task may render a given page at a time. Starting a new task for the same page,
+ * rendering the page with other methods or closing the document aborts the previous task.
+ */
+public class RenderTask {
+
+    public static final int STATUS_RENDERING = 1;
+    public static final int STATUS_DONE = 2;
+    public static final int STATUS_FAILED = 3;
+    public static final int STATUS_CANCELLED = 4;
+
+    public static final int DEFAULT_SLICE_MILLIS = 16;
+
+    /** Receives progress of {@link #run(int, Listener)} on the thread which executes the task */
+    public interface Listener {
+        /**
+         * Called after every time slice
+         *
+         * @param slices        number of time slices executed so far
+         * @param elapsedMillis wall time since the first slice
+         */
+        void onProgress(RenderTask task, int slices, long elapsedMillis);
+
+        /** Called once with {@link #STATUS_DONE}, {@link #STATUS_FAILED} or {@link #STATUS_CANCELLED} */
+        void onFinished(RenderTask task, int status);
+    }
+
+    private final PdfiumCore core;
+    private final PdfDocument doc;
+    private final Bitmap bitmap;
+    private final int pageIndex;
+    private final int startX;
+    private final int startY;
+    private final int drawSizeX;
+    private final int drawSizeY;
+    private final boolean renderAnnot;
+
+    /* written with both doc.lock and nativeLock held, cancel() reads it with nativeLock only */
+    private final Object nativeLock = new Object();
+    private long mNativeRenderPtr = -1;
+    private long mNativePagePtr;
+    private volatile int status = STATUS_RENDERING;
+    private volatile boolean cancelled;
+    private boolean publishPartialResults;
+    private boolean pinned;
+    private int slices;
+    private long startTime;
+
+    /*package*/ RenderTask(PdfiumCore core, PdfDocument doc, Bitmap bitmap, int pageIndex,
+                           int startX, int startY, int drawSizeX, int drawSizeY, boolean renderAnnot) {
+        this.core = core;
+        this.doc = doc;
+        this.bitmap = bitmap;
+        this.pageIndex = pageIndex;
+        this.startX = startX;
+        this.startY = startY;
+        this.drawSizeX = drawSizeX;
+        this.drawSizeY = drawSizeY;
+        this.renderAnnot = renderAnnot;
+    }
+
+    public int getPageIndex() {
+        return pageIndex;
+    }
+
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isFinished() {
+        return status != STATUS_RENDERING;
+    }
+
+    public int getSliceCount() {
+        return slices;
+    }
+
+    /** Copy partially rendered content to the bitmap after every slice */
+    public void setPublishPartialResults(boolean publishPartialResults) {
+        this.publishPartialResults = publishPartialResults;
+    }
+
+    /**
+     * Cancel rendering and release native resources. May be called from any thread,
+     * slice being executed at the moment stops as soon as PDFium checks for pause.
+     */
+    public void cancel() {
+        cancelled = true;
+        synchronized (nativeLock) {
+            if (mNativeRenderPtr != -1) {
+                core.cancelRenderNative(mNativeRenderPtr);
+            }
+        }
+        synchronized (doc.lock) {
+            if (status == STATUS_RENDERING) {
+                finish(STATUS_CANCELLED);
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Render one time slice.
+     *
+     * @param budgetMillis maximum duration of the slice
+     * @return true if rendering is not finished yet
+     */
+    public boolean step(int budgetMillis) {
+        synchronized (doc.lock) {
+            if (status != STATUS_RENDERING) {
+                return false;
+            }
+            if (cancelled) {
+                finish(STATUS_CANCELLED);
+                return false;
+            }
+            Long pagePtr = doc.mNativePagesPtr.peek(pageIndex);
+            if (mNativeRenderPtr != -1 && (pagePtr == null || pagePtr != mNativePagePtr)) {
+                // page was closed or reopened in the meantime
+                releaseNative(false);
+                status = STATUS_FAILED;
+                return false;
+            }
+
+            int result;
+            if (mNativeRenderPtr == -1) {
+                if (pagePtr == null) {
+                    pagePtr = core.openPage(doc, pageIndex);
+                }
+                startTime = SystemClock.elapsedRealtime();
+                mNativePagePtr = pagePtr;
+                doc.attachRenderTask(this);
+                // page must not be closed by the open pages limit between slices
+                doc.mNativePagesPtr.pin(pageIndex);
+                pinned = true;
+                long renderPtr = -1;
+                try {
+                    renderPtr = core.startRenderNative(doc, pagePtr, bitmap, startX, startY,
+                            drawSizeX, drawSizeY, renderAnnot, budgetMillis);
+                } finally {
+                    if (renderPtr == -1) {
+                        // also when the render buffer cannot be allocated, so a retry starts from scratch
+                        finish(STATUS_FAILED);
+                    }
+                }
+                if (renderPtr == -1) {
+                    return false;
+                }
+                synchronized (nativeLock) {
+                    mNativeRenderPtr = renderPtr;
+                }
+                result = core.getRenderStatusNative(renderPtr);
+            } else {
+                result = core.continueRenderNative(mNativeRenderPtr, budgetMillis);
+            }
+            slices++;
+
+            if (cancelled) {
+                finish(STATUS_CANCELLED);
+            } else if (result == STATUS_DONE) {
+                core.copyRenderNative(mNativeRenderPtr, bitmap);
+                finish(STATUS_DONE);
+            } else if (result != STATUS_RENDERING) {
+                finish(STATUS_FAILED);
+            } else if (publishPartialResults) {
+                core.copyRenderNative(mNativeRenderPtr, bitmap);
+            }
+            return status == STATUS_RENDERING;
+        }
+    }
+
+    /**
+     * Render in time slices on the calling thread until the task is done, failed or cancelled.
+     *
+     * @param sliceMillis duration of a single slice
+     * @param listener    progress listener, may be null
+     * @return final status
+     */
+    public int run(int sliceMillis, Listener listener) {
+        while (step(sliceMillis)) {
+            if (listener != null) {
+                listener.onProgress(this, slices, SystemClock.elapsedRealtime() - startTime);
+            }
+            // let other threads waiting for the document lock in
+            Thread.yield();
+        }
+        if (listener != null) {
+            listener.onFinished(this, status);
+        }
+        return status;
+    }
+
+    /** Abort rendering, called with doc.lock held when page is about to be rendered differently or closed */
+    /*package*/ void abort(boolean pageOpened) {
+        cancelled = true;
+        if (status == STATUS_RENDERING) {
+            releaseNative(pageOpened);
+            status = STATUS_CANCELLED;
+        }
+    }
+
+    private void finish(int finalStatus) {
+        releaseNative(true);
+        status = finalStatus;
+    }
+
+    private void releaseNative(boolean pageOpened) {
+        synchronized (nativeLock) {
+            if (mNativeRenderPtr != -1) {
+                core.closeRenderNative(mNativeRenderPtr, pageOpened);
+                mNativeRenderPtr = -1;
+            }
+        }
+        if (pinned) {
+            doc.mNativePagesPtr.unpin(pageIndex);
+            pinned = false;
+        }
+        doc.detachRenderTask(this);
+    }
+}
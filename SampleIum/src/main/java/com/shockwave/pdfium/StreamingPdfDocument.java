@@ -0,0 +1,117 @@
+package com.shockwave.pdfium;
+
+import java.io.IOException;
+
+/**
+ * Document whose data arrives progressively, e.g. from a pipe or network stream.
+ * <p>
+ * Created by {@link PdfiumCore#newStreamingDocument(long)}. Feed received bytes with
+ * {@link #appendData(long, byte[], int, int)} and poll {@link #isDocumentAvailable(String)}.
+ * Linearized documents become available as soon as data of the first page arrives, other documents
+ * when the whole file is received. Before rendering a page check {@link #isPageAvailable(int)}.
+ * Byte ranges PDFium asked for and which were not received yet are returned by
+ * {@link #takeRequestedRanges()}, so the data source may fetch them first.
+ * <p>
+ * Other {@link PdfiumCore} methods may be used only after the document became available.
+ */
+public class StreamingPdfDocument extends PdfDocument {
+
+    public static final int LINEARIZATION_UNKNOWN = -1;
+    public static final int NOT_LINEARIZED = 0;
+    public static final int LINEARIZED = 1;
+
+    private static final int DATA_AVAIL = 1;
+
+    private final PdfiumCore core;
+    private final long fileLength;
+    private volatile boolean available;
+
+    /*package*/ StreamingPdfDocument(PdfiumCore core, long fileLength) {
+        this.core = core;
+        this.fileLength = fileLength;
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    /** Copy received bytes of the file, starting at given file position */
+    public void appendData(long position, byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        synchronized (lock) {
+            core.streamingAppend(this, position, data, offset, length);
+        }
+    }
+
+    /** Number of distinct bytes received so far */
+    public long getReceivedBytes() {
+        synchronized (lock) {
+            return core.streamingGetReceivedBytes(this);
+        }
+    }
+
+    public boolean isComplete() {
+        return getReceivedBytes() == fileLength;
+    }
+
+    /**
+     * Check whether enough data arrived to open the document and open it if so.
+     *
+     * @param password document password or null
+     * @return true if document is opened
+     * @throws IOException if document is corrupted or password is incorrect
+     */
+    public boolean isDocumentAvailable(String password) throws IOException {
+        if (available) {
+            return true;
+        }
+        synchronized (lock) {
+            available = core.streamingIsDocAvail(this, password) == DATA_AVAIL;
+            return available;
+        }
+    }
+
+    /** Check whether data of given page arrived. Document must be available. */
+    public boolean isPageAvailable(int pageIndex) {
+        if (!available) {
+            return false;
+        }
+        synchronized (lock) {
+            return core.streamingIsPageAvail(this, pageIndex) == DATA_AVAIL;
+        }
+    }
+
+    /**
+     * @return {@link #LINEARIZED}, {@link #NOT_LINEARIZED} or {@link #LINEARIZATION_UNKNOWN}
+     * if not enough data arrived yet
+     */
+    public int getLinearization() {
+        synchronized (lock) {
+            return core.streamingIsLinearized(this);
+        }
+    }
+
+    /** Index of the first available page of linearized document. Document must be available. */
+    public int getFirstPageIndex() {
+        if (!available) {
+            throw new IllegalStateException("Document is not available yet");
+        }
+        synchronized (lock) {
+            return core.streamingGetFirstPageNum(this);
+        }
+    }
+
+    /**
+     * Get byte ranges needed by the last availability checks which were not received yet.
+     * Returned ranges are forgotten.
+     *
+     * @return array of (offset, length) pairs
+     */
+    public long[] takeRequestedRanges() {
+        synchronized (lock) {
+            return core.streamingTakeRequestedRanges(this);
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package com.shockwave.pdfium;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Faces of fonts installed on the device, used by PDFium for fonts not embedded in documents.
+ * <p>
+ * Font directories are scanned once: family name, weight, style and supported character sets
+ * are read from the 'name', 'OS/2' and 'post' tables of every face and the result is persisted
+ * to a cache file. The cache is used as long as the directories keep the same files.
+ * Install the index with {@link PdfiumCore#setSystemFontIndex(SystemFontIndex)}; font files
+ * are then mapped to memory on first use and shared by all documents.
+ * <p>
+ * Loading scans font files when the cache is missing or stale, do not call it on the main thread.
+ */
+public final class SystemFontIndex {
+    private static final String TAG = SystemFontIndex.class.getName();
+
+    public static final String[] DEFAULT_FONT_DIRS = {"/system/fonts", "/product/fonts", "/system/font"};
+
+    /* face style flags, shared with native code */
+    /*package*/ static final int STYLE_ITALIC = 1;
+    /*package*/ static final int STYLE_FIXED_PITCH = 2;
+
+    /* supported character sets, shared with native code */
+    /*package*/ static final int CHARSET_ANSI = 1;
+    /*package*/ static final int CHARSET_SYMBOL = 2;
+    /*package*/ static final int CHARSET_SHIFTJIS = 4;
+    /*package*/ static final int CHARSET_HANGEUL = 8;
+    /*package*/ static final int CHARSET_GB2312 = 16;
+    /*package*/ static final int CHARSET_CHINESEBIG5 = 32;
+
+    /* values per face in faceData */
+    /*package*/ static final int FACE_FILE = 0;
+    /*package*/ static final int FACE_INDEX = 1;
+    /*package*/ static final int FACE_WEIGHT = 2;
+    /*package*/ static final int FACE_STYLE = 3;
+    /*package*/ static final int FACE_CHARSETS = 4;
+    /*package*/ static final int FACE_FIELDS = 5;
+
+    private static final int CACHE_MAGIC = 0x50534649;
+    private static final int CACHE_VERSION = 1;
+
+    private static final int TAG_TTCF = 0x74746366;
+    private static final int TAG_NAME = 0x6e616d65;
+    private static final int TAG_OS2 = 0x4f532f32;
+    private static final int TAG_POST = 0x706f7374;
+
+    /*package*/ final String[] files;
+    /*package*/ final String[] families;
+    /*package*/ final int[] faceData;
+    private final boolean fromCache;
+    private final long loadMillis;
+
+    private SystemFontIndex(String[] files, String[] families, int[] faceData, boolean fromCache,
+                            long loadMillis) {
+        this.files = files;
+        this.families = families;
+        this.faceData = faceData;
+        this.fromCache = fromCache;
+        this.loadMillis = loadMillis;
+    }
+
+    /** Load index of {@link #DEFAULT_FONT_DIRS} */
+    public static SystemFontIndex load(File cacheFile) {
+        return load(cacheFile, DEFAULT_FONT_DIRS);
+    }
+
+    /**
+     * Read the index from the cache file, or scan the font directories and write the cache file
+     * if it is missing or the directories have changed.
+     */
+    public static SystemFontIndex load(File cacheFile, String[] fontDirs) {
+        long start = System.nanoTime();
+        List<File> fontFiles = listFontFiles(fontDirs);
+        long fingerprint = fingerprint(fontFiles);
+
+        if (cacheFile.isFile()) {
+            try {
+                SystemFontIndex cached = readCache(cacheFile, fingerprint, start);
+                if (cached != null) {
+                    return cached;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot read font index cache, scanning fonts", e);
+            }
+        }
+
+        List<String> files = new ArrayList<>();
+        List<String> families = new ArrayList<>();
+        int[] faceData = new int[16 * FACE_FIELDS];
+        int faces = 0;
+        for (File file : fontFiles) {
+            int fileIndex = files.size();
+            boolean used = false;
+            try {
+                RandomAccessFile in = new RandomAccessFile(file, "r");
+                try {
+                    int[] offsets = readFaceOffsets(in);
+                    for (int faceIndex = 0; faceIndex < offsets.length; faceIndex++) {
+                        String family = readFace(in, offsets[faceIndex], faceData, faces * FACE_FIELDS);
+                        if (family == null) {
+                            continue;
+                        }
+                        faceData[faces * FACE_FIELDS + FACE_FILE] = fileIndex;
+                        faceData[faces * FACE_FIELDS + FACE_INDEX] = faceIndex;
+                        families.add(family);
+                        faces++;
+                        used = true;
+                        if ((faces + 1) * FACE_FIELDS > faceData.length) {
+                            faceData = Arrays.copyOf(faceData, faceData.length * 2);
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot read font " + file, e);
+            }
+            if (used) {
+                files.add(file.getAbsolutePath());
+            }
+        }
+
+        SystemFontIndex index = new SystemFontIndex(files.toArray(new String[files.size()]),
+                families.toArray(new String[families.size()]), Arrays.copyOf(faceData, faces * FACE_FIELDS),
+                false, (System.nanoTime() - start) / 1000000);
+        index.writeCache(cacheFile, fingerprint);
+        return index;
+    }
+
+    public int getFaceCount() {
+        return families.length;
+    }
+
+    public String getFamily(int face) {
+        return families[face];
+    }
+
+    public String getFile(int face) {
+        return files[faceData[face * FACE_FIELDS + FACE_FILE]];
+    }
+
+    /** Whether the index was read from the cache file instead of scanning fonts */
+    public boolean isFromCache() {
+        return fromCache;
+    }
+
+    /** Time of loading or scanning in milliseconds */
+    public long getLoadMillis() {
+        return loadMillis;
+    }
+
+    private static List<File> listFontFiles(String[] fontDirs) {
+        List<File> result = new ArrayList<>();
+        for (String dir : fontDirs) {
+            File[] files = new File(dir).listFiles();
+            if (files == null) {
+                continue;
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName().toLowerCase();
+                if (file.isFile() && (name.endsWith(".ttf") || name.endsWith(".otf")
+                        || name.endsWith(".ttc") || name.endsWith(".otc"))) {
+                    result.add(file);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Changes when a font file is added, removed or replaced, e.g. by a system update */
+    private static long fingerprint(List<File> files) {
+        long hash = 1125899906842597L;
+        for (File file : files) {
+            hash = 31 * hash + file.getAbsolutePath().hashCode();
+            hash = 31 * hash + file.length();
+            hash = 31 * hash + file.lastModified();
+        }
+        return hash;
+    }
+
+    /** Offsets of table directories of all faces in the file */
+    private static int[] readFaceOffsets(RandomAccessFile in) throws IOException {
+        in.seek(0);
+        if (in.readInt() != TAG_TTCF) {
+            return new int[]{0};
+        }
+        in.readInt(); // version
+        int count = in.readInt();
+        if (count <= 0 || count > 1024) {
+            throw new IOException("Invalid font collection");
+        }
+        int[] offsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = in.readInt();
+        }
+        return offsets;
+    }
+
+    /**
+     * Read weight, style and character sets of the face to faceData at given position.
+     *
+     * @return family name or null if face has no usable name
+     */
+    private static String readFace(RandomAccessFile in, int offset, int[] faceData, int position)
+            throws IOException {
+        in.seek(offset + 4);
+        int numTables = in.readUnsignedShort();
+        int nameOffset = 0;
+        int os2Offset = 0;
+        int os2Length = 0;
+        int postOffset = 0;
+        for (int i = 0; i < numTables; i++) {
+            in.seek(offset + 12 + i * 16);
+            int tag = in.readInt();
+            in.readInt(); // checksum
+            int tableOffset = in.readInt();
+            int tableLength = in.readInt();
+            if (tag == TAG_NAME) {
+                nameOffset = tableOffset;
+            } else if (tag == TAG_OS2) {
+                os2Offset = tableOffset;
+                os2Length = tableLength;
+            } else if (tag == TAG_POST) {
+                postOffset = tableOffset;
+            }
+        }
+        if (nameOffset == 0) {
+            return null;
+        }
+        String family = readFamilyName(in, nameOffset);
+        if (family == null || family.isEmpty()) {
+            return null;
+        }
+
+        int weight = 400;
+        int style = 0;
+        int charsets = CHARSET_ANSI;
+        if (os2Offset != 0 && os2Length >= 64) {
+            in.seek(os2Offset);
+            int version = in.readUnsignedShort();
+            in.seek(os2Offset + 4);
+            weight = in.readUnsignedShort();
+            in.seek(os2Offset + 62);
+            if ((in.readUnsignedShort() & 1) != 0) {
+                style |= STYLE_ITALIC;
+            }
+            if (version >= 1 && os2Length >= 82) {
+                in.seek(os2Offset + 78);
+                charsets = toCharsets(in.readInt());
+            }
+        }
+        if (postOffset != 0) {
+            in.seek(postOffset + 12);
+            if (in.readInt() != 0) {
+                style |= STYLE_FIXED_PITCH;
+            }
+        }
+        faceData[position + FACE_WEIGHT] = weight;
+        faceData[position + FACE_STYLE] = style;
+        faceData[position + FACE_CHARSETS] = charsets;
+        return family;
+    }
+
+    /** Character sets from code page bits of the OS/2 table */
+    private static int toCharsets(int codePageRange) {
+        int charsets = 0;
+        if ((codePageRange & 1) != 0) {
+            charsets |= CHARSET_ANSI;
+        }
+        if ((codePageRange & (1 << 17)) != 0) {
+            charsets |= CHARSET_SHIFTJIS;
+        }
+        if ((codePageRange & (1 << 18)) != 0) {
+            charsets |= CHARSET_GB2312;
+        }
+        if ((codePageRange & (1 << 19)) != 0) {
+            charsets |= CHARSET_HANGEUL;
+        }
+        if ((codePageRange & (1 << 20)) != 0) {
+            charsets |= CHARSET_CHINESEBIG5;
+        }
+        if ((codePageRange & (1 << 31)) != 0) {
+            charsets |= CHARSET_SYMBOL;
+        }
+        return charsets != 0 ? charsets : CHARSET_ANSI;
+    }
+
+    /** Font family name (name ID 1), English Windows name preferred over Macintosh name */
+    private static String readFamilyName(RandomAccessFile in, int nameOffset) throws IOException {
+        in.seek(nameOffset + 2);
+        int count = in.readUnsignedShort();
+        int stringOffset = in.readUnsignedShort();
+        String result = null;
+        int resultRank = 0;
+        for (int i = 0; i < count; i++) {
+            in.seek(nameOffset + 6 + i * 12);
+            int platform = in.readUnsignedShort();
+            int encoding = in.readUnsignedShort();
+            int language = in.readUnsignedShort();
+            int nameId = in.readUnsignedShort();
+            int length = in.readUnsignedShort();
+            int offset = in.readUnsignedShort();
+            if (nameId != 1 || length == 0) {
+                continue;
+            }
+            int rank;
+            if (platform == 3 && language == 0x409) {
+                rank = 3;
+            } else if (platform == 3) {
+                rank = 2;
+            } else if (platform == 1 && encoding == 0) {
+                rank = 1;
+            } else {
+                continue;
+            }
+            if (rank <= resultRank) {
+                continue;
+            }
+            byte[] bytes = new byte[length];
+            in.seek(nameOffset + stringOffset + offset);
+            in.readFully(bytes);
+            result = new String(bytes, platform == 3 ? "UTF-16BE" : "ISO-8859-1");
+            resultRank = rank;
+        }
+        return result;
+    }
+
+    private static SystemFontIndex readCache(File cacheFile, long fingerprint, long start) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+        try {
+            if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION || in.readLong() != fingerprint) {
+                return null;
+            }
+            String[] files = new String[in.readInt()];
+            for (int i = 0; i < files.length; i++) {
+                files[i] = in.readUTF();
+            }
+            String[] families = new String[in.readInt()];
+            int[] faceData = new int[families.length * FACE_FIELDS];
+            for (int i = 0; i < families.length; i++) {
+                families[i] = in.readUTF();
+                for (int j = 0; j < FACE_FIELDS; j++) {
+                    faceData[i * FACE_FIELDS + j] = in.readInt();
+                }
+            }
+            return new SystemFontIndex(files, families, faceData, true, (System.nanoTime() - start) / 1000000);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeCache(File cacheFile, long fingerprint) {
+        File temp = new File(cacheFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(CACHE_MAGIC);
+                out.writeInt(CACHE_VERSION);
+                out.writeLong(fingerprint);
+                out.writeInt(files.length);
+                for (String file : files) {
+                    out.writeUTF(file);
+                }
+                out.writeInt(families.length);
+                for (int i = 0; i < families.length; i++) {
+                    out.writeUTF(families[i]);
+                    for (int j = 0; j < FACE_FIELDS; j++) {
+                        out.writeInt(faceData[i * FACE_FIELDS + j]);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(cacheFile)) {
+                throw new IOException("Cannot rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write font index cache", e);
+            temp.delete();
+        }
+    }
+}
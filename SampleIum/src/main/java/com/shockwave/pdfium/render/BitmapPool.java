@@ -0,0 +1,139 @@
+package com.shockwave.pdfium.render;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of mutable bitmaps grouped by width, height and config.
+ * <p>
+ * Render paths {@link #acquire} a bitmap instead of allocating a new one and the owner
+ * {@link #release}s it once it is no longer drawn. The same pool can be given to the pooled
+ * {@code PdfiumCore#renderPageBitmap} and {@code PdfiumCore#newRenderTask} overloads,
+ * {@link TileRenderer}, {@link PageBitmapCache}, {@link ThumbnailService} and {@link PageFlattener}, so they
+ * share the same bitmaps. Pool holds at most given number of bytes,
+ * bitmaps of the least recently used size are recycled first when this limit is exceeded.
+ * Acquired bitmaps are not cleared, rendering methods overwrite the whole bitmap anyway.
+ */
+public class BitmapPool {
+
+    private static final class Key {
+        final int width;
+        final int height;
+        final Bitmap.Config config;
+
+        Key(int width, int height, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return width == other.width && height == other.height && config == other.config;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = width;
+            result = 31 * result + height;
+            return 31 * result + (config != null ? config.hashCode() : 0);
+        }
+    }
+
+    private final LinkedHashMap<Key, ArrayDeque<Bitmap>> pool = new LinkedHashMap<>(16, 0.75f, true);
+    /* idle bitmaps, so a bitmap released twice is not handed out twice */
+    private final IdentityHashMap<Bitmap, Boolean> idle = new IdentityHashMap<>();
+    private final long maxBytes;
+    private long sizeBytes;
+
+    private int hitCount;
+    private int missCount;
+
+    /** @param maxBytes maximum number of bytes of pixel memory kept by idle bitmaps */
+    public BitmapPool(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /** Get bitmap from the pool or create new one if there is no idle bitmap of this size */
+    public Bitmap acquire(int width, int height, Bitmap.Config config) {
+        synchronized (this) {
+            ArrayDeque<Bitmap> bitmaps = pool.get(new Key(width, height, config));
+            Bitmap bitmap;
+            while (bitmaps != null && (bitmap = bitmaps.poll()) != null) {
+                idle.remove(bitmap);
+                sizeBytes -= PageBitmapCache.sizeOf(bitmap);
+                if (!bitmap.isRecycled()) {
+                    hitCount++;
+                    return bitmap;
+                }
+            }
+            missCount++;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /** Return bitmap to the pool. Caller must not use it afterwards. Bitmaps already in the pool are ignored. */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || idle.containsKey(bitmap)) {
+            return;
+        }
+        Key key = new Key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bitmaps = pool.get(key);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            pool.put(key, bitmaps);
+        }
+        bitmaps.push(bitmap);
+        idle.put(bitmap, Boolean.TRUE);
+        sizeBytes += PageBitmapCache.sizeOf(bitmap);
+        trimToSize(maxBytes);
+    }
+
+    /** Recycle idle bitmaps of least recently used sizes until the pool holds no more than given bytes */
+    public synchronized void trimToSize(long bytes) {
+        Iterator<Map.Entry<Key, ArrayDeque<Bitmap>>> it = pool.entrySet().iterator();
+        while (sizeBytes > bytes && it.hasNext()) {
+            ArrayDeque<Bitmap> bitmaps = it.next().getValue();
+            Bitmap bitmap;
+            while (sizeBytes > bytes && (bitmap = bitmaps.pollLast()) != null) {
+                idle.remove(bitmap);
+                sizeBytes -= PageBitmapCache.sizeOf(bitmap);
+                bitmap.recycle();
+            }
+            if (bitmaps.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized long size() {
+        return sizeBytes;
+    }
+
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    public synchronized int missCount() {
+        return missCount;
+    }
+}
@@ -0,0 +1,414 @@
+package com.shockwave.pdfium.render;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Build;
+
+import com.shockwave.pdfium.PdfDocument;
+import com.shockwave.pdfium.PdfiumCore;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory bounded cache of rendered page fragments with least recently used eviction.
+ * <p>
+ * Entries are identified by document, page index, rendered page size (zoom level), clip rectangle
+ * in rendered page coordinates, bitmap config and annotation flag. Size of the cache is measured in
+ * bytes of bitmap pixel memory. Lookups with {@link #find} can be served from an entry rendered
+ * at higher zoom, which then has to be drawn scaled down.
+ * <p>
+ * Bitmaps owned by the cache must not be recycled by the caller.
+ * Call {@link #removeDocument(PdfDocument)} before closing a document.
+ * <p>
+ * With {@link #setBitmapPool(BitmapPool)} bitmaps removed from the cache are released to the pool
+ * and reused by later renders. Bitmaps which are drawn for a longer time should be taken with
+ * {@link #acquire}, {@link #find} or {@link #getOrRender} and given back with {@link #release(Bitmap)}:
+ * until then they are not released to the pool, even if the cache evicts them meanwhile.
+ * Bitmaps returned by {@link #get} must be drawn right away.
+ */
+public class PageBitmapCache {
+
+    public static final class Key {
+        final PdfDocument document;
+        final int pageIndex;
+        final int pageWidth;
+        final int pageHeight;
+        final Rect clip;
+        final Bitmap.Config config;
+        final boolean renderAnnot;
+
+        /**
+         * @param pageWidth  width of whole rendered page in pixels
+         * @param pageHeight height of whole rendered page in pixels
+         * @param clip       rendered fragment in page pixel coordinates
+         */
+        public Key(PdfDocument document, int pageIndex, int pageWidth, int pageHeight, Rect clip,
+                   Bitmap.Config config, boolean renderAnnot) {
+            this.document = document;
+            this.pageIndex = pageIndex;
+            this.pageWidth = pageWidth;
+            this.pageHeight = pageHeight;
+            this.clip = new Rect(clip);
+            this.config = config;
+            this.renderAnnot = renderAnnot;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return document == other.document && pageIndex == other.pageIndex
+                    && pageWidth == other.pageWidth && pageHeight == other.pageHeight
+                    && clip.equals(other.clip) && config == other.config
+                    && renderAnnot == other.renderAnnot;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(document);
+            result = 31 * result + pageIndex;
+            result = 31 * result + pageWidth;
+            result = 31 * result + pageHeight;
+            result = 31 * result + clip.hashCode();
+            result = 31 * result + (config != null ? config.hashCode() : 0);
+            return 31 * result + (renderAnnot ? 1 : 0);
+        }
+    }
+
+    /**
+     * Result of {@link #find}. Draw {@link #getSourceRect()} of the bitmap into requested area,
+     * then give the bitmap back with {@link #release(Bitmap)}.
+     */
+    public static class Hit {
+        private final Bitmap bitmap;
+        private final Rect sourceRect;
+        private final boolean exact;
+
+        Hit(Bitmap bitmap, Rect sourceRect, boolean exact) {
+            this.bitmap = bitmap;
+            this.sourceRect = sourceRect;
+            this.exact = exact;
+        }
+
+        public Bitmap getBitmap() {
+            return bitmap;
+        }
+
+        /** Part of the bitmap which corresponds to requested clip rectangle */
+        public Rect getSourceRect() {
+            return sourceRect;
+        }
+
+        /** False if the bitmap was rendered at higher zoom and must be scaled down */
+        public boolean isExact() {
+            return exact;
+        }
+    }
+
+    private final LinkedHashMap<Key, Bitmap> map = new LinkedHashMap<>(16, 0.75f, true);
+    /* number of acquired references of bitmaps which are in use by callers */
+    private final IdentityHashMap<Bitmap, Integer> inUse = new IdentityHashMap<>();
+    /* bitmaps currently held by the map */
+    private final IdentityHashMap<Bitmap, Boolean> cached = new IdentityHashMap<>();
+    private BitmapPool bitmapPool;
+    private long maxBytes;
+    private long sizeBytes;
+
+    private int hitCount;
+    private int scaledHitCount;
+    private int missCount;
+    private int putCount;
+    private int evictionCount;
+
+    /** @param maxBytes maximum number of bytes of pixel memory held by the cache */
+    public PageBitmapCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /** Set pool to which evicted and removed bitmaps are released and from which {@link #getOrRender} takes bitmaps */
+    public synchronized void setBitmapPool(BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+    }
+
+    /**
+     * Exact lookup, null if there is no such entry. The bitmap is not held for the caller,
+     * use {@link #acquire} if it is not drawn right away.
+     */
+    public synchronized Bitmap get(Key key) {
+        Bitmap bitmap = map.get(key);
+        if (bitmap != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Exact lookup which holds the bitmap for the caller until {@link #release(Bitmap)}.
+     *
+     * @return bitmap or null if there is no such entry
+     */
+    public synchronized Bitmap acquire(Key key) {
+        Bitmap bitmap = get(key);
+        if (bitmap != null) {
+            retain(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Find bitmap which can be used to draw the fragment described by the key. Exact entry is preferred,
+     * otherwise the smallest entry rendered at higher zoom which fully covers the requested fragment is used.
+     * Bitmap of the hit is held for the caller until {@link #release(Bitmap)}.
+     *
+     * @return hit or null
+     */
+    public synchronized Hit find(Key key) {
+        Bitmap exact = map.get(key);
+        if (exact != null) {
+            hitCount++;
+            retain(exact);
+            return new Hit(exact, new Rect(0, 0, key.clip.width(), key.clip.height()), true);
+        }
+
+        Key best = null;
+        Rect bestSource = null;
+        for (Key candidate : map.keySet()) {
+            if (candidate.document != key.document || candidate.pageIndex != key.pageIndex
+                    || candidate.config != key.config || candidate.renderAnnot != key.renderAnnot
+                    || candidate.pageWidth < key.pageWidth || candidate.pageHeight < key.pageHeight) {
+                continue;
+            }
+            if (best != null && candidate.pageWidth >= best.pageWidth) {
+                continue;
+            }
+            float scaleX = candidate.pageWidth / (float) key.pageWidth;
+            float scaleY = candidate.pageHeight / (float) key.pageHeight;
+            Rect scaled = new Rect((int) Math.floor(key.clip.left * scaleX),
+                    (int) Math.floor(key.clip.top * scaleY),
+                    (int) Math.ceil(key.clip.right * scaleX),
+                    (int) Math.ceil(key.clip.bottom * scaleY));
+            if (candidate.clip.contains(scaled)) {
+                scaled.offset(-candidate.clip.left, -candidate.clip.top);
+                best = candidate;
+                bestSource = scaled;
+            }
+        }
+
+        if (best == null) {
+            missCount++;
+            return null;
+        }
+        scaledHitCount++;
+        // touch entry, so it is moved to the head of LRU queue
+        Bitmap bitmap = map.get(best);
+        retain(bitmap);
+        return new Hit(bitmap, bestSource, false);
+    }
+
+    /**
+     * Put rendered fragment to the cache. Bitmap dimensions should match the clip rectangle of key.
+     *
+     * @return false if the bitmap is larger than the whole cache, it is not cached then and stays owned by the caller
+     */
+    public synchronized boolean put(Key key, Bitmap bitmap) {
+        if (sizeOf(bitmap) > maxBytes) {
+            return false;
+        }
+        putCount++;
+        Bitmap previous = map.put(key, bitmap);
+        cached.put(bitmap, Boolean.TRUE);
+        sizeBytes += sizeOf(bitmap);
+        if (previous != null) {
+            sizeBytes -= sizeOf(previous);
+            if (previous != bitmap) {
+                removed(previous);
+            }
+        }
+        trimToSize(maxBytes);
+        return true;
+    }
+
+    /**
+     * Put rendered fragment to the cache and hold it for the caller until {@link #release(Bitmap)},
+     * so it is not given to another render even if it is evicted before the caller draws it.
+     *
+     * @return false if the bitmap is larger than the whole cache, it is not cached then and stays owned by the caller
+     */
+    public synchronized boolean putAndAcquire(Key key, Bitmap bitmap) {
+        if (!put(key, bitmap)) {
+            return false;
+        }
+        retain(bitmap);
+        return true;
+    }
+
+    /**
+     * Give back a bitmap taken with {@link #acquire}, {@link #find}, {@link #putAndAcquire} or
+     * {@link #getOrRender}. Once it is neither cached nor held by anyone else it is released to the pool.
+     * A bitmap which was not cached is owned by the caller, so it is released to the pool right away.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        Integer count = inUse.get(bitmap);
+        if (count == null) {
+            if (!cached.containsKey(bitmap)) {
+                releaseBitmap(bitmap);
+            }
+        } else if (count > 1) {
+            inUse.put(bitmap, count - 1);
+        } else {
+            inUse.remove(bitmap);
+            if (!cached.containsKey(bitmap)) {
+                releaseBitmap(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Return cached fragment or render it with {@link PdfiumCore#renderPageBitmap} and cache the result.
+     * Page must be opened before rendering. Give the bitmap back with {@link #release(Bitmap)} when it is
+     * no longer drawn. A fragment larger than the whole cache is returned without being cached.
+     *
+     * @return fragment, or null if the page could not be rendered
+     */
+    public Bitmap getOrRender(PdfiumCore core, Key key) {
+        Bitmap bitmap = acquire(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        BitmapPool pool;
+        synchronized (this) {
+            pool = bitmapPool;
+        }
+        bitmap = pool != null
+                ? pool.acquire(key.clip.width(), key.clip.height(), key.config)
+                : Bitmap.createBitmap(key.clip.width(), key.clip.height(), key.config);
+        if (!core.renderPageBitmap(key.document, bitmap, key.pageIndex, -key.clip.left, -key.clip.top,
+                key.pageWidth, key.pageHeight, key.renderAnnot)) {
+            release(bitmap);
+            return null;
+        }
+        putAndAcquire(key, bitmap);
+        return bitmap;
+    }
+
+    /** Drop all entries of given document */
+    public synchronized void removeDocument(PdfDocument document) {
+        Iterator<Map.Entry<Key, Bitmap>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Bitmap> entry = it.next();
+            if (entry.getKey().document == document) {
+                sizeBytes -= sizeOf(entry.getValue());
+                it.remove();
+                removed(entry.getValue());
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (Bitmap bitmap : map.values()) {
+            removed(bitmap);
+        }
+        map.clear();
+        sizeBytes = 0;
+    }
+
+    /** Evict least recently used entries until cache holds no more than given number of bytes */
+    public synchronized void trimToSize(long bytes) {
+        Iterator<Map.Entry<Key, Bitmap>> it = map.entrySet().iterator();
+        while (sizeBytes > bytes && it.hasNext()) {
+            Map.Entry<Key, Bitmap> eldest = it.next();
+            sizeBytes -= sizeOf(eldest.getValue());
+            it.remove();
+            removed(eldest.getValue());
+            evictionCount++;
+        }
+    }
+
+    public synchronized void resize(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized long size() {
+        return sizeBytes;
+    }
+
+    public synchronized long maxSize() {
+        return maxBytes;
+    }
+
+    public synchronized int entryCount() {
+        return map.size();
+    }
+
+    /** Number of exact lookups which returned a bitmap */
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    /** Number of lookups served by an entry rendered at higher zoom */
+    public synchronized int scaledHitCount() {
+        return scaledHitCount;
+    }
+
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    public synchronized int putCount() {
+        return putCount;
+    }
+
+    public synchronized int evictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PageBitmapCache[size=" + sizeBytes + ",maxSize=" + maxBytes + ",hits=" + hitCount
+                + ",scaledHits=" + scaledHitCount + ",misses=" + missCount
+                + ",evictions=" + evictionCount + "]";
+    }
+
+    private void retain(Bitmap bitmap) {
+        Integer count = inUse.get(bitmap);
+        inUse.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    /* bitmap left the map, it goes to the pool unless a caller still holds it */
+    private void removed(Bitmap bitmap) {
+        cached.remove(bitmap);
+        if (!inUse.containsKey(bitmap)) {
+            releaseBitmap(bitmap);
+        }
+    }
+
+    private void releaseBitmap(Bitmap bitmap) {
+        if (bitmapPool != null) {
+            bitmapPool.release(bitmap);
+        }
+    }
+
+    static int sizeOf(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+}
@@ -0,0 +1,183 @@
+package com.shockwave.pdfium.render;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.shockwave.pdfium.PdfDocument;
+import com.shockwave.pdfium.PdfiumCore;
+
+import java.util.concurrent.Executor;
+
+/**
+ * "Flatten for display" mode for pages with many annotations, e.g. markup-heavy review copies.
+ * <p>
+ * Pages are flattened with {@link PdfiumCore#flattenPage(PdfDocument, int)} one after another on
+ * a background executor. Each page holds the document lock only while it is flattened, so rendering
+ * of other pages goes on in between, and renders started afterwards use the flattened page.
+ * Optionally the page is rendered to a probe bitmap before and after flattening, to measure
+ * whether flattening pays off.
+ */
+public class PageFlattener {
+    private static final String TAG = PageFlattener.class.getName();
+
+    /** Receives results. Called on the executor thread. */
+    public interface Listener {
+        void onPageFlattened(Result result);
+
+        /** Called once, after the last page was flattened or when flattening was cancelled */
+        void onFinished(PageFlattener flattener);
+    }
+
+    /** Outcome of flattening one page */
+    public static class Result {
+        private final int pageIndex;
+        private final int status;
+        private final long flattenMillis;
+        private final long renderMicrosBefore;
+        private final long renderMicrosAfter;
+
+        Result(int pageIndex, int status, long flattenMillis, long renderMicrosBefore, long renderMicrosAfter) {
+            this.pageIndex = pageIndex;
+            this.status = status;
+            this.flattenMillis = flattenMillis;
+            this.renderMicrosBefore = renderMicrosBefore;
+            this.renderMicrosAfter = renderMicrosAfter;
+        }
+
+        public int getPageIndex() {
+            return pageIndex;
+        }
+
+        /**
+         * @return {@link PdfiumCore#FLATTEN_SUCCESS}, {@link PdfiumCore#FLATTEN_NOTHING_TO_DO}
+         * or {@link PdfiumCore#FLATTEN_FAIL}
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        public long getFlattenMillis() {
+            return flattenMillis;
+        }
+
+        /** Render time of the probe bitmap before flattening, -1 if not measured */
+        public long getRenderMicrosBefore() {
+            return renderMicrosBefore;
+        }
+
+        /** Render time of the probe bitmap after flattening, -1 if not measured or nothing was flattened */
+        public long getRenderMicrosAfter() {
+            return renderMicrosAfter;
+        }
+    }
+
+    private final PdfiumCore pdfiumCore;
+    private final PdfDocument document;
+    private int probeWidth;
+    private int probeHeight;
+    private Bitmap probe;
+    private BitmapPool bitmapPool;
+    private volatile boolean cancelled;
+
+    public PageFlattener(PdfiumCore pdfiumCore, PdfDocument document) {
+        this.pdfiumCore = pdfiumCore;
+        this.document = document;
+    }
+
+    /** Set pool from which the probe bitmap is taken and to which it is released */
+    public synchronized void setBitmapPool(BitmapPool bitmapPool) {
+        releaseProbe();
+        this.bitmapPool = bitmapPool;
+    }
+
+    /**
+     * Measure render time of every page before and after flattening, by rendering it with
+     * annotations into a probe bitmap of given size. Measuring costs two extra renders per page.
+     *
+     * @param width  width of the probe bitmap, 0 disables measuring
+     * @param height height of the probe bitmap, 0 disables measuring
+     */
+    public synchronized void setMeasureRenderTime(int width, int height) {
+        probeWidth = width;
+        probeHeight = height;
+        releaseProbe();
+    }
+
+    /** Flatten page on the calling thread */
+    public synchronized Result flatten(int pageIndex) {
+        long before = measureRender(pageIndex);
+        long start = System.nanoTime();
+        int status = pdfiumCore.flattenPage(document, pageIndex);
+        long flattenMillis = (System.nanoTime() - start) / 1000000;
+        long after = status == PdfiumCore.FLATTEN_SUCCESS ? measureRender(pageIndex) : -1;
+        return new Result(pageIndex, status, flattenMillis, before, after);
+    }
+
+    /**
+     * Flatten pages one after another on the executor.
+     *
+     * @param pageIndexes pages in the order they should be flattened, e.g. visible pages first
+     */
+    public void flattenInBackground(Executor executor, final int[] pageIndexes, final Listener listener) {
+        cancelled = false;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int pageIndex : pageIndexes) {
+                        if (cancelled) {
+                            break;
+                        }
+                        try {
+                            listener.onPageFlattened(flatten(pageIndex));
+                        } catch (Exception e) {
+                            Log.e(TAG, "Cannot flatten page " + pageIndex, e);
+                        }
+                    }
+                } finally {
+                    listener.onFinished(PageFlattener.this);
+                }
+            }
+        });
+    }
+
+    /** Stop background flattening after the page being flattened at the moment */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /** Release the probe bitmap, to the pool if one is set */
+    public synchronized void release() {
+        setMeasureRenderTime(0, 0);
+    }
+
+    private void releaseProbe() {
+        if (probe != null) {
+            if (bitmapPool != null) {
+                bitmapPool.release(probe);
+            } else {
+                probe.recycle();
+            }
+            probe = null;
+        }
+    }
+
+    private long measureRender(int pageIndex) {
+        if (probeWidth <= 0 || probeHeight <= 0) {
+            return -1;
+        }
+        if (probe == null) {
+            probe = bitmapPool != null
+                    ? bitmapPool.acquire(probeWidth, probeHeight, Bitmap.Config.RGB_565)
+                    : Bitmap.createBitmap(probeWidth, probeHeight, Bitmap.Config.RGB_565);
+        }
+        if (!document.hasPage(pageIndex)) {
+            pdfiumCore.openPage(document, pageIndex);
+        }
+        long start = System.nanoTime();
+        if (!pdfiumCore.renderPageBitmap(document, probe, pageIndex, 0, 0, probeWidth, probeHeight, true)) {
+            return -1;
+        }
+        return (System.nanoTime() - start) / 1000;
+    }
+}
@@ -0,0 +1,453 @@
+package com.shockwave.pdfium.render;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.shockwave.pdfium.PdfDocument;
+import com.shockwave.pdfium.PdfiumCore;
+import com.shockwave.pdfium.util.WorkerThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders page thumbnails on a pool of worker threads and keeps them in a size bounded disk cache.
+ * <p>
+ * Thumbnails are rendered straight at their final size into RGB_565 bitmaps, without annotations
+ * and optionally in grayscale. They are stored as raw RGB_565 pixels, keyed by document content
+ * hash (see {@link com.shockwave.pdfium.util.ContentHash}), page index, requested size and
+ * grayscale flag, so a reopened document gets its thumbnails from disk without rendering.
+ * When the cache grows over its limit, least recently used files are deleted.
+ * <p>
+ * For every request, thumbnails found on disk are delivered first, then missing ones are rendered.
+ * Results are delivered to {@link Callback} on a worker thread, bitmaps are owned by the receiver.
+ * With {@link #setBitmapPool(BitmapPool)} thumbnails are rendered and read into pooled bitmaps,
+ * which the receiver releases to the pool once they are no longer drawn.
+ */
+public class ThumbnailService {
+    private static final String TAG = ThumbnailService.class.getName();
+
+    public static final int DEFAULT_THREAD_COUNT = 2;
+
+    private static final int FILE_MAGIC = 0x50544842;
+    private static final String FILE_SUFFIX = ".thumb";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Receives thumbnails. Called on a worker thread. */
+    public interface Callback {
+        /** @param fromCache true if thumbnail was read from disk cache instead of being rendered */
+        void onThumbnail(Request request, int pageIndex, Bitmap bitmap, boolean fromCache);
+
+        /** Called once, after the last thumbnail of the request was delivered or when it was cancelled */
+        void onRequestFinished(Request request);
+    }
+
+    /** Handle for thumbnails requested by a single {@link #request} call */
+    public static class Request {
+        final PdfDocument document;
+        final String documentHash;
+        final int fromPage;
+        final int toPage;
+        final int maxWidth;
+        final int maxHeight;
+        final boolean grayscale;
+        final Callback callback;
+        final AtomicInteger pending = new AtomicInteger();
+        /* own copy of page sizes in points, read by the first thumbnail rendered */
+        volatile float[] pageSizes;
+        private volatile boolean cancelled;
+
+        Request(PdfDocument document, String documentHash, int fromPage, int toPage,
+                int maxWidth, int maxHeight, boolean grayscale, Callback callback) {
+            this.document = document;
+            this.documentHash = documentHash;
+            this.fromPage = fromPage;
+            this.toPage = toPage;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+            this.grayscale = grayscale;
+            this.callback = callback;
+        }
+
+        /** Thumbnails not delivered yet will be dropped. Thumbnail being rendered at the moment is still delivered. */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /** Number of thumbnails not delivered yet */
+        public int getPendingThumbnails() {
+            return pending.get();
+        }
+    }
+
+    /**
+     * Files of cached thumbnails with total size, scanned lazily on first use so the constructor
+     * does no disk access. Last modification time of a file is its last use.
+     */
+    private static class DiskCache {
+        final File dir;
+        final long maxBytes;
+        long size = -1;
+
+        DiskCache(File dir, long maxBytes) {
+            this.dir = dir;
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized File get(String name) {
+            scan();
+            File file = new File(dir, name);
+            if (!file.isFile()) {
+                return null;
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+
+        synchronized void commit(File temp, String name) {
+            scan();
+            File file = new File(dir, name);
+            size -= file.length();
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                size = Math.max(0, size);
+                return;
+            }
+            size += file.length();
+            trim();
+        }
+
+        synchronized long getSize() {
+            scan();
+            return size;
+        }
+
+        synchronized void clear() {
+            for (File file : listFiles()) {
+                file.delete();
+            }
+            size = 0;
+        }
+
+        private void scan() {
+            if (size >= 0) {
+                return;
+            }
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                Log.e(TAG, "Cannot create thumbnail cache directory " + dir);
+            }
+            size = 0;
+            File[] temps = dir.listFiles();
+            if (temps != null) {
+                for (File file : temps) {
+                    // left over by a process killed while writing
+                    if (file.getName().endsWith(TEMP_SUFFIX)) {
+                        file.delete();
+                    }
+                }
+            }
+            for (File file : listFiles()) {
+                size += file.length();
+            }
+            trim();
+        }
+
+        private void trim() {
+            if (size <= maxBytes) {
+                return;
+            }
+            File[] files = listFiles();
+            final long[] used = new long[files.length];
+            Integer[] order = new Integer[files.length];
+            for (int i = 0; i < files.length; i++) {
+                used[i] = files[i].lastModified();
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return used[a] < used[b] ? -1 : (used[a] == used[b] ? 0 : 1);
+                }
+            });
+            for (int i = 0; i < order.length && size > maxBytes; i++) {
+                File file = files[order[i]];
+                long length = file.length();
+                if (file.delete()) {
+                    size -= length;
+                }
+            }
+        }
+
+        private File[] listFiles() {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return new File[0];
+            }
+            List<File> result = new ArrayList<>(files.length);
+            for (File file : files) {
+                if (file.getName().endsWith(FILE_SUFFIX)) {
+                    result.add(file);
+                }
+            }
+            return result.toArray(new File[result.size()]);
+        }
+    }
+
+    private final PdfiumCore pdfiumCore;
+    private final DiskCache diskCache;
+    private final ExecutorService executor;
+    private volatile BitmapPool bitmapPool;
+
+    public ThumbnailService(PdfiumCore pdfiumCore, File cacheDir, long maxCacheBytes) {
+        this(pdfiumCore, cacheDir, maxCacheBytes, DEFAULT_THREAD_COUNT);
+    }
+
+    /**
+     * @param cacheDir      directory used only by this cache, e.g. a subdirectory of the app cache dir
+     * @param maxCacheBytes maximum total size of cached thumbnail files
+     * @param threadCount   number of worker threads
+     */
+    public ThumbnailService(PdfiumCore pdfiumCore, File cacheDir, long maxCacheBytes, int threadCount) {
+        if (maxCacheBytes <= 0 || threadCount <= 0) {
+            throw new IllegalArgumentException("Cache size and thread count must be positive");
+        }
+        this.pdfiumCore = pdfiumCore;
+        this.diskCache = new DiskCache(cacheDir, maxCacheBytes);
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory("PdfiumThumbnail"));
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+    }
+
+    /** Set pool from which bitmaps of thumbnails are taken, null to allocate them */
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+    }
+
+    /**
+     * Load or render thumbnails of pages [fromPage, toPage]. Thumbnail keeps the page aspect ratio
+     * and fits into given size.
+     *
+     * @param doc          pdf document, pages are opened if needed
+     * @param documentHash stable identifier of document content, e.g. from
+     *                     {@link com.shockwave.pdfium.util.ContentHash}
+     * @param fromPage     index of the first page
+     * @param toPage       index of the last page, inclusive
+     * @param maxWidth     maximum thumbnail width in pixels
+     * @param maxHeight    maximum thumbnail height in pixels
+     * @param grayscale    whether thumbnails should be rendered in grayscale
+     * @param callback     receives thumbnails
+     * @return handle which allows to cancel remaining thumbnails
+     */
+    public Request request(PdfDocument doc, String documentHash, int fromPage, int toPage,
+                           int maxWidth, int maxHeight, boolean grayscale, Callback callback) {
+        if (maxWidth <= 0 || maxHeight <= 0) {
+            throw new IllegalArgumentException("Thumbnail size must be positive");
+        }
+        final Request request = new Request(doc, documentHash, fromPage, toPage,
+                maxWidth, maxHeight, grayscale, callback);
+        if (toPage < fromPage) {
+            callback.onRequestFinished(request);
+            return request;
+        }
+        request.pending.set(toPage - fromPage + 1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadCached(request);
+            }
+        });
+        return request;
+    }
+
+    /**
+     * Read thumbnail from disk cache on the calling thread. Files are small, so it is cheap enough
+     * to fill the first visible cells of a grid before requesting the rest.
+     *
+     * @return thumbnail or null if it is not cached
+     */
+    public Bitmap getCached(String documentHash, int pageIndex, int maxWidth, int maxHeight, boolean grayscale) {
+        File file = diskCache.get(fileName(documentHash, pageIndex, maxWidth, maxHeight, grayscale));
+        return file != null ? readThumbnail(file) : null;
+    }
+
+    /** Total size of cached thumbnail files in bytes */
+    public long getCacheSizeBytes() {
+        return diskCache.getSize();
+    }
+
+    /** Delete all cached thumbnails */
+    public void clearCache() {
+        diskCache.clear();
+    }
+
+    /** Stop worker threads. Pending thumbnails are dropped, requests are not finished. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void loadCached(Request request) {
+        List<Integer> missing = new ArrayList<>();
+        for (int page = request.fromPage; page <= request.toPage; page++) {
+            if (request.isCancelled()) {
+                finish(request);
+                continue;
+            }
+            Bitmap bitmap = getCached(request.documentHash, page, request.maxWidth,
+                    request.maxHeight, request.grayscale);
+            if (bitmap == null) {
+                missing.add(page);
+                continue;
+            }
+            try {
+                request.callback.onThumbnail(request, page, bitmap, true);
+            } catch (Exception e) {
+                Log.e(TAG, "Cannot deliver thumbnail of page " + page, e);
+            } finally {
+                finish(request);
+            }
+        }
+        for (final int page : missing) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    renderJob(request, page);
+                }
+            });
+        }
+    }
+
+    private void renderJob(Request request, int pageIndex) {
+        try {
+            if (!request.isCancelled()) {
+                Bitmap bitmap = renderThumbnail(request, pageIndex);
+                if (bitmap == null) {
+                    Log.e(TAG, "Cannot render thumbnail of page " + pageIndex);
+                    return;
+                }
+                store(request, pageIndex, bitmap);
+                request.callback.onThumbnail(request, pageIndex, bitmap, false);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Cannot render thumbnail of page " + pageIndex, e);
+        } finally {
+            finish(request);
+        }
+    }
+
+    /** @return thumbnail or null if the page could not be rendered */
+    private Bitmap renderThumbnail(Request request, int pageIndex) {
+        PdfDocument doc = request.document;
+        float[] sizes = request.pageSizes;
+        if (sizes == null) {
+            sizes = pdfiumCore.getAllPageSizesPoint(doc);
+            request.pageSizes = sizes;
+        }
+        float pageWidth = sizes[pageIndex * 2];
+        float pageHeight = sizes[pageIndex * 2 + 1];
+        float scale = Math.min(request.maxWidth / pageWidth, request.maxHeight / pageHeight);
+        int width = Math.max(1, Math.min(request.maxWidth, Math.round(pageWidth * scale)));
+        int height = Math.max(1, Math.min(request.maxHeight, Math.round(pageHeight * scale)));
+
+        if (!doc.hasPage(pageIndex)) {
+            pdfiumCore.openPage(doc, pageIndex);
+        }
+        Bitmap bitmap = createBitmap(width, height);
+        if (!pdfiumCore.renderPageBitmap(doc, bitmap, pageIndex, 0, 0, width, height,
+                false, request.grayscale)) {
+            BitmapPool pool = bitmapPool;
+            if (pool != null) {
+                pool.release(bitmap);
+            }
+            return null;
+        }
+        return bitmap;
+    }
+
+    private void store(Request request, int pageIndex, Bitmap bitmap) {
+        String name = fileName(request.documentHash, pageIndex, request.maxWidth,
+                request.maxHeight, request.grayscale);
+        File temp = new File(diskCache.dir, name + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+        try {
+            ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+            bitmap.copyPixelsToBuffer(pixels);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(bitmap.getWidth());
+                out.writeInt(bitmap.getHeight());
+                out.write(pixels.array(), 0, pixels.capacity());
+            } finally {
+                out.close();
+            }
+            diskCache.commit(temp, name);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot store thumbnail of page " + pageIndex, e);
+            temp.delete();
+        }
+    }
+
+    /** @return thumbnail or null if file is damaged or was deleted meanwhile */
+    private Bitmap readThumbnail(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FILE_MAGIC) {
+                    return null;
+                }
+                int width = in.readInt();
+                int height = in.readInt();
+                if (width <= 0 || height <= 0 || (long) width * height * 2 != file.length() - 12) {
+                    return null;
+                }
+                byte[] pixels = new byte[width * height * 2];
+                in.readFully(pixels);
+                Bitmap bitmap = createBitmap(width, height);
+                bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+                return bitmap;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private Bitmap createBitmap(int width, int height) {
+        BitmapPool pool = bitmapPool;
+        return pool != null
+                ? pool.acquire(width, height, Bitmap.Config.RGB_565)
+                : Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+    }
+
+    private static String fileName(String documentHash, int pageIndex, int maxWidth, int maxHeight,
+                                   boolean grayscale) {
+        return documentHash + "_" + pageIndex + "_" + maxWidth + "x" + maxHeight
+                + (grayscale ? "_g" : "") + FILE_SUFFIX;
+    }
+
+    private static void finish(Request request) {
+        if (request.pending.decrementAndGet() == 0) {
+            request.callback.onRequestFinished(request);
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package com.shockwave.pdfium.render;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.shockwave.pdfium.PdfDocument;
+import com.shockwave.pdfium.PdfiumCore;
+import com.shockwave.pdfium.util.WorkerThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders page viewports as fixed-size tiles on a pool of worker threads.
+ * <p>
+ * Tiles are fragments of a page rendered at a given size, using the same clipping model as
+ * {@link PdfiumCore#renderPageBitmap(PdfDocument, Bitmap, int, int, int, int, int, boolean)}.
+ * Every document gets its own lane: tiles of one document are rendered one after another,
+ * lanes of different documents take turns on the workers. PDFium calls are serialized by
+ * {@link PdfiumCore}, so workers overlap rendering with queueing, caching and delivery of tiles
+ * rather than rendering at the same time. Tiles intersecting the visible area are rendered first, closest to
+ * its center first, then tiles of the prefetch margin.
+ * <p>
+ * Finished tiles are delivered to {@link Callback} on the worker thread which rendered them.
+ * Tiles which PDFium failed to render are logged and skipped, they are neither delivered nor cached.
+ */
+public class TileRenderer {
+    private static final String TAG = TileRenderer.class.getName();
+
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    /** Receives rendered tiles. Called on a worker thread. */
+    public interface Callback {
+        void onTileRendered(Tile tile);
+
+        /** Called once, after the last tile of the request was delivered or when it was cancelled */
+        void onRequestFinished(Request request);
+    }
+
+    /** Rendered fragment of a page */
+    public static class Tile {
+        private final int pageIndex;
+        private final int column;
+        private final int row;
+        private final Rect bounds;
+        private final boolean visible;
+        Bitmap bitmap;
+        /* cache which holds the bitmap for this tile, null if the tile owns it */
+        PageBitmapCache cache;
+
+        Tile(int pageIndex, int column, int row, Rect bounds, boolean visible) {
+            this.pageIndex = pageIndex;
+            this.column = column;
+            this.row = row;
+            this.bounds = bounds;
+            this.visible = visible;
+        }
+
+        public int getPageIndex() {
+            return pageIndex;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        /** Tile position in rendered page coordinates (pixels, 0,0 is the top left page corner) */
+        public Rect getBounds() {
+            return bounds;
+        }
+
+        /** Whether tile intersects visible area of the request */
+        public boolean isVisible() {
+            return visible;
+        }
+
+        public Bitmap getBitmap() {
+            return bitmap;
+        }
+    }
+
+    /** Handle for tiles requested by a single {@link #render} call */
+    public static class Request {
+        final PdfDocument document;
+        final int pageIndex;
+        final int pageWidth;
+        final int pageHeight;
+        final Bitmap.Config config;
+        final boolean renderAnnot;
+        final Callback callback;
+        final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean cancelled;
+
+        Request(PdfDocument document, int pageIndex, int pageWidth, int pageHeight,
+                Bitmap.Config config, boolean renderAnnot, Callback callback) {
+            this.document = document;
+            this.pageIndex = pageIndex;
+            this.pageWidth = pageWidth;
+            this.pageHeight = pageHeight;
+            this.config = config;
+            this.renderAnnot = renderAnnot;
+            this.callback = callback;
+        }
+
+        /** Tiles not rendered yet will be dropped. Tile being rendered at the moment is still delivered. */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public int getPageIndex() {
+            return pageIndex;
+        }
+
+        /** Number of tiles not delivered yet */
+        public int getPendingTiles() {
+            return pending.get();
+        }
+    }
+
+    private static class Job {
+        final Request request;
+        final Tile tile;
+        final long sequence;
+        final long distance;
+
+        Job(Request request, Tile tile, long sequence, long distance) {
+            this.request = request;
+            this.tile = tile;
+            this.sequence = sequence;
+            this.distance = distance;
+        }
+    }
+
+    private static final Comparator<Job> JOB_ORDER = new Comparator<Job>() {
+        @Override
+        public int compare(Job a, Job b) {
+            if (a.tile.visible != b.tile.visible) {
+                return a.tile.visible ? -1 : 1;
+            }
+            // newer requests first, older ones are likely scrolled away
+            if (a.request != b.request) {
+                return a.sequence > b.sequence ? -1 : 1;
+            }
+            return a.distance < b.distance ? -1 : (a.distance == b.distance ? 0 : 1);
+        }
+    };
+
+    /** Serial queue of jobs for one document */
+    private class Lane implements Runnable {
+        final PdfDocument document;
+        final PriorityQueue<Job> jobs = new PriorityQueue<>(16, JOB_ORDER);
+        boolean scheduled;
+
+        Lane(PdfDocument document) {
+            this.document = document;
+        }
+
+        @Override
+        public void run() {
+            Job job;
+            synchronized (lanes) {
+                job = jobs.poll();
+            }
+            if (job != null) {
+                renderJob(job);
+            }
+            List<Job> dropped = null;
+            synchronized (lanes) {
+                if (!jobs.isEmpty() && executor.isShutdown()) {
+                    // added while this job was rendered, the executor would reject the lane
+                    dropped = new ArrayList<>(jobs);
+                    jobs.clear();
+                }
+                if (jobs.isEmpty()) {
+                    scheduled = false;
+                    lanes.remove(document);
+                } else {
+                    // resubmit instead of looping, so lanes of other documents get their turn
+                    executor.execute(this);
+                }
+            }
+            if (dropped != null) {
+                dropJobs(dropped);
+            }
+        }
+    }
+
+    private final PdfiumCore pdfiumCore;
+    private final int tileSize;
+    private final ExecutorService executor;
+    private final Map<PdfDocument, Lane> lanes = new IdentityHashMap<>();
+    private long requestSequence;
+    private volatile PageBitmapCache cache;
+    private volatile BitmapPool bitmapPool;
+
+    public TileRenderer(PdfiumCore pdfiumCore) {
+        this(pdfiumCore, DEFAULT_TILE_SIZE, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param tileSize    edge of a square tile in pixels
+     * @param threadCount number of worker threads shared by all documents
+     */
+    public TileRenderer(PdfiumCore pdfiumCore, int tileSize, int threadCount) {
+        if (tileSize <= 0 || threadCount <= 0) {
+            throw new IllegalArgumentException("Tile size and thread count must be positive");
+        }
+        this.pdfiumCore = pdfiumCore;
+        this.tileSize = tileSize;
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory("PdfiumTile"));
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Set cache used to look up tiles before rendering them and to store rendered tiles.
+     * Bitmaps of tiles delivered to {@link Callback} are then owned by the cache and must not be recycled.
+     * The cache keeps them for the tile until {@link #releaseTile(Tile)}, even if it evicts them meanwhile.
+     */
+    public void setCache(PageBitmapCache cache) {
+        this.cache = cache;
+    }
+
+    public PageBitmapCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Set pool from which tile bitmaps are taken. Return bitmaps of tiles which are no longer drawn
+     * with {@link #releaseTile(Tile)}. With both a cache and a pool every delivered tile must be released,
+     * otherwise bitmaps evicted from the cache never go back to the pool.
+     */
+    public void setBitmapPool(BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+    }
+
+    /** Give bitmap of a tile back to the cache which holds it for the tile, or to the pool */
+    public void releaseTile(Tile tile) {
+        BitmapPool pool = bitmapPool;
+        if (tile.bitmap != null) {
+            if (tile.cache != null) {
+                tile.cache.release(tile.bitmap);
+            } else if (pool != null) {
+                pool.release(tile.bitmap);
+            }
+        }
+        tile.bitmap = null;
+        tile.cache = null;
+    }
+
+    /**
+     * Render tiles of page covering given viewport.
+     *
+     * @param doc            pdf document
+     * @param pageIndex      index of page, it is opened if needed
+     * @param pageWidth      width of whole rendered page in pixels (zoom level)
+     * @param pageHeight     height of whole rendered page in pixels (zoom level)
+     * @param visible        visible part of the page in rendered page coordinates
+     * @param prefetchMargin number of pixels around visible area which are rendered afterwards
+     * @param config         ARGB_8888 or RGB_565
+     * @param renderAnnot    whether annotations should be rendered
+     * @param callback       receives rendered tiles
+     * @return handle which allows to cancel remaining tiles, the request is cancelled and finished
+     * right away after {@link #shutdown()}
+     */
+    public Request render(PdfDocument doc, int pageIndex, int pageWidth, int pageHeight,
+                          Rect visible, int prefetchMargin, Bitmap.Config config,
+                          boolean renderAnnot, Callback callback) {
+        Request request = new Request(doc, pageIndex, pageWidth, pageHeight, config, renderAnnot, callback);
+
+        Rect area = new Rect(visible.left - prefetchMargin, visible.top - prefetchMargin,
+                visible.right + prefetchMargin, visible.bottom + prefetchMargin);
+        if (!area.intersect(0, 0, pageWidth, pageHeight)) {
+            callback.onRequestFinished(request);
+            return request;
+        }
+
+        int centerX = visible.centerX();
+        int centerY = visible.centerY();
+        List<Tile> tiles = new ArrayList<>();
+        for (int row = area.top / tileSize; row * tileSize < area.bottom; row++) {
+            for (int col = area.left / tileSize; col * tileSize < area.right; col++) {
+                Rect bounds = new Rect(col * tileSize, row * tileSize,
+                        Math.min((col + 1) * tileSize, pageWidth),
+                        Math.min((row + 1) * tileSize, pageHeight));
+                tiles.add(new Tile(pageIndex, col, row, bounds, Rect.intersects(bounds, visible)));
+            }
+        }
+
+        request.pending.set(tiles.size());
+        synchronized (lanes) {
+            if (executor.isShutdown()) {
+                request.cancel();
+                request.pending.set(0);
+                callback.onRequestFinished(request);
+                return request;
+            }
+            long sequence = ++requestSequence;
+            Lane lane = lanes.get(doc);
+            if (lane == null) {
+                lane = new Lane(doc);
+                lanes.put(doc, lane);
+            }
+            for (Tile tile : tiles) {
+                long dx = tile.bounds.centerX() - centerX;
+                long dy = tile.bounds.centerY() - centerY;
+                lane.jobs.add(new Job(request, tile, sequence, dx * dx + dy * dy));
+            }
+            if (!lane.scheduled) {
+                lane.scheduled = true;
+                executor.execute(lane);
+            }
+        }
+        return request;
+    }
+
+    /** Cancel all pending tiles of given document, e.g. before closing it */
+    public void cancel(PdfDocument doc) {
+        List<Job> dropped;
+        synchronized (lanes) {
+            Lane lane = lanes.get(doc);
+            if (lane == null) {
+                return;
+            }
+            dropped = new ArrayList<>(lane.jobs);
+            lane.jobs.clear();
+        }
+        dropJobs(dropped);
+    }
+
+    /**
+     * Stop worker threads. Pending tiles are dropped, the tile being rendered is still delivered.
+     * Requests made afterwards are finished without rendering.
+     */
+    public void shutdown() {
+        List<Job> dropped = new ArrayList<>();
+        synchronized (lanes) {
+            for (Lane lane : lanes.values()) {
+                dropped.addAll(lane.jobs);
+                lane.jobs.clear();
+            }
+            // under the lock, so render() never queues jobs the executor would reject
+            executor.shutdown();
+        }
+        dropJobs(dropped);
+    }
+
+    private static void dropJobs(List<Job> jobs) {
+        for (Job job : jobs) {
+            job.request.cancel();
+            finishJob(job);
+        }
+    }
+
+    private void renderJob(Job job) {
+        Request request = job.request;
+        Tile tile = job.tile;
+        try {
+            if (!request.isCancelled()) {
+                PageBitmapCache cache = this.cache;
+                PageBitmapCache.Key key = null;
+                if (cache != null) {
+                    key = new PageBitmapCache.Key(request.document, request.pageIndex,
+                            request.pageWidth, request.pageHeight, tile.bounds,
+                            request.config, request.renderAnnot);
+                    tile.bitmap = cache.acquire(key);
+                }
+                tile.cache = tile.bitmap != null ? cache : null;
+                if (tile.bitmap == null) {
+                    if (!renderTile(request, tile)) {
+                        Log.e(TAG, "Cannot render tile " + tile.column + "x" + tile.row
+                                + " of page " + request.pageIndex);
+                        return;
+                    }
+                    // tiles larger than the whole cache are not cached and stay owned by the tile
+                    if (cache != null && cache.putAndAcquire(key, tile.bitmap)) {
+                        tile.cache = cache;
+                    }
+                }
+                request.callback.onTileRendered(tile);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Cannot render tile " + tile.column + "x" + tile.row
+                    + " of page " + request.pageIndex, e);
+        } finally {
+            finishJob(job);
+        }
+    }
+
+    /** @return false if the page could not be rendered, the tile has no bitmap then */
+    private boolean renderTile(Request request, Tile tile) {
+        if (!request.document.hasPage(request.pageIndex)) {
+            pdfiumCore.openPage(request.document, request.pageIndex);
+        }
+        Rect bounds = tile.bounds;
+        BitmapPool pool = bitmapPool;
+        tile.bitmap = pool != null
+                ? pool.acquire(bounds.width(), bounds.height(), request.config)
+                : Bitmap.createBitmap(bounds.width(), bounds.height(), request.config);
+        if (!pdfiumCore.renderPageBitmap(request.document, tile.bitmap, request.pageIndex,
+                -bounds.left, -bounds.top, request.pageWidth, request.pageHeight,
+                request.renderAnnot)) {
+            if (pool != null) {
+                pool.release(tile.bitmap);
+            }
+            tile.bitmap = null;
+            return false;
+        }
+        return true;
+    }
+
+    private static void finishJob(Job job) {
+        if (job.request.pending.decrementAndGet() == 0) {
+            job.request.callback.onRequestFinished(job.request);
+        }
+    }
+}
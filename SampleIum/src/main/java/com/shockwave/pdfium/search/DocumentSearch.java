@@ -0,0 +1,221 @@
+package com.shockwave.pdfium.search;
+
+import android.util.Log;
+
+import com.shockwave.pdfium.PdfDocument;
+import com.shockwave.pdfium.PdfiumCore;
+import com.shockwave.pdfium.util.WorkerThreadFactory;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Searches whole documents on a background worker thread.
+ * <p>
+ * Pages of a request are searched in order, hits are delivered to {@link Listener} as soon as a page
+ * is searched. PDFium calls are serialized by {@link PdfiumCore}, so one worker is the default: more
+ * workers only overlap delivering hits of one page with searching the next one, and take pages of a
+ * request out of order.
+ * <p>
+ * Listener methods are called on worker threads, with more than one worker possibly concurrently and not
+ * in page order.
+ */
+public class DocumentSearch {
+    private static final String TAG = DocumentSearch.class.getName();
+
+    /** Receives results of a request. Called on worker threads. */
+    public interface Listener {
+        void onHit(Request request, SearchHit hit);
+
+        /** Called after a page was searched, hits of the page were delivered before */
+        void onPageSearched(Request request, int pageIndex);
+
+        /** Called once, after the last page was searched, the hit limit was reached or request was cancelled */
+        void onFinished(Request request, int hitCount);
+    }
+
+    /** Search of a single document */
+    public static class Request {
+        private final PdfDocument doc;
+        private final String query;
+        private final boolean matchCase;
+        private final boolean matchWholeWord;
+        private final int maxHits;
+        private final Listener listener;
+        private final int pageCount;
+
+        private final AtomicInteger nextPage = new AtomicInteger();
+        private final AtomicInteger hitCount = new AtomicInteger();
+        private final AtomicInteger activeWorkers = new AtomicInteger();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile boolean cancelled;
+
+        Request(PdfDocument doc, String query, boolean matchCase, boolean matchWholeWord,
+                int maxHits, Listener listener, int pageCount) {
+            this.doc = doc;
+            this.query = query;
+            this.matchCase = matchCase;
+            this.matchWholeWord = matchWholeWord;
+            this.maxHits = maxHits;
+            this.listener = listener;
+            this.pageCount = pageCount;
+        }
+
+        public PdfDocument getDocument() {
+            return doc;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        /** Number of hits delivered so far */
+        public int getHitCount() {
+            return Math.min(hitCount.get(), maxHits > 0 ? maxHits : Integer.MAX_VALUE);
+        }
+
+        /** Stop searching, page being searched at the moment is finished but its hits are dropped */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isFinished() {
+            return finished.get();
+        }
+
+        private boolean isLimitReached() {
+            return maxHits > 0 && hitCount.get() >= maxHits;
+        }
+    }
+
+    private final PdfiumCore core;
+    private final ExecutorService executor;
+    private final int threads;
+    /* requests which did not finish yet, guarded by itself */
+    private final Set<Request> active = new HashSet<>();
+
+    /** @param threads number of worker threads, see the class description before using more than one */
+    public DocumentSearch(PdfiumCore core, int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads <= 0");
+        }
+        this.core = core;
+        this.threads = threads;
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory("PdfiumSearch"));
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+    }
+
+    public DocumentSearch(PdfiumCore core) {
+        this(core, 1);
+    }
+
+    /**
+     * Start searching all pages of the document.
+     *
+     * @param maxHits  stop after this number of hits, 0 for no limit
+     * @param listener receives hits
+     * @return handle used to cancel the request. After {@link #shutdown()} the request is cancelled and
+     * its listener is notified that it finished before this method returns.
+     */
+    public Request search(PdfDocument doc, String query, boolean matchCase, boolean matchWholeWord,
+                          int maxHits, Listener listener) {
+        if (query == null || query.isEmpty()) {
+            throw new IllegalArgumentException("Empty query");
+        }
+        int pageCount = core.getPageCount(doc);
+        final Request request = new Request(doc, query, matchCase, matchWholeWord, maxHits,
+                listener, pageCount);
+
+        int workers = Math.max(1, Math.min(threads, pageCount));
+        request.activeWorkers.set(workers);
+        synchronized (active) {
+            if (!executor.isShutdown()) {
+                active.add(request);
+                for (int i = 0; i < workers; i++) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            scan(request);
+                        }
+                    });
+                }
+                return request;
+            }
+        }
+        request.cancel();
+        request.finished.set(true);
+        listener.onFinished(request, 0);
+        return request;
+    }
+
+    /**
+     * Stop worker threads. Requests which did not finish yet are cancelled, page being searched
+     * at the moment is finished and listeners get {@link Listener#onFinished} with the hits delivered so far.
+     */
+    public void shutdown() {
+        synchronized (active) {
+            for (Request request : active) {
+                request.cancel();
+            }
+            // under the lock, so search() never submits workers the executor would reject
+            executor.shutdown();
+        }
+    }
+
+    private void scan(Request request) {
+        try {
+            int pageIndex;
+            while (!request.cancelled && !request.isLimitReached()
+                    && (pageIndex = request.nextPage.getAndIncrement()) < request.pageCount) {
+                searchPage(request, pageIndex);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Search failed", e);
+        } finally {
+            if (request.activeWorkers.decrementAndGet() == 0
+                    && request.finished.compareAndSet(false, true)) {
+                synchronized (active) {
+                    active.remove(request);
+                }
+                request.listener.onFinished(request, request.getHitCount());
+            }
+        }
+    }
+
+    private void searchPage(Request request, int pageIndex) {
+        int budget = 0;
+        if (request.maxHits > 0) {
+            budget = request.maxHits - request.hitCount.get();
+            if (budget <= 0) {
+                return;
+            }
+        }
+        List<SearchHit> hits = core.searchPage(request.doc, pageIndex, request.query,
+                request.matchCase, request.matchWholeWord, budget);
+        for (SearchHit hit : hits) {
+            if (request.cancelled) {
+                return;
+            }
+            int count = request.hitCount.incrementAndGet();
+            if (request.maxHits > 0 && count > request.maxHits) {
+                return;
+            }
+            request.listener.onHit(request, hit);
+        }
+        if (!request.cancelled) {
+            request.listener.onPageSearched(request, pageIndex);
+        }
+    }
+}
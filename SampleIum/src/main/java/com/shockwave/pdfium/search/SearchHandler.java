@@ -1,12 +0,0 @@
-package com.shockwave.pdfium.search;
-
-import android.graphics.Rect;
-
-public interface SearchHandler {
-    int getStartIndex();
-
-    int getStopIndex();
-
-    Rect[] getResults();
-
-}
@@ -1,8 +1,46 @@
 package com.shockwave.pdfium.search;
 
-import android.graphics.Rect;
+import android.graphics.RectF;
 
+/** Occurrence of a search query on a page */
 public class SearchHit {
-    private int textIndex;
-    private Rect bound;
+    private final int pageIndex;
+    private final int textIndex;
+    private final int length;
+    private final RectF[] bounds;
+
+    public SearchHit(int pageIndex, int textIndex, int length, RectF[] bounds) {
+        this.pageIndex = pageIndex;
+        this.textIndex = textIndex;
+        this.length = length;
+        this.bounds = bounds;
+    }
+
+    public int getPageIndex() {
+        return pageIndex;
+    }
+
+    /** Index of the first matched character on the page */
+    public int getTextIndex() {
+        return textIndex;
+    }
+
+    /** Number of matched characters */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Highlight rectangles in PDF "user space", characters on the same line are merged into one
+     * rectangle
+     */
+    public RectF[] getBounds() {
+        return bounds;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchHit{page=" + pageIndex + ", index=" + textIndex + ", length=" + length
+                + ", rects=" + bounds.length + "}";
+    }
 }
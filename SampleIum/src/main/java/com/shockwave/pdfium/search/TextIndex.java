@@ -0,0 +1,631 @@
+package com.shockwave.pdfium.search;
+
+import android.graphics.RectF;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.shockwave.pdfium.PdfDocument;
+import com.shockwave.pdfium.PdfiumCore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Inverted word index of document text, stored on disk and keyed by hash of document content.
+ * <p>
+ * Index is built page by page from the text page API, see {@link #indexPages(int)} and
+ * {@link #buildInBackground(Executor, BuildListener)}. Indexed pages are appended to
+ * {@code <hash>.pages} (page text and character boxes), word postings are saved to
+ * {@code <hash>.terms} when building finishes or the index is closed. Interrupted build continues
+ * where it stopped when the index is opened again.
+ * <p>
+ * {@link #search(String, boolean, int)} answers queries from the index only, without loading any
+ * text page. Queries match case insensitively at word starts and whitespace in the query matches
+ * any whitespace, including line breaks. Only indexed pages are searched.
+ * <p>
+ * Index must be closed before the document is closed.
+ */
+public class TextIndex {
+    private static final String TAG = TextIndex.class.getName();
+
+    private static final int PAGES_MAGIC = 0x50495850; // PIXP
+    private static final int TERMS_MAGIC = 0x50495854; // PIXT
+    private static final int VERSION = 1;
+    private static final int PAGES_HEADER_SIZE = 12;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int BUILD_BATCH_PAGES = 8;
+
+    /** Receives progress of background build, called on the build thread */
+    public interface BuildListener {
+        void onProgress(TextIndex index, int indexedPages, int pageCount);
+
+        /** @param error null if all pages were indexed or build was cancelled */
+        void onFinished(TextIndex index, IOException error);
+    }
+
+    /** Growable list of (page, char offset) pairs */
+    private static final class Postings {
+        int[] data = new int[4];
+        int size;
+
+        void add(int pageIndex, int offset) {
+            if (size + 2 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = pageIndex;
+            data[size++] = offset;
+        }
+    }
+
+    /**
+     * Postings of several terms merged in (page, char offset) order. Postings of every term are already
+     * in that order, so they are merged lazily instead of being copied and sorted, and a search limited
+     * to a few hits reads only the first postings of terms sharing a short prefix.
+     */
+    private static final class Candidates {
+        private static final Comparator<int[]> ORDER = new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return a[0] != b[0] ? (a[0] < b[0] ? -1 : 1) : (a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1));
+            }
+        };
+
+        /* (page, offset, list index, position) of the next posting of every list which has one */
+        private final PriorityQueue<int[]> heads;
+        private final Postings[] lists;
+
+        Candidates(Collection<Postings> lists) {
+            this.lists = lists.toArray(new Postings[lists.size()]);
+            this.heads = new PriorityQueue<>(Math.max(1, this.lists.length), ORDER);
+            for (int i = 0; i < this.lists.length; i++) {
+                if (this.lists[i].size > 0) {
+                    heads.add(new int[]{this.lists[i].data[0], this.lists[i].data[1], i, 0});
+                }
+            }
+        }
+
+        boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        /** @return page index in the upper and char offset in the lower 32 bits */
+        long next() {
+            int[] head = heads.poll();
+            long result = ((long) head[0] << 32) | head[1];
+            Postings postings = lists[head[2]];
+            head[3] += 2;
+            if (head[3] < postings.size) {
+                head[0] = postings.data[head[3]];
+                head[1] = postings.data[head[3] + 1];
+                heads.add(head);
+            }
+            return result;
+        }
+    }
+
+    private final PdfiumCore core;
+    private final PdfDocument doc;
+    private final File pagesFile;
+    private final File termsFile;
+    private final int pageCount;
+
+    private final Object buildLock = new Object();
+    private final RandomAccessFile pages;
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private long[] recordOffsets;
+    private int indexedPages;
+    private boolean termsSaved;
+    private volatile boolean buildCancelled;
+    private volatile boolean closed;
+
+    /* last read page record */
+    private int cachedPage = -1;
+    private String cachedText;
+    private float[] cachedBoxes;
+
+    private long buildTimeMillis;
+    private long lastQueryMicros;
+
+    private TextIndex(PdfiumCore core, PdfDocument doc, File directory, String contentHash,
+                      int pageCount) throws IOException {
+        this.core = core;
+        this.doc = doc;
+        this.pageCount = pageCount;
+        this.pagesFile = new File(directory, contentHash + ".pages");
+        this.termsFile = new File(directory, contentHash + ".terms");
+        this.recordOffsets = new long[pageCount + 1];
+        this.pages = new RandomAccessFile(pagesFile, "rw");
+    }
+
+    /**
+     * Open index of the document, creating an empty one if there is no index yet.
+     *
+     * @param directory   directory holding index files
+     * @param contentHash hash of document content, see {@link com.shockwave.pdfium.util.ContentHash}
+     */
+    public static TextIndex open(PdfiumCore core, PdfDocument doc, File directory,
+                                 String contentHash) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        TextIndex index = new TextIndex(core, doc, directory, contentHash, core.getPageCount(doc));
+        try {
+            index.load();
+        } catch (IOException e) {
+            index.pages.close();
+            throw e;
+        }
+        return index;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public synchronized int getIndexedPageCount() {
+        return indexedPages;
+    }
+
+    public synchronized boolean isComplete() {
+        return indexedPages == pageCount;
+    }
+
+    /** Time spent indexing pages since the index was opened */
+    public synchronized long getBuildTimeMillis() {
+        return buildTimeMillis;
+    }
+
+    /** Duration of the last {@link #search(String, boolean, int)} call */
+    public synchronized long getLastQueryMicros() {
+        return lastQueryMicros;
+    }
+
+    /** Size of index files on disk */
+    public long getSizeBytes() {
+        return pagesFile.length() + termsFile.length();
+    }
+
+    /**
+     * Index next pages of the document on the calling thread. Returns early after the page being indexed
+     * when the build is cancelled or the index is closed meanwhile.
+     *
+     * @param maxPages maximum number of pages to index
+     * @return number of pages indexed by this call
+     */
+    public int indexPages(int maxPages) throws IOException {
+        synchronized (buildLock) {
+            int done = 0;
+            // close() waits for the lock, so it must not wait for a whole batch
+            while (done < maxPages && !closed && !buildCancelled) {
+                int pageIndex = getIndexedPageCount();
+                if (pageIndex >= pageCount) {
+                    break;
+                }
+                long start = SystemClock.elapsedRealtime();
+                PdfDocument.PageText pageText = core.extractPageText(doc, pageIndex);
+                synchronized (this) {
+                    appendPage(pageIndex, pageText);
+                    buildTimeMillis += SystemClock.elapsedRealtime() - start;
+                }
+                done++;
+            }
+            if (done > 0 && isComplete()) {
+                saveTerms();
+            }
+            return done;
+        }
+    }
+
+    /**
+     * Index remaining pages on the executor. Does nothing but notify the listener if the index is complete.
+     *
+     * @param listener build listener, may be null
+     */
+    public void buildInBackground(Executor executor, final BuildListener listener) {
+        buildCancelled = false;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                IOException error = null;
+                try {
+                    while (!buildCancelled && !closed && indexPages(BUILD_BATCH_PAGES) > 0) {
+                        if (listener != null) {
+                            listener.onProgress(TextIndex.this, getIndexedPageCount(), pageCount);
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot build index", e);
+                    error = e;
+                }
+                if (listener != null) {
+                    listener.onFinished(TextIndex.this, error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop background build and {@link #indexPages(int)} after the page being indexed, progress is kept.
+     * {@link #buildInBackground(Executor, BuildListener)} clears the cancellation.
+     */
+    public void cancelBuild() {
+        buildCancelled = true;
+    }
+
+    /**
+     * Find occurrences of the query on indexed pages.
+     *
+     * @param matchWholeWord query must also end at a word end
+     * @param maxHits        maximum number of returned hits, 0 for no limit
+     * @return hits ordered by page and position
+     */
+    public synchronized List<SearchHit> search(String query, boolean matchWholeWord, int maxHits)
+            throws IOException {
+        checkOpen();
+        long start = System.nanoTime();
+        List<SearchHit> hits = new ArrayList<>();
+
+        List<String> queryTokens = new ArrayList<>();
+        tokenize(query, 0, queryTokens, null);
+        if (!queryTokens.isEmpty()) {
+            int lead = 0;
+            while (!Character.isLetterOrDigit(query.charAt(lead))) {
+                lead++;
+            }
+            Candidates candidates = findCandidates(queryTokens.get(0),
+                    queryTokens.size() == 1 && !matchWholeWord);
+            while (candidates.hasNext()) {
+                if (maxHits > 0 && hits.size() >= maxHits) {
+                    break;
+                }
+                long candidate = candidates.next();
+                int pageIndex = (int) (candidate >>> 32);
+                int start0 = (int) candidate - lead;
+                if (start0 < 0) {
+                    continue;
+                }
+                readPage(pageIndex);
+                int end = match(cachedText, start0, query, matchWholeWord);
+                if (end != -1) {
+                    hits.add(new SearchHit(pageIndex, start0, end - start0,
+                            mergeBoxes(cachedBoxes, start0, end)));
+                }
+            }
+        }
+
+        lastQueryMicros = (System.nanoTime() - start) / 1000;
+        return hits;
+    }
+
+    /** Save postings if needed and close files. Background build stops after the current page. */
+    public void close() throws IOException {
+        buildCancelled = true;
+        synchronized (buildLock) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    if (!termsSaved && indexedPages > 0) {
+                        saveTerms();
+                    }
+                } finally {
+                    closed = true;
+                    pages.close();
+                }
+            }
+        }
+    }
+
+    /** Delete index files, index must be closed */
+    public void delete() {
+        if (!closed) {
+            throw new IllegalStateException("Index is open");
+        }
+        pagesFile.delete();
+        termsFile.delete();
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Index is closed");
+        }
+    }
+
+    private synchronized void load() throws IOException {
+        long length = pages.length();
+        if (length < PAGES_HEADER_SIZE || !checkPagesHeader()) {
+            pages.setLength(0);
+            pages.writeInt(PAGES_MAGIC);
+            pages.writeInt(VERSION);
+            pages.writeInt(pageCount);
+            termsFile.delete();
+            recordOffsets[0] = PAGES_HEADER_SIZE;
+            return;
+        }
+
+        long position = PAGES_HEADER_SIZE;
+        while (indexedPages < pageCount && position + RECORD_HEADER_SIZE <= length) {
+            pages.seek(position);
+            int pageIndex = pages.readInt();
+            int charCount = pages.readInt();
+            long end = position + recordSize(charCount);
+            if (pageIndex != indexedPages || charCount < 0 || end > length) {
+                break;
+            }
+            recordOffsets[indexedPages++] = position;
+            position = end;
+        }
+        recordOffsets[indexedPages] = position;
+        if (position < length) {
+            // drop a record cut off by interrupted build
+            pages.setLength(position);
+        }
+
+        if (!loadTerms()) {
+            terms.clear();
+            for (int i = 0; i < indexedPages; i++) {
+                readPage(i);
+                tokenize(cachedText, i, null, terms);
+            }
+            termsSaved = false;
+        }
+    }
+
+    private boolean checkPagesHeader() throws IOException {
+        pages.seek(0);
+        return pages.readInt() == PAGES_MAGIC && pages.readInt() == VERSION
+                && pages.readInt() == pageCount;
+    }
+
+    private boolean loadTerms() {
+        if (!termsFile.exists()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(termsFile)));
+            if (in.readInt() != TERMS_MAGIC || in.readInt() != VERSION || in.readInt() != indexedPages) {
+                return false;
+            }
+            int termCount = in.readInt();
+            for (int i = 0; i < termCount; i++) {
+                String token = in.readUTF();
+                Postings postings = new Postings();
+                postings.size = in.readInt();
+                postings.data = new int[Math.max(4, postings.size)];
+                for (int j = 0; j < postings.size; j++) {
+                    postings.data[j] = in.readInt();
+                }
+                terms.put(token, postings);
+            }
+            termsSaved = true;
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + termsFile + ", rebuilding postings", e);
+            terms.clear();
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private synchronized void saveTerms() throws IOException {
+        File tmp = new File(termsFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(TERMS_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(indexedPages);
+            out.writeInt(terms.size());
+            for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+                Postings postings = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(postings.size);
+                for (int i = 0; i < postings.size; i++) {
+                    out.writeInt(postings.data[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(termsFile)) {
+            tmp.delete();
+            throw new IOException("Cannot write " + termsFile);
+        }
+        termsSaved = true;
+    }
+
+    private void appendPage(int pageIndex, PdfDocument.PageText pageText) throws IOException {
+        checkOpen();
+        String text = pageText.getText();
+        float[] boxes = pageText.getCharBoxes();
+        int charCount = Math.min(text.length(), boxes.length / 4);
+
+        ByteBuffer record = ByteBuffer.allocate((int) recordSize(charCount));
+        record.putInt(pageIndex);
+        record.putInt(charCount);
+        for (int i = 0; i < charCount; i++) {
+            record.putChar(text.charAt(i));
+        }
+        record.asFloatBuffer().put(boxes, 0, charCount * 4);
+
+        long position = recordOffsets[pageIndex];
+        pages.seek(position);
+        pages.write(record.array());
+        recordOffsets[pageIndex + 1] = position + record.capacity();
+        indexedPages = pageIndex + 1;
+
+        tokenize(text.substring(0, charCount), pageIndex, null, terms);
+        termsSaved = false;
+    }
+
+    private static long recordSize(int charCount) {
+        return RECORD_HEADER_SIZE + (long) charCount * 2 + (long) charCount * 16;
+    }
+
+    private void readPage(int pageIndex) throws IOException {
+        if (cachedPage == pageIndex) {
+            return;
+        }
+        long position = recordOffsets[pageIndex];
+        byte[] data = new byte[(int) (recordOffsets[pageIndex + 1] - position)];
+        pages.seek(position);
+        pages.readFully(data);
+
+        ByteBuffer record = ByteBuffer.wrap(data);
+        record.getInt();
+        int charCount = record.getInt();
+        char[] chars = new char[charCount];
+        record.asCharBuffer().get(chars);
+        record.position(RECORD_HEADER_SIZE + charCount * 2);
+        float[] boxes = new float[charCount * 4];
+        record.asFloatBuffer().get(boxes);
+
+        cachedPage = pageIndex;
+        cachedText = new String(chars);
+        cachedBoxes = boxes;
+    }
+
+    /**
+     * Split text to words, collecting them to the list or adding their positions to postings.
+     */
+    private static void tokenize(String text, int pageIndex, List<String> tokens,
+                                 TreeMap<String, Postings> postingsMap) {
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (start == i) {
+                break;
+            }
+            String token = text.substring(start, i).toLowerCase(Locale.ROOT);
+            if (tokens != null) {
+                tokens.add(token);
+            }
+            if (postingsMap != null) {
+                Postings postings = postingsMap.get(token);
+                if (postings == null) {
+                    postings = new Postings();
+                    postingsMap.put(token, postings);
+                }
+                postings.add(pageIndex, start);
+            }
+        }
+    }
+
+    /** @return positions of the token (or words starting with it) in page and offset order */
+    private Candidates findCandidates(String token, boolean prefix) {
+        if (prefix) {
+            return new Candidates(terms.subMap(token, token + Character.MAX_VALUE).values());
+        }
+        Postings postings = terms.get(token);
+        return new Candidates(postings != null
+                ? Collections.singletonList(postings) : Collections.<Postings>emptyList());
+    }
+
+    /**
+     * Compare query with text at given position ignoring case, whitespace matches any whitespace.
+     *
+     * @return end of the match in the text or -1
+     */
+    private static int match(String text, int start, String query, boolean matchWholeWord) {
+        int t = start;
+        int q = 0;
+        int queryLength = query.length();
+        int textLength = text.length();
+        while (q < queryLength) {
+            char qc = query.charAt(q);
+            if (Character.isWhitespace(qc)) {
+                if (t >= textLength || !Character.isWhitespace(text.charAt(t))) {
+                    return -1;
+                }
+                while (q < queryLength && Character.isWhitespace(query.charAt(q))) {
+                    q++;
+                }
+                while (t < textLength && Character.isWhitespace(text.charAt(t))) {
+                    t++;
+                }
+                continue;
+            }
+            if (t >= textLength || !equalsIgnoreCase(qc, text.charAt(t))) {
+                return -1;
+            }
+            q++;
+            t++;
+        }
+        if (matchWholeWord && t < textLength && Character.isLetterOrDigit(text.charAt(t))) {
+            return -1;
+        }
+        return t;
+    }
+
+    private static boolean equalsIgnoreCase(char a, char b) {
+        return a == b || Character.toLowerCase(a) == Character.toLowerCase(b);
+    }
+
+    /** Merge boxes of characters on the same line to highlight rectangles */
+    private static RectF[] mergeBoxes(float[] boxes, int start, int end) {
+        List<RectF> rects = new ArrayList<>();
+        RectF line = null;
+        for (int i = start; i < end; i++) {
+            float left = boxes[i * 4];
+            float top = boxes[i * 4 + 1];
+            float right = boxes[i * 4 + 2];
+            float bottom = boxes[i * 4 + 3];
+            if (right <= left || top <= bottom) {
+                continue;
+            }
+            if (line != null && sameLine(line, top, bottom)) {
+                line.left = Math.min(line.left, left);
+                line.right = Math.max(line.right, right);
+                line.top = Math.max(line.top, top);
+                line.bottom = Math.min(line.bottom, bottom);
+            } else {
+                line = new RectF(left, top, right, bottom);
+                rects.add(line);
+            }
+        }
+        return rects.toArray(new RectF[rects.size()]);
+    }
+
+    /* PDF coordinates, top is greater than bottom */
+    private static boolean sameLine(RectF line, float top, float bottom) {
+        float overlap = Math.min(line.top, top) - Math.max(line.bottom, bottom);
+        return overlap > Math.min(line.top - line.bottom, top - bottom) / 2;
+    }
+
+    private static void closeQuietly(DataInputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
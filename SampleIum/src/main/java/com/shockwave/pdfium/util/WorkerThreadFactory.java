@@ -0,0 +1,29 @@
+package com.shockwave.pdfium.util;
+
+import android.os.Process;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Daemon threads with background priority for worker pools of the library, named prefix-1, prefix-2... */
+public final class WorkerThreadFactory implements ThreadFactory {
+    private final String namePrefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    public WorkerThreadFactory(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    @Override
+    public Thread newThread(final Runnable r) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }
+        }, namePrefix + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
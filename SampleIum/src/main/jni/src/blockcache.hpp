@@ -0,0 +1,180 @@
+#ifndef _BLOCKCACHE_HPP_
+#define _BLOCKCACHE_HPP_
+
+#include "util.hpp"
+
+extern "C" {
+    #include <errno.h>
+    #include <unistd.h>
+    #include <string.h>
+}
+
+#include <list>
+#include <unordered_map>
+#include <vector>
+
+/*
+ * Read cache for FPDF_FILEACCESS backed by a file descriptor.
+ * File is divided into page aligned blocks which are kept in LRU order. Misses are read with a single
+ * pread covering all missing blocks of the request, extended by read-ahead blocks when the access
+ * is sequential. Not thread safe, PDFium calls it only with the document and PDFium locks held.
+ */
+class BlockCache {
+    private:
+    struct Block {
+        long index;
+        size_t length;
+        unsigned char *data;
+    };
+
+    int fd;
+    size_t fileLength;
+    size_t blockSize;
+    size_t maxBlocks;
+    size_t readAheadBlocks;
+
+    std::list<Block*> lru;
+    std::unordered_map<long, std::list<Block*>::iterator> blocks;
+    std::vector<unsigned char> readBuffer;
+    long lastBlock = -2;
+
+    public:
+    /* statistics */
+    long long requests = 0;
+    long long syscalls = 0;
+    long long bytesRead = 0;
+    long long blockHits = 0;
+    long long blockMisses = 0;
+
+    BlockCache(int fd, size_t fileLength, size_t blockSize, size_t maxBlocks, size_t readAheadBlocks)
+        : fd(fd), fileLength(fileLength), maxBlocks(maxBlocks), readAheadBlocks(readAheadBlocks) {
+        size_t pageSize = (size_t) sysconf(_SC_PAGESIZE);
+        if (blockSize < pageSize) blockSize = pageSize;
+        this->blockSize = (blockSize + pageSize - 1) / pageSize * pageSize;
+    }
+
+    ~BlockCache() {
+        for (std::list<Block*>::iterator it = lru.begin(); it != lru.end(); ++it) {
+            free((*it)->data);
+            delete *it;
+        }
+    }
+
+    /* Callback for FPDF_FILEACCESS.m_GetBlock */
+    static int getBlock(void *param, unsigned long position, unsigned char *outBuffer,
+                        unsigned long size) {
+        return reinterpret_cast<BlockCache*>(param)->read(position, outBuffer, size) ? 1 : 0;
+    }
+
+    bool read(size_t position, unsigned char *out, size_t size) {
+        requests++;
+        if (size == 0) return true;
+        if (position + size > fileLength) {
+            LOGE("Read past end of file requested");
+            return false;
+        }
+
+        if (maxBlocks == 0 || size > maxBlocks * blockSize / 2) {
+            // caching huge reads would only flush the cache
+            return preadFully(out, size, position) == size;
+        }
+
+        long first = position / blockSize;
+        long last = (position + size - 1) / blockSize;
+        for (long index = first; index <= last; ) {
+            Block *block = findBlock(index);
+            if (block == NULL) {
+                long loaded = loadBlocks(index, last);
+                if (loaded <= 0) return false;
+                continue;
+            }
+            blockHits++;
+
+            size_t blockStart = index * blockSize;
+            size_t from = position > blockStart ? position - blockStart : 0;
+            size_t to = position + size - blockStart;
+            if (to > block->length) to = block->length;
+            if (to <= from) return false;
+            memcpy(out + (blockStart + from - position), block->data + from, to - from);
+            index++;
+        }
+        lastBlock = last;
+        return true;
+    }
+
+    private:
+    Block* findBlock(long index) {
+        std::unordered_map<long, std::list<Block*>::iterator>::iterator it = blocks.find(index);
+        if (it == blocks.end()) return NULL;
+        lru.splice(lru.begin(), lru, it->second);
+        return *(it->second);
+    }
+
+    /* Read missing blocks starting at first with one syscall, returns number of loaded blocks */
+    long loadBlocks(long first, long lastNeeded) {
+        long lastInFile = (fileLength - 1) / blockSize;
+        long last = first;
+        while (last < lastNeeded && blocks.find(last + 1) == blocks.end()) last++;
+
+        bool sequential = first == lastBlock + 1 || first == lastBlock;
+        if (sequential) {
+            long limit = last + (long) readAheadBlocks;
+            while (last < limit && last < lastInFile && blocks.find(last + 1) == blocks.end()) last++;
+        }
+        long count = last - first + 1;
+        if ((size_t) count > maxBlocks) count = maxBlocks;
+
+        size_t offset = first * blockSize;
+        size_t length = count * blockSize;
+        if (offset + length > fileLength) length = fileLength - offset;
+
+        if (readBuffer.size() < length) readBuffer.resize(length);
+        size_t read = preadFully(&readBuffer[0], length, offset);
+        if (read != length) return -1;
+
+        for (long i = 0; i < count; i++) {
+            size_t blockLength = length - i * blockSize;
+            if (blockLength > blockSize) blockLength = blockSize;
+            Block *block = newBlock(first + i);
+            block->length = blockLength;
+            memcpy(block->data, &readBuffer[i * blockSize], blockLength);
+        }
+        blockMisses += count;
+        return count;
+    }
+
+    Block* newBlock(long index) {
+        Block *block;
+        if (lru.size() >= maxBlocks) {
+            block = lru.back();
+            lru.pop_back();
+            blocks.erase(block->index);
+        } else {
+            block = new Block();
+            block->data = reinterpret_cast<unsigned char*>(malloc(blockSize));
+        }
+        block->index = index;
+        lru.push_front(block);
+        blocks[index] = lru.begin();
+        return block;
+    }
+
+    size_t preadFully(unsigned char *out, size_t size, size_t position) {
+        size_t done = 0;
+        while (done < size) {
+            syscalls++;
+            ssize_t count = pread(fd, out + done, size - done, position + done);
+            if (count < 0) {
+                if (errno == EINTR) continue;
+                LOGE("Cannot read from file descriptor. Error:%d", errno);
+                break;
+            }
+            if (count == 0) break;
+            done += count;
+        }
+        bytesRead += done;
+        return done;
+    }
+};
+
+#endif
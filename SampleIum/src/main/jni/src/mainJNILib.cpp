@@ -1,11 +1,16 @@
 #include "util.hpp"
+#include "blockcache.hpp"
+#include "streaming.hpp"
+#include "sysfonts.hpp"
 
 extern "C" {
+    #include <pthread.h>
     #include <unistd.h>
     #include <sys/mman.h>
     #include <sys/stat.h>
     #include <string.h>
     #include <stdio.h>
+    #include <time.h>
 }
 
 #include <android/native_window.h>
@@ -16,18 +21,33 @@ using namespace android;
 
 #include <fpdfview.h>
 #include <fpdf_doc.h>
+#include <fpdf_progressive.h>
+#include <fpdf_text.h>
+#include <fpdf_edit.h>
+#include <fpdf_save.h>
+#include <fpdf_ppo.h>
+#include <fpdf_formfill.h>
+#include <fpdf_flatten.h>
 #include <string>
 #include <vector>
+#include <unordered_set>
+#include <unordered_map>
 
 static Mutex sLibraryLock;
 
 static int sLibraryReferenceCount = 0;
 
+/* installed once, guarded by sLibraryLock */
+static SystemFonts *sSystemFonts = NULL;
+
 static void initLibraryIfNeed(){
     Mutex::Autolock lock(sLibraryLock);
     if(sLibraryReferenceCount == 0){
         LOGD("Init FPDF library");
         FPDF_InitLibrary();
+        if(sSystemFonts != NULL){
+            FPDF_SetSystemFontInfo(sSystemFonts->getFontInfo());
+        }
     }
     sLibraryReferenceCount++;
 }
@@ -55,13 +75,42 @@ class DocumentFile {
     FPDF_DOCUMENT pdfDocument = NULL;
     size_t fileSize;
 
+    /* document data owned by this object, must outlive pdfDocument */
+    jbyte *ownedData = NULL;
+    void *mappedData = NULL;
+    size_t mappedSize = 0;
+    BlockCache *blockCache = NULL;
+    StreamingData *streaming = NULL;
+
+    /* form fill environment, created on first render with forms, must outlive form page views */
+    FPDF_FORMFILLINFO *formFillInfo = NULL;
+    FPDF_FORMHANDLE formHandle = NULL;
+
     DocumentFile() { initLibraryIfNeed(); }
     ~DocumentFile();
 };
 DocumentFile::~DocumentFile(){
+    if(formHandle != NULL){
+        FPDFDOC_ExitFormFillEnvironment(formHandle);
+    }
+    if(formFillInfo != NULL){
+        delete formFillInfo;
+    }
     if(pdfDocument != NULL){
         FPDF_CloseDocument(pdfDocument);
     }
+    if(ownedData != NULL){
+        delete[] ownedData;
+    }
+    if(mappedData != NULL){
+        munmap(mappedData, mappedSize);
+    }
+    if(blockCache != NULL){
+        delete blockCache;
+    }
+    if(streaming != NULL){
+        delete streaming;
+    }
 
     destroyLibraryIfNeed();
 }
@@ -136,16 +185,110 @@ int jniThrowExceptionFmt(JNIEnv* env, const char* className, const char* fmt, ..
     va_end(args);
 }
 
+/* Classes and methods used on hot paths, resolved once in JNI_OnLoad */
+static struct {
+    jclass longClass;
+    jmethodID longInit;
+    jclass integerClass;
+    jmethodID integerInit;
+    jclass sizeClass;
+    jmethodID sizeInit;
+    jclass pointClass;
+    jmethodID pointInit;
+    jclass stringClass;
+    jclass pageLinksClass;
+    jmethodID pageLinksInit;
+    jclass outlineClass;
+    jmethodID outlineInit;
+    jclass documentWriterClass;
+    jmethodID documentWriterFlush;
+} sJniCache;
+
+static jclass findGlobalClass(JNIEnv *env, const char *name) {
+    jclass localClass = env->FindClass(name);
+    if (localClass == NULL) {
+        LOGE("Unable to find class %s", name);
+        return NULL;
+    }
+    jclass globalClass = reinterpret_cast<jclass>(env->NewGlobalRef(localClass));
+    env->DeleteLocalRef(localClass);
+    return globalClass;
+}
+
+static bool initJniCache(JNIEnv *env) {
+    sJniCache.longClass = findGlobalClass(env, "java/lang/Long");
+    sJniCache.integerClass = findGlobalClass(env, "java/lang/Integer");
+    sJniCache.sizeClass = findGlobalClass(env, "com/shockwave/pdfium/util/Size");
+    sJniCache.pointClass = findGlobalClass(env, "android/graphics/Point");
+    sJniCache.stringClass = findGlobalClass(env, "java/lang/String");
+    sJniCache.pageLinksClass = findGlobalClass(env, "com/shockwave/pdfium/PageLinks");
+    sJniCache.outlineClass = findGlobalClass(env, "com/shockwave/pdfium/Outline");
+    sJniCache.documentWriterClass = findGlobalClass(env, "com/shockwave/pdfium/DocumentWriter");
+    if (sJniCache.longClass == NULL || sJniCache.integerClass == NULL || sJniCache.sizeClass == NULL
+            || sJniCache.pointClass == NULL || sJniCache.stringClass == NULL
+            || sJniCache.pageLinksClass == NULL || sJniCache.outlineClass == NULL
+            || sJniCache.documentWriterClass == NULL) {
+        return false;
+    }
+
+    sJniCache.longInit = env->GetMethodID(sJniCache.longClass, "<init>", "(J)V");
+    sJniCache.integerInit = env->GetMethodID(sJniCache.integerClass, "<init>", "(I)V");
+    sJniCache.sizeInit = env->GetMethodID(sJniCache.sizeClass, "<init>", "(II)V");
+    sJniCache.pointInit = env->GetMethodID(sJniCache.pointClass, "<init>", "(II)V");
+    sJniCache.pageLinksInit = env->GetMethodID(sJniCache.pageLinksClass, "<init>",
+                                               "([F[I[Ljava/lang/String;I)V");
+    sJniCache.outlineInit = env->GetMethodID(sJniCache.outlineClass, "<init>",
+                                             "([I[Ljava/lang/String;[I[J[Z)V");
+    sJniCache.documentWriterFlush = env->GetMethodID(sJniCache.documentWriterClass, "flush", "(I)Z");
+    return sJniCache.longInit != NULL && sJniCache.integerInit != NULL
+            && sJniCache.sizeInit != NULL && sJniCache.pointInit != NULL && sJniCache.pageLinksInit != NULL
+            && sJniCache.outlineInit != NULL && sJniCache.documentWriterFlush != NULL;
+}
+
 jobject NewLong(JNIEnv* env, jlong value) {
-    jclass cls = env->FindClass("java/lang/Long");
-    jmethodID methodID = env->GetMethodID(cls, "<init>", "(J)V");
-    return env->NewObject(cls, methodID, value);
+    return env->NewObject(sJniCache.longClass, sJniCache.longInit, value);
 }
 
 jobject NewInteger(JNIEnv* env, jint value) {
-    jclass cls = env->FindClass("java/lang/Integer");
-    jmethodID methodID = env->GetMethodID(cls, "<init>", "(I)V");
-    return env->NewObject(cls, methodID, value);
+    return env->NewObject(sJniCache.integerClass, sJniCache.integerInit, value);
+}
+
+/* Per-thread scratch buffer, grows to the biggest request and is freed when the thread exits */
+struct ScratchArena {
+    void *data;
+    size_t capacity;
+};
+
+static pthread_key_t sScratchArenaKey;
+static pthread_once_t sScratchArenaKeyOnce = PTHREAD_ONCE_INIT;
+
+static void freeScratchArena(void *ptr) {
+    ScratchArena *arena = reinterpret_cast<ScratchArena*>(ptr);
+    free(arena->data);
+    delete arena;
+}
+
+static void createScratchArenaKey() {
+    pthread_key_create(&sScratchArenaKey, &freeScratchArena);
+}
+
+static void* getScratchBuffer(size_t size) {
+    pthread_once(&sScratchArenaKeyOnce, &createScratchArenaKey);
+
+    ScratchArena *arena = reinterpret_cast<ScratchArena*>(pthread_getspecific(sScratchArenaKey));
+    if (arena == NULL) {
+        arena = new ScratchArena();
+        arena->data = NULL;
+        arena->capacity = 0;
+        pthread_setspecific(sScratchArenaKey, arena);
+    }
+
+    if (arena->capacity < size) {
+        free(arena->data);
+        arena->data = malloc(size);
+        arena->capacity = (arena->data != NULL) ? size : 0;
+    }
+    return arena->data;
 }
 
 uint16_t rgbTo565(rgb *color) {
@@ -169,18 +312,74 @@ void rgbBitmapTo565(void *source, int sourceStride, void *dest, AndroidBitmapInf
 
 extern "C" { //For JNI support
 
-static int getBlock(void* param, unsigned long position, unsigned char* outBuffer,
-        unsigned long size) {
-    const int fd = reinterpret_cast<intptr_t>(param);
-    const int readCount = pread(fd, outBuffer, size, position);
-    if (readCount < 0) {
-        LOGE("Cannot read from file descriptor. Error:%d", errno);
-        return 0;
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+    JNIEnv *env;
+    if (vm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) != JNI_OK) {
+        return JNI_ERR;
+    }
+    if (!initJniCache(env)) {
+        LOGE("Cannot resolve JNI classes");
+        return JNI_ERR;
+    }
+    return JNI_VERSION_1_6;
+}
+
+static void throwOpenDocumentError(JNIEnv *env) {
+    const long errorNum = FPDF_GetLastError();
+    if(errorNum == FPDF_ERR_PASSWORD) {
+        jniThrowException(env, "com/shockwave/pdfium/PdfPasswordException",
+                                "Password required or incorrect password.");
+    } else {
+        char* error = getErrorDescription(errorNum);
+        jniThrowExceptionFmt(env, "java/io/IOException",
+                                "cannot create document: %s", error);
+
+        free(error);
     }
-    return 1;
 }
 
-JNI_FUNC(jlong, PdfiumCore, nativeOpenDocument)(JNI_ARGS, jint fd, jstring password){
+JNI_FUNC(jboolean, PdfiumCore, nativeSetSystemFonts)(JNI_ARGS, jobjectArray files,
+                                                     jobjectArray families, jintArray faceData){
+    const int faceFields = 5;
+    Mutex::Autolock lock(sLibraryLock);
+    if(sSystemFonts != NULL){
+        return JNI_FALSE;
+    }
+
+    SystemFonts *fonts = new SystemFonts();
+    jsize fileCount = env->GetArrayLength(files);
+    for(jsize i = 0; i < fileCount; i++){
+        jstring path = (jstring) env->GetObjectArrayElement(files, i);
+        const char *cpath = env->GetStringUTFChars(path, NULL);
+        fonts->addFile(cpath);
+        env->ReleaseStringUTFChars(path, cpath);
+        env->DeleteLocalRef(path);
+    }
+    jsize faceCount = env->GetArrayLength(families);
+    jint *data = env->GetIntArrayElements(faceData, NULL);
+    for(jsize i = 0; i < faceCount; i++){
+        jstring family = (jstring) env->GetObjectArrayElement(families, i);
+        const char *cfamily = env->GetStringUTFChars(family, NULL);
+        const jint *face = data + i * faceFields;
+        if(face[0] >= 0 && face[0] < fileCount){
+            fonts->addFace(cfamily, face[0], face[1], face[2], face[3], face[4]);
+        }
+        env->ReleaseStringUTFChars(family, cfamily);
+        env->DeleteLocalRef(family);
+    }
+    env->ReleaseIntArrayElements(faceData, data, JNI_ABORT);
+
+    sSystemFonts = fonts;
+    if(sLibraryReferenceCount > 0){
+        // font info must not change under documents being rendered, it is set on next library init
+        LOGD("System fonts will be used after all documents are closed");
+    }
+    return JNI_TRUE;
+}
+
+JNI_FUNC(jlong, PdfiumCore, nativeOpenDocument)(JNI_ARGS, jint fd, jstring password,
+                                                jint cacheBlockSize, jint cacheMaxBlocks,
+                                                jint cacheReadAheadBlocks){
 
     size_t fileLength = (size_t)getFileSize(fd);
     if(fileLength <= 0) {
@@ -190,11 +389,13 @@ JNI_FUNC(jlong, PdfiumCore, nativeOpenDocument)(JNI_ARGS, jint fd, jstring passw
     }
 
     DocumentFile *docFile = new DocumentFile();
+    docFile->blockCache = new BlockCache(fd, fileLength, (size_t)cacheBlockSize,
+                                         (size_t)cacheMaxBlocks, (size_t)cacheReadAheadBlocks);
 
     FPDF_FILEACCESS loader;
     loader.m_FileLen = fileLength;
-    loader.m_Param = reinterpret_cast<void*>(intptr_t(fd));
-    loader.m_GetBlock = &getBlock;
+    loader.m_Param = docFile->blockCache;
+    loader.m_GetBlock = &BlockCache::getBlock;
 
     const char *cpassword = NULL;
     if(password != NULL) {
@@ -209,19 +410,7 @@ JNI_FUNC(jlong, PdfiumCore, nativeOpenDocument)(JNI_ARGS, jint fd, jstring passw
 
     if (!document) {
         delete docFile;
-
-        const long errorNum = FPDF_GetLastError();
-        if(errorNum == FPDF_ERR_PASSWORD) {
-            jniThrowException(env, "com/shockwave/pdfium/PdfPasswordException",
-                                    "Password required or incorrect password.");
-        } else {
-            char* error = getErrorDescription(errorNum);
-            jniThrowExceptionFmt(env, "java/io/IOException",
-                                    "cannot create document: %s", error);
-
-            free(error);
-        }
-
+        throwOpenDocumentError(env);
         return -1;
     }
 
@@ -230,21 +419,22 @@ JNI_FUNC(jlong, PdfiumCore, nativeOpenDocument)(JNI_ARGS, jint fd, jstring passw
     return reinterpret_cast<jlong>(docFile);
 }
 
-JNI_FUNC(jlong, PdfiumCore, nativeOpenMemDocument)(JNI_ARGS, jbyteArray data, jstring password){
-    DocumentFile *docFile = new DocumentFile();
+/* Load document from memory which stays valid until docFile is deleted, deletes docFile on failure */
+static jlong loadMemDocumentInternal(JNIEnv *env, DocumentFile *docFile, const void *data,
+                                     size_t size, jstring password) {
+    if(size > INT32_MAX) {
+        delete docFile;
+        jniThrowException(env, "java/io/IOException",
+                               "File is too big to be loaded to memory");
+        return -1;
+    }
 
     const char *cpassword = NULL;
     if(password != NULL) {
         cpassword = env->GetStringUTFChars(password, NULL);
     }
 
-    jbyte *cData = env->GetByteArrayElements(data, NULL);
-    int size = (int) env->GetArrayLength(data);
-    jbyte *cDataCopy = new jbyte[size];
-    memcpy(cDataCopy, cData, size);
-    FPDF_DOCUMENT document = FPDF_LoadMemDocument( reinterpret_cast<const void*>(cDataCopy),
-                                                          size, cpassword);
-    env->ReleaseByteArrayElements(data, cData, JNI_ABORT);
+    FPDF_DOCUMENT document = FPDF_LoadMemDocument(data, (int)size, cpassword);
 
     if(cpassword != NULL) {
         env->ReleaseStringUTFChars(password, cpassword);
@@ -252,27 +442,168 @@ JNI_FUNC(jlong, PdfiumCore, nativeOpenMemDocument)(JNI_ARGS, jbyteArray data, js
 
     if (!document) {
         delete docFile;
+        throwOpenDocumentError(env);
+        return -1;
+    }
 
-        const long errorNum = FPDF_GetLastError();
-        if(errorNum == FPDF_ERR_PASSWORD) {
-            jniThrowException(env, "com/shockwave/pdfium/PdfPasswordException",
-                                    "Password required or incorrect password.");
-        } else {
-            char* error = getErrorDescription(errorNum);
-            jniThrowExceptionFmt(env, "java/io/IOException",
-                                    "cannot create document: %s", error);
+    docFile->pdfDocument = document;
 
-            free(error);
-        }
+    return reinterpret_cast<jlong>(docFile);
+}
 
+JNI_FUNC(jlong, PdfiumCore, nativeOpenMemDocument)(JNI_ARGS, jbyteArray data, jstring password){
+    DocumentFile *docFile = new DocumentFile();
+
+    int size = (int) env->GetArrayLength(data);
+    docFile->ownedData = new jbyte[size];
+    env->GetByteArrayRegion(data, 0, size, docFile->ownedData);
+
+    return loadMemDocumentInternal(env, docFile, docFile->ownedData, size, password);
+}
+
+JNI_FUNC(jlong, PdfiumCore, nativeOpenByteBufferDocument)(JNI_ARGS, jobject buffer, jint offset,
+                                                          jint length, jstring password){
+    jbyte *address = reinterpret_cast<jbyte*>(env->GetDirectBufferAddress(buffer));
+    if(address == NULL) {
+        jniThrowException(env, "java/lang/IllegalArgumentException",
+                               "Buffer must be direct");
         return -1;
     }
 
-    docFile->pdfDocument = document;
+    DocumentFile *docFile = new DocumentFile();
+    return loadMemDocumentInternal(env, docFile, address + offset, (size_t)length, password);
+}
 
+JNI_FUNC(jlong, PdfiumCore, nativeOpenMappedDocument)(JNI_ARGS, jint fd, jstring password){
+    size_t fileLength = (size_t)getFileSize(fd);
+    if(fileLength <= 0) {
+        jniThrowException(env, "java/io/IOException",
+                                    "File is empty");
+        return -1;
+    }
+
+    void *mapped = mmap(NULL, fileLength, PROT_READ, MAP_PRIVATE, fd, 0);
+    if(mapped == MAP_FAILED) {
+        jniThrowExceptionFmt(env, "java/io/IOException",
+                                  "cannot map file: %s", strerror(errno));
+        return -1;
+    }
+
+    DocumentFile *docFile = new DocumentFile();
+    docFile->mappedData = mapped;
+    docFile->mappedSize = fileLength;
+
+    return loadMemDocumentInternal(env, docFile, mapped, fileLength, password);
+}
+
+JNI_FUNC(jlong, PdfiumCore, nativeStreamingCreate)(JNI_ARGS, jlong fileLength){
+    if(fileLength <= 0) {
+        jniThrowException(env, "java/lang/IllegalArgumentException",
+                               "File length must be positive");
+        return -1;
+    }
+
+    DocumentFile *docFile = new DocumentFile();
+    docFile->streaming = new StreamingData((size_t)fileLength);
+    if(!docFile->streaming->isValid()) {
+        delete docFile;
+        jniThrowException(env, "java/lang/OutOfMemoryError",
+                               "Cannot allocate streaming document buffer");
+        return -1;
+    }
     return reinterpret_cast<jlong>(docFile);
 }
 
+JNI_FUNC(void, PdfiumCore, nativeStreamingAppend)(JNI_ARGS, jlong docPtr, jlong position,
+                                                  jbyteArray data, jint offset, jint length){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
+    jbyte *cData = env->GetByteArrayElements(data, NULL);
+    bool appended = doc->streaming->append((size_t)position, cData + offset, (size_t)length);
+    env->ReleaseByteArrayElements(data, cData, JNI_ABORT);
+
+    if(!appended) {
+        jniThrowException(env, "java/lang/IndexOutOfBoundsException",
+                               "Data does not fit the file length");
+    }
+}
+
+JNI_FUNC(jint, PdfiumCore, nativeStreamingIsDocAvail)(JNI_ARGS, jlong docPtr, jstring password){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
+    if(doc->pdfDocument != NULL) {
+        return PDF_DATA_AVAIL;
+    }
+
+    StreamingData *streaming = doc->streaming;
+    int status = FPDFAvail_IsDocAvail(streaming->avail, streaming->downloadHints());
+    if(status != PDF_DATA_AVAIL) {
+        return status;
+    }
+
+    const char *cpassword = NULL;
+    if(password != NULL) {
+        cpassword = env->GetStringUTFChars(password, NULL);
+    }
+
+    FPDF_DOCUMENT document = FPDFAvail_GetDocument(streaming->avail, cpassword);
+
+    if(cpassword != NULL) {
+        env->ReleaseStringUTFChars(password, cpassword);
+    }
+
+    if(!document) {
+        throwOpenDocumentError(env);
+        return PDF_DATA_ERROR;
+    }
+
+    doc->pdfDocument = document;
+    return PDF_DATA_AVAIL;
+}
+
+JNI_FUNC(jint, PdfiumCore, nativeStreamingIsPageAvail)(JNI_ARGS, jlong docPtr, jint pageIndex){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
+    StreamingData *streaming = doc->streaming;
+    return FPDFAvail_IsPageAvail(streaming->avail, pageIndex, streaming->downloadHints());
+}
+
+JNI_FUNC(jint, PdfiumCore, nativeStreamingIsLinearized)(JNI_ARGS, jlong docPtr){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
+    return FPDFAvail_IsLinearized(doc->streaming->avail);
+}
+
+JNI_FUNC(jint, PdfiumCore, nativeStreamingGetFirstPageNum)(JNI_ARGS, jlong docPtr){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
+    return FPDFAvail_GetFirstPageNum(doc->pdfDocument);
+}
+
+JNI_FUNC(jlong, PdfiumCore, nativeStreamingGetReceivedBytes)(JNI_ARGS, jlong docPtr){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
+    return (jlong)doc->streaming->receivedBytes();
+}
+
+JNI_FUNC(jlongArray, PdfiumCore, nativeStreamingTakeRequestedRanges)(JNI_ARGS, jlong docPtr){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
+    std::vector<jlong> ranges = doc->streaming->takeRequestedRanges();
+
+    jlongArray result = env->NewLongArray(ranges.size());
+    if(!ranges.empty()) {
+        env->SetLongArrayRegion(result, 0, ranges.size(), &ranges[0]);
+    }
+    return result;
+}
+
+JNI_FUNC(jlongArray, PdfiumCore, nativeGetReadStats)(JNI_ARGS, jlong documentPtr){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(documentPtr);
+    BlockCache *cache = doc->blockCache;
+    if(cache == NULL) {
+        return NULL;
+    }
+    jlong stats[] = { cache->requests, cache->syscalls, cache->bytesRead,
+                      cache->blockHits, cache->blockMisses };
+    jlongArray result = env->NewLongArray(5);
+    env->SetLongArrayRegion(result, 0, 5, stats);
+    return result;
+}
+
 JNI_FUNC(jint, PdfiumCore, nativeGetPageCount)(JNI_ARGS, jlong documentPtr){
     DocumentFile *doc = reinterpret_cast<DocumentFile*>(documentPtr);
     return (jint)FPDF_GetPageCount(doc->pdfDocument);
@@ -283,6 +614,114 @@ JNI_FUNC(void, PdfiumCore, nativeCloseDocument)(JNI_ARGS, jlong documentPtr){
     delete doc;
 }
 
+JNI_FUNC(jlong, PdfiumCore, nativeCreateDocument)(JNI_ARGS){
+    DocumentFile *doc = new DocumentFile();
+    doc->pdfDocument = FPDF_CreateNewDocument();
+    if(doc->pdfDocument == NULL) {
+        delete doc;
+        jniThrowException(env, "java/io/IOException", "cannot create document");
+        return -1;
+    }
+    doc->fileSize = 0;
+    return reinterpret_cast<jlong>(doc);
+}
+
+JNI_FUNC(jboolean, PdfiumCore, nativeImportPages)(JNI_ARGS, jlong destDocPtr, jlong srcDocPtr,
+                                                  jstring pageRange, jint index){
+    DocumentFile *dest = reinterpret_cast<DocumentFile*>(destDocPtr);
+    DocumentFile *src = reinterpret_cast<DocumentFile*>(srcDocPtr);
+    if(dest == NULL || src == NULL) {
+        LOGE("Import pages document pointers invalid");
+        return JNI_FALSE;
+    }
+    const char *range = pageRange != NULL ? env->GetStringUTFChars(pageRange, NULL) : NULL;
+    FPDF_BOOL imported = FPDF_ImportPages(dest->pdfDocument, src->pdfDocument, range, index);
+    if(range != NULL) {
+        env->ReleaseStringUTFChars(pageRange, range);
+    }
+    return imported ? JNI_TRUE : JNI_FALSE;
+}
+
+JNI_FUNC(jboolean, PdfiumCore, nativeCopyViewerPreferences)(JNI_ARGS, jlong destDocPtr, jlong srcDocPtr){
+    DocumentFile *dest = reinterpret_cast<DocumentFile*>(destDocPtr);
+    DocumentFile *src = reinterpret_cast<DocumentFile*>(srcDocPtr);
+    if(dest == NULL || src == NULL) {
+        LOGE("Copy viewer preferences document pointers invalid");
+        return JNI_FALSE;
+    }
+    return FPDF_CopyViewerPreferences(dest->pdfDocument, src->pdfDocument) ? JNI_TRUE : JNI_FALSE;
+}
+
+/* FPDF_FILEWRITE collecting saved bytes in a fixed Java direct buffer, flushed to Java when full */
+struct JavaFileWrite : public FPDF_FILEWRITE {
+    JNIEnv *env;
+    jobject writer;
+    uint8_t *buffer;
+    size_t capacity;
+    size_t used;
+    bool failed;
+};
+
+static bool flushJavaFileWrite(JavaFileWrite *write) {
+    if(write->used == 0) {
+        return true;
+    }
+    jboolean flushed = write->env->CallBooleanMethod(write->writer, sJniCache.documentWriterFlush,
+                                                     (jint) write->used);
+    write->used = 0;
+    if(write->env->ExceptionCheck() || !flushed) {
+        write->failed = true;
+    }
+    return !write->failed;
+}
+
+static int writeBlockToJava(FPDF_FILEWRITE *pThis, const void *data, unsigned long size) {
+    JavaFileWrite *write = static_cast<JavaFileWrite*>(pThis);
+    const uint8_t *src = reinterpret_cast<const uint8_t*>(data);
+    while(size > 0 && !write->failed) {
+        size_t chunk = write->capacity - write->used;
+        if(chunk > size) {
+            chunk = size;
+        }
+        memcpy(write->buffer + write->used, src, chunk);
+        write->used += chunk;
+        src += chunk;
+        size -= chunk;
+        if(write->used == write->capacity) {
+            flushJavaFileWrite(write);
+        }
+    }
+    return write->failed ? 0 : 1;
+}
+
+JNI_FUNC(jboolean, PdfiumCore, nativeSaveAsCopy)(JNI_ARGS, jlong docPtr, jobject writer,
+                                                 jobject buffer, jint flags){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
+    if(doc == NULL) {
+        LOGE("Save document pointer invalid");
+        return JNI_FALSE;
+    }
+    JavaFileWrite write;
+    write.version = 1;
+    write.WriteBlock = &writeBlockToJava;
+    write.env = env;
+    write.writer = writer;
+    write.buffer = reinterpret_cast<uint8_t*>(env->GetDirectBufferAddress(buffer));
+    write.capacity = (size_t) env->GetDirectBufferCapacity(buffer);
+    write.used = 0;
+    write.failed = false;
+    if(write.buffer == NULL || write.capacity == 0) {
+        LOGE("Save buffer must be direct");
+        return JNI_FALSE;
+    }
+
+    FPDF_BOOL saved = FPDF_SaveAsCopy(doc->pdfDocument, &write, (FPDF_DWORD) flags);
+    if(saved && !write.failed) {
+        flushJavaFileWrite(&write);
+    }
+    return saved && !write.failed ? JNI_TRUE : JNI_FALSE;
+}
+
 static jlong loadPageInternal(JNIEnv *env, DocumentFile *doc, int pageIndex){
     try{
         if(doc == NULL) throw "Get page document null";
@@ -308,7 +747,60 @@ static jlong loadPageInternal(JNIEnv *env, DocumentFile *doc, int pageIndex){
     }
 }
 
-static void closePageInternal(jlong pagePtr) { FPDF_ClosePage(reinterpret_cast<FPDF_PAGE>(pagePtr)); }
+/* Pages drawn with a form fill environment have a form page view, released before the page is closed */
+static Mutex sFormPagesLock;
+static std::unordered_map<FPDF_PAGE, FPDF_FORMHANDLE> sFormPages;
+
+static void drawFormFields(FPDF_FORMHANDLE form, FPDF_BITMAP bitmap, FPDF_PAGE page,
+                           int startX, int startY, int drawSizeHor, int drawSizeVer, int flags) {
+    bool pageViewCreated;
+    {
+        Mutex::Autolock lock(sFormPagesLock);
+        pageViewCreated = sFormPages.insert(std::make_pair(page, form)).second;
+    }
+    if(pageViewCreated) {
+        FORM_OnAfterLoadPage(page, form);
+    }
+    FPDF_FFLDraw(form, bitmap, page, startX, startY, drawSizeHor, drawSizeVer, 0, flags);
+}
+
+static void closePageInternal(jlong pagePtr) {
+    FPDF_PAGE page = reinterpret_cast<FPDF_PAGE>(pagePtr);
+    FPDF_FORMHANDLE form = NULL;
+    {
+        Mutex::Autolock lock(sFormPagesLock);
+        std::unordered_map<FPDF_PAGE, FPDF_FORMHANDLE>::iterator it = sFormPages.find(page);
+        if(it != sFormPages.end()) {
+            form = it->second;
+            sFormPages.erase(it);
+        }
+    }
+    if(form != NULL) {
+        FORM_OnBeforeClosePage(page, form);
+    }
+    FPDF_ClosePage(page);
+}
+
+JNI_FUNC(jlong, PdfiumCore, nativeInitFormFill)(JNI_ARGS, jlong docPtr){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
+    if(doc == NULL || doc->pdfDocument == NULL) {
+        LOGE("Form fill document null");
+        return 0;
+    }
+    if(doc->formHandle == NULL) {
+        doc->formFillInfo = new FPDF_FORMFILLINFO();
+        memset(doc->formFillInfo, 0, sizeof(FPDF_FORMFILLINFO));
+        doc->formFillInfo->version = 1;
+        doc->formHandle = FPDFDOC_InitFormFillEnvironment(doc->pdfDocument, doc->formFillInfo);
+        if(doc->formHandle == NULL) {
+            LOGE("Cannot init form fill environment");
+            delete doc->formFillInfo;
+            doc->formFillInfo = NULL;
+            return 0;
+        }
+    }
+    return reinterpret_cast<jlong>(doc->formHandle);
+}
 
 JNI_FUNC(jlong, PdfiumCore, nativeLoadPage)(JNI_ARGS, jlong docPtr, jint pageIndex){
     DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
@@ -340,6 +832,15 @@ JNI_FUNC(void, PdfiumCore, nativeClosePages)(JNI_ARGS, jlongArray pagesPtr){
     for(i = 0; i < length; i++){ closePageInternal(pages[i]); }
 }
 
+JNI_FUNC(jint, PdfiumCore, nativeFlattenPage)(JNI_ARGS, jlong pagePtr){
+    FPDF_PAGE page = reinterpret_cast<FPDF_PAGE>(pagePtr);
+    if(page == NULL) {
+        LOGE("Flatten page pointer invalid");
+        return FLATTEN_FAIL;
+    }
+    return FPDFPage_Flatten(page, FLAT_NORMALDISPLAY);
+}
+
 JNI_FUNC(jint, PdfiumCore, nativeGetPageWidthPixel)(JNI_ARGS, jlong pagePtr, jint dpi){
     FPDF_PAGE page = reinterpret_cast<FPDF_PAGE>(pagePtr);
     return (jint)(FPDF_GetPageWidth(page) * dpi / 72);
@@ -375,15 +876,45 @@ JNI_FUNC(jobject, PdfiumCore, nativeGetPageSizeByIndex)(JNI_ARGS, jlong docPtr,
         height = 0;
     }
 
-    jint widthInt = (jint) (width * dpi / 72);
-    jint heightInt = (jint) (height * dpi / 72);
+    // rounded like toPixels() in Java, so the size matches the one of getAllPageSizes()
+    jfloat scaledWidth = (jfloat) width * dpi;
+    jfloat scaledHeight = (jfloat) height * dpi;
+    jint widthInt = (jint) (scaledWidth / 72.0);
+    jint heightInt = (jint) (scaledHeight / 72.0);
 
-    jclass clazz = env->FindClass("com/shockwave/pdfium/util/Size");
-    jmethodID constructorID = env->GetMethodID(clazz, "<init>", "(II)V");
-    return env->NewObject(clazz, constructorID, widthInt, heightInt);
+    return env->NewObject(sJniCache.sizeClass, sJniCache.sizeInit, widthInt, heightInt);
 }
 
-static void renderPageInternal( FPDF_PAGE page,
+JNI_FUNC(jfloatArray, PdfiumCore, nativeGetAllPageSizes)(JNI_ARGS, jlong docPtr){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
+    if(doc == NULL || doc->pdfDocument == NULL) {
+        LOGE("Document is null");
+
+        jniThrowException(env, "java/lang/IllegalStateException",
+                               "Document is null");
+        return NULL;
+    }
+
+    int pageCount = FPDF_GetPageCount(doc->pdfDocument);
+    std::vector<jfloat> sizes(pageCount * 2);
+    for(int i = 0; i < pageCount; i++) {
+        double width, height;
+        if(FPDF_GetPageSizeByIndex(doc->pdfDocument, i, &width, &height) == 0) {
+            width = 0;
+            height = 0;
+        }
+        sizes[i * 2] = (jfloat) width;
+        sizes[i * 2 + 1] = (jfloat) height;
+    }
+
+    jfloatArray result = env->NewFloatArray(pageCount * 2);
+    if(pageCount > 0) {
+        env->SetFloatArrayRegion(result, 0, pageCount * 2, &sizes[0]);
+    }
+    return result;
+}
+
+static void renderPageInternal( FPDF_PAGE page, FPDF_FORMHANDLE form,
                                 ANativeWindow_Buffer *windowBuffer,
                                 int startX, int startY,
                                 int canvasHorSize, int canvasVerSize,
@@ -423,9 +954,14 @@ static void renderPageInternal( FPDF_PAGE page,
                            startX, startY,
                            drawSizeHor, drawSizeVer,
                            0, flags );
+    if(form != NULL) {
+        drawFormFields(form, pdfBitmap, page, startX, startY, drawSizeHor, drawSizeVer, flags);
+    }
+
+    FPDFBitmap_Destroy(pdfBitmap);
 }
 
-JNI_FUNC(void, PdfiumCore, nativeRenderPage)(JNI_ARGS, jlong pagePtr, jobject objSurface,
+JNI_FUNC(void, PdfiumCore, nativeRenderPage)(JNI_ARGS, jlong pagePtr, jlong formPtr, jobject objSurface,
                                              jint dpi, jint startX, jint startY,
                                              jint drawSizeHor, jint drawSizeVer,
                                              jboolean renderAnnot){
@@ -456,7 +992,7 @@ JNI_FUNC(void, PdfiumCore, nativeRenderPage)(JNI_ARGS, jlong pagePtr, jobject ob
         return;
     }
 
-    renderPageInternal(page, &buffer,
+    renderPageInternal(page, reinterpret_cast<FPDF_FORMHANDLE>(formPtr), &buffer,
                        (int)startX, (int)startY,
                        buffer.width, buffer.height,
                        (int)drawSizeHor, (int)drawSizeVer,
@@ -466,23 +1002,23 @@ JNI_FUNC(void, PdfiumCore, nativeRenderPage)(JNI_ARGS, jlong pagePtr, jobject ob
     ANativeWindow_release(nativeWindow);
 }
 
-JNI_FUNC(void, PdfiumCore, nativeRenderPageBitmap)(JNI_ARGS, jlong pagePtr, jobject bitmap,
+JNI_FUNC(jboolean, PdfiumCore, nativeRenderPageBitmap)(JNI_ARGS, jlong pagePtr, jlong formPtr, jobject bitmap,
                                              jint dpi, jint startX, jint startY,
                                              jint drawSizeHor, jint drawSizeVer,
-                                             jboolean renderAnnot){
+                                             jboolean renderAnnot, jboolean grayscale){
 
     FPDF_PAGE page = reinterpret_cast<FPDF_PAGE>(pagePtr);
 
     if(page == NULL || bitmap == NULL){
         LOGE("Render page pointers invalid");
-        return;
+        return JNI_FALSE;
     }
 
     AndroidBitmapInfo info;
     int ret;
     if((ret = AndroidBitmap_getInfo(env, bitmap, &info)) < 0) {
         LOGE("Fetching bitmap info failed: %s", strerror(ret * -1));
-        return;
+        return JNI_FALSE;
     }
 
     int canvasHorSize = info.width;
@@ -490,20 +1026,25 @@ JNI_FUNC(void, PdfiumCore, nativeRenderPageBitmap)(JNI_ARGS, jlong pagePtr, jobj
 
     if(info.format != ANDROID_BITMAP_FORMAT_RGBA_8888 && info.format != ANDROID_BITMAP_FORMAT_RGB_565){
         LOGE("Bitmap format must be RGBA_8888 or RGB_565");
-        return;
+        return JNI_FALSE;
     }
 
     void *addr;
     if( (ret = AndroidBitmap_lockPixels(env, bitmap, &addr)) != 0 ){
         LOGE("Locking bitmap failed: %s", strerror(ret * -1));
-        return;
+        return JNI_FALSE;
     }
 
     void *tmp;
     int format;
     int sourceStride;
     if (info.format == ANDROID_BITMAP_FORMAT_RGB_565) {
-        tmp = malloc(canvasVerSize * canvasHorSize * sizeof(rgb));
+        tmp = getScratchBuffer(canvasVerSize * canvasHorSize * sizeof(rgb));
+        if (tmp == NULL) {
+            LOGE("Cannot allocate RGB_565 conversion buffer");
+            AndroidBitmap_unlockPixels(env, bitmap);
+            return JNI_FALSE;
+        }
         sourceStride = canvasHorSize * sizeof(rgb);
         format = FPDFBitmap_BGR;
     } else {
@@ -514,6 +1055,11 @@ JNI_FUNC(void, PdfiumCore, nativeRenderPageBitmap)(JNI_ARGS, jlong pagePtr, jobj
 
     FPDF_BITMAP pdfBitmap = FPDFBitmap_CreateEx( canvasHorSize, canvasVerSize,
                                                      format, tmp, sourceStride);
+    if(pdfBitmap == NULL) {
+        LOGE("Cannot create PDFium bitmap");
+        AndroidBitmap_unlockPixels(env, bitmap);
+        return JNI_FALSE;
+    }
 
     /*LOGD("Start X: %d", startX);
     LOGD("Start Y: %d", startY);
@@ -536,6 +1082,9 @@ JNI_FUNC(void, PdfiumCore, nativeRenderPageBitmap)(JNI_ARGS, jlong pagePtr, jobj
     if(renderAnnot) {
     	flags |= FPDF_ANNOT;
     }
+    if(grayscale) {
+        flags |= FPDF_GRAYSCALE;
+    }
 
     FPDFBitmap_FillRect( pdfBitmap, baseX, baseY, baseHorSize, baseVerSize,
                          0xFFFFFFFF); //White
@@ -544,13 +1093,201 @@ JNI_FUNC(void, PdfiumCore, nativeRenderPageBitmap)(JNI_ARGS, jlong pagePtr, jobj
                            startX, startY,
                            (int)drawSizeHor, (int)drawSizeVer,
                            0, flags );
+    if(formPtr != 0) {
+        drawFormFields(reinterpret_cast<FPDF_FORMHANDLE>(formPtr), pdfBitmap, page,
+                       startX, startY, (int)drawSizeHor, (int)drawSizeVer, flags);
+    }
+
+    FPDFBitmap_Destroy(pdfBitmap);
 
     if (info.format == ANDROID_BITMAP_FORMAT_RGB_565) {
         rgbBitmapTo565(tmp, sourceStride, addr, &info);
-        free(tmp);
     }
 
     AndroidBitmap_unlockPixels(env, bitmap);
+    return JNI_TRUE;
+}
+
+/* State of a progressive render, pixels are kept in own buffer between time slices */
+struct ProgressiveRender {
+    FPDF_PAGE page;
+    FPDF_FORMHANDLE form;
+    FPDF_BITMAP pdfBitmap;
+    void *buffer;
+    int width;
+    int height;
+    int stride;
+    bool rgb565;
+    int status;
+    int64_t deadline;
+    volatile bool cancelled;
+    IFSDK_PAUSE pause;
+    /* kept for the form pass, which is drawn once the page content is done */
+    int startX;
+    int startY;
+    int drawSizeHor;
+    int drawSizeVer;
+    int flags;
+};
+
+static void drawProgressiveFormFields(ProgressiveRender *render) {
+    if(render->status == FPDF_RENDER_DONE && render->form != NULL) {
+        drawFormFields(render->form, render->pdfBitmap, render->page, render->startX, render->startY,
+                       render->drawSizeHor, render->drawSizeVer, render->flags);
+    }
+}
+
+static int64_t monotonicTimeMillis() {
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (int64_t) now.tv_sec * 1000 + now.tv_nsec / 1000000;
+}
+
+static FPDF_BOOL needToPauseNow(IFSDK_PAUSE *pause) {
+    ProgressiveRender *render = reinterpret_cast<ProgressiveRender*>(pause->user);
+    return render->cancelled || monotonicTimeMillis() >= render->deadline;
+}
+
+JNI_FUNC(jlong, PdfiumCore, nativeRenderPageBitmapStart)(JNI_ARGS, jlong pagePtr, jlong formPtr,
+                                             jint width, jint height, jboolean rgb565,
+                                             jint startX, jint startY,
+                                             jint drawSizeHor, jint drawSizeVer,
+                                             jboolean renderAnnot, jint budgetMillis){
+    FPDF_PAGE page = reinterpret_cast<FPDF_PAGE>(pagePtr);
+    if(page == NULL || width <= 0 || height <= 0){
+        LOGE("Render page pointers invalid");
+        return -1;
+    }
+
+    ProgressiveRender *render = new ProgressiveRender();
+    render->page = page;
+    render->form = reinterpret_cast<FPDF_FORMHANDLE>(formPtr);
+    render->width = width;
+    render->height = height;
+    render->rgb565 = rgb565;
+    render->stride = width * (rgb565 ? sizeof(rgb) : 4);
+    render->buffer = malloc(render->stride * height);
+    if(render->buffer == NULL){
+        delete render;
+        jniThrowException(env, "java/lang/OutOfMemoryError", "Cannot allocate render buffer");
+        return -1;
+    }
+    render->pdfBitmap = FPDFBitmap_CreateEx(width, height,
+                                            rgb565 ? FPDFBitmap_BGR : FPDFBitmap_BGRA,
+                                            render->buffer, render->stride);
+    if(render->pdfBitmap == NULL){
+        free(render->buffer);
+        delete render;
+        jniThrowException(env, "java/lang/OutOfMemoryError", "Cannot create render bitmap");
+        return -1;
+    }
+    render->cancelled = false;
+    render->pause.version = 1;
+    render->pause.NeedToPauseNow = &needToPauseNow;
+    render->pause.user = render;
+
+    if(drawSizeHor < width || drawSizeVer < height){
+        FPDFBitmap_FillRect( render->pdfBitmap, 0, 0, width, height,
+                             0x848484FF); //Gray
+    }
+
+    int baseHorSize = (width < drawSizeHor)? (int)width : (int)drawSizeHor;
+    int baseVerSize = (height < drawSizeVer)? (int)height : (int)drawSizeVer;
+    int baseX = (startX < 0)? 0 : (int)startX;
+    int baseY = (startY < 0)? 0 : (int)startY;
+    int flags = FPDF_REVERSE_BYTE_ORDER;
+
+    if(renderAnnot) {
+        flags |= FPDF_ANNOT;
+    }
+
+    FPDFBitmap_FillRect( render->pdfBitmap, baseX, baseY, baseHorSize, baseVerSize,
+                         0xFFFFFFFF); //White
+
+    render->startX = startX;
+    render->startY = startY;
+    render->drawSizeHor = drawSizeHor;
+    render->drawSizeVer = drawSizeVer;
+    render->flags = flags;
+    render->deadline = monotonicTimeMillis() + budgetMillis;
+    render->status = FPDF_RenderPageBitmap_Start( render->pdfBitmap, page,
+                                                  startX, startY,
+                                                  (int)drawSizeHor, (int)drawSizeVer,
+                                                  0, flags, &render->pause );
+    drawProgressiveFormFields(render);
+
+    return reinterpret_cast<jlong>(render);
+}
+
+JNI_FUNC(jint, PdfiumCore, nativeRenderPageContinue)(JNI_ARGS, jlong renderPtr, jint budgetMillis){
+    ProgressiveRender *render = reinterpret_cast<ProgressiveRender*>(renderPtr);
+    if(render->status == FPDF_RENDER_TOBECOUNTINUED && !render->cancelled){
+        render->deadline = monotonicTimeMillis() + budgetMillis;
+        render->status = FPDF_RenderPage_Continue(render->page, &render->pause);
+        drawProgressiveFormFields(render);
+    }
+    return render->status;
+}
+
+JNI_FUNC(jint, PdfiumCore, nativeRenderPageGetStatus)(JNI_ARGS, jlong renderPtr){
+    ProgressiveRender *render = reinterpret_cast<ProgressiveRender*>(renderPtr);
+    return render->status;
+}
+
+JNI_FUNC(void, PdfiumCore, nativeRenderPageCancel)(JNI_ARGS, jlong renderPtr){
+    ProgressiveRender *render = reinterpret_cast<ProgressiveRender*>(renderPtr);
+    render->cancelled = true;
+}
+
+JNI_FUNC(jboolean, PdfiumCore, nativeRenderPageCopyToBitmap)(JNI_ARGS, jlong renderPtr, jobject bitmap){
+    ProgressiveRender *render = reinterpret_cast<ProgressiveRender*>(renderPtr);
+
+    AndroidBitmapInfo info;
+    int ret;
+    if((ret = AndroidBitmap_getInfo(env, bitmap, &info)) < 0) {
+        LOGE("Fetching bitmap info failed: %s", strerror(ret * -1));
+        return JNI_FALSE;
+    }
+    if((int)info.width != render->width || (int)info.height != render->height){
+        LOGE("Bitmap size does not match render size");
+        return JNI_FALSE;
+    }
+    bool target565 = info.format == ANDROID_BITMAP_FORMAT_RGB_565;
+    if(target565 != render->rgb565 || (!target565 && info.format != ANDROID_BITMAP_FORMAT_RGBA_8888)){
+        LOGE("Bitmap format does not match render format");
+        return JNI_FALSE;
+    }
+
+    void *addr;
+    if( (ret = AndroidBitmap_lockPixels(env, bitmap, &addr)) != 0 ){
+        LOGE("Locking bitmap failed: %s", strerror(ret * -1));
+        return JNI_FALSE;
+    }
+
+    if (render->rgb565) {
+        rgbBitmapTo565(render->buffer, render->stride, addr, &info);
+    } else {
+        char *src = reinterpret_cast<char*>(render->buffer);
+        char *dst = reinterpret_cast<char*>(addr);
+        for (int y = 0; y < render->height; y++) {
+            memcpy(dst, src, render->stride);
+            src += render->stride;
+            dst += info.stride;
+        }
+    }
+
+    AndroidBitmap_unlockPixels(env, bitmap);
+    return JNI_TRUE;
+}
+
+JNI_FUNC(void, PdfiumCore, nativeRenderPageClose)(JNI_ARGS, jlong renderPtr, jboolean pageOpened){
+    ProgressiveRender *render = reinterpret_cast<ProgressiveRender*>(renderPtr);
+    if(pageOpened){
+        FPDF_RenderPage_Close(render->page);
+    }
+    FPDFBitmap_Destroy(render->pdfBitmap);
+    free(render->buffer);
+    delete render;
 }
 
 JNI_FUNC(jstring, PdfiumCore, nativeGetDocumentMetaText)(JNI_ARGS, jlong docPtr, jstring tag) {
@@ -570,122 +1307,548 @@ JNI_FUNC(jstring, PdfiumCore, nativeGetDocumentMetaText)(JNI_ARGS, jlong docPtr,
     return env->NewString((jchar*) text.c_str(), bufferLen / 2 - 1);
 }
 
-JNI_FUNC(jobject, PdfiumCore, nativeGetFirstChildBookmark)(JNI_ARGS, jlong docPtr, jobject bookmarkPtr) {
+/* Upper bound of loaded outline entries, protects against malformed documents */
+static const size_t MAX_OUTLINE_ENTRIES = 1 << 20;
+
+/*
+ * Flatten outline below given bookmark (NULL for document root) in preorder without recursion.
+ * Entries deeper than maxDepth (relative to the start, 0 for no limit) are not loaded, their parents
+ * are marked as having unloaded children. Bookmarks already visited are skipped, so cyclic outlines
+ * of broken documents terminate.
+ */
+JNI_FUNC(jobject, PdfiumCore, nativeGetOutline)(JNI_ARGS, jlong docPtr, jlong bookmarkPtr, jint maxDepth) {
     DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
-    FPDF_BOOKMARK parent;
-    if(bookmarkPtr == NULL) {
-        parent = NULL;
-    } else {
-        jclass longClass = env->GetObjectClass(bookmarkPtr);
-        jmethodID longValueMethod = env->GetMethodID(longClass, "longValue", "()J");
+    FPDF_BOOKMARK root = reinterpret_cast<FPDF_BOOKMARK>(bookmarkPtr);
+
+    std::vector<jint> parents;
+    std::vector<jint> pageIndexes;
+    std::vector<jlong> ptrs;
+    std::vector<jboolean> unloaded;
+    std::vector<std::basic_string<jchar> > titles;
+    std::unordered_set<FPDF_BOOKMARK> visited;
+
+    struct Pending {
+        FPDF_BOOKMARK bookmark;
+        jint parent;
+        jint depth;
+    };
+    std::vector<Pending> stack;
+    std::vector<unsigned short> titleBuffer;
+
+    FPDF_BOOKMARK first = FPDFBookmark_GetFirstChild(doc->pdfDocument, root);
+    if (first != NULL) {
+        Pending start = {first, -1, 1};
+        stack.push_back(start);
+    }
+    while (!stack.empty() && ptrs.size() < MAX_OUTLINE_ENTRIES) {
+        Pending current = stack.back();
+        stack.pop_back();
+        if (!visited.insert(current.bookmark).second) {
+            continue;
+        }
+        jint index = (jint) ptrs.size();
+        parents.push_back(current.parent);
+        ptrs.push_back(reinterpret_cast<jlong>(current.bookmark));
+
+        FPDF_DEST dest = FPDFBookmark_GetDest(doc->pdfDocument, current.bookmark);
+        pageIndexes.push_back(dest != NULL ? (jint) FPDFDest_GetPageIndex(doc->pdfDocument, dest) : -1);
+
+        // title length in bytes of UTF-16LE, including the terminator
+        unsigned long titleLen = FPDFBookmark_GetTitle(current.bookmark, NULL, 0);
+        if (titleLen > 2) {
+            titleBuffer.resize(titleLen / 2);
+            FPDFBookmark_GetTitle(current.bookmark, &titleBuffer[0], titleLen);
+            titles.push_back(std::basic_string<jchar>(titleBuffer.begin(), titleBuffer.end() - 1));
+        } else {
+            titles.push_back(std::basic_string<jchar>());
+        }
 
-        jlong ptr = env->CallLongMethod(bookmarkPtr, longValueMethod);
-        parent = reinterpret_cast<FPDF_BOOKMARK>(ptr);
+        FPDF_BOOKMARK child = FPDFBookmark_GetFirstChild(doc->pdfDocument, current.bookmark);
+        bool load = child != NULL && (maxDepth <= 0 || current.depth < maxDepth);
+        unloaded.push_back(child != NULL && !load ? JNI_TRUE : JNI_FALSE);
+
+        // sibling goes below the child, so the child subtree is emitted first
+        FPDF_BOOKMARK sibling = FPDFBookmark_GetNextSibling(doc->pdfDocument, current.bookmark);
+        if (sibling != NULL) {
+            Pending next = {sibling, current.parent, current.depth};
+            stack.push_back(next);
+        }
+        if (load) {
+            Pending next = {child, index, current.depth + 1};
+            stack.push_back(next);
+        }
     }
-    FPDF_BOOKMARK bookmark = FPDFBookmark_GetFirstChild(doc->pdfDocument, parent);
-    if (bookmark == NULL) {
-        return NULL;
+    if (!stack.empty()) {
+        LOGE("Outline has more than %d entries, rest is ignored", (int) MAX_OUTLINE_ENTRIES);
     }
-    return NewLong(env, reinterpret_cast<jlong>(bookmark));
-}
 
-JNI_FUNC(jobject, PdfiumCore, nativeGetSiblingBookmark)(JNI_ARGS, jlong docPtr, jlong bookmarkPtr) {
-    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
-    FPDF_BOOKMARK parent = reinterpret_cast<FPDF_BOOKMARK>(bookmarkPtr);
-    FPDF_BOOKMARK bookmark = FPDFBookmark_GetNextSibling(doc->pdfDocument, parent);
-    if (bookmark == NULL) {
-        return NULL;
+    jsize count = (jsize) ptrs.size();
+    jintArray parentArray = env->NewIntArray(count);
+    jintArray pageArray = env->NewIntArray(count);
+    jlongArray ptrArray = env->NewLongArray(count);
+    jbooleanArray unloadedArray = env->NewBooleanArray(count);
+    jobjectArray titleArray = env->NewObjectArray(count, sJniCache.stringClass, NULL);
+    if (count > 0) {
+        env->SetIntArrayRegion(parentArray, 0, count, &parents[0]);
+        env->SetIntArrayRegion(pageArray, 0, count, &pageIndexes[0]);
+        env->SetLongArrayRegion(ptrArray, 0, count, &ptrs[0]);
+        env->SetBooleanArrayRegion(unloadedArray, 0, count, &unloaded[0]);
     }
-    return NewLong(env, reinterpret_cast<jlong>(bookmark));
-}
-
-JNI_FUNC(jstring, PdfiumCore, nativeGetBookmarkTitle)(JNI_ARGS, jlong bookmarkPtr) {
-    FPDF_BOOKMARK bookmark = reinterpret_cast<FPDF_BOOKMARK>(bookmarkPtr);
-    size_t bufferLen = FPDFBookmark_GetTitle(bookmark, NULL, 0);
-    if (bufferLen <= 2) {
-        return env->NewStringUTF("");
+    for (jsize i = 0; i < count; i++) {
+        jstring title = env->NewString(titles[i].data(), titles[i].size());
+        env->SetObjectArrayElement(titleArray, i, title);
+        env->DeleteLocalRef(title);
     }
-    std::wstring title;
-    FPDFBookmark_GetTitle(bookmark, WriteInto(&title, bufferLen + 1), bufferLen);
-    return env->NewString((jchar*) title.c_str(), bufferLen / 2 - 1);
+    return env->NewObject(sJniCache.outlineClass, sJniCache.outlineInit, parentArray, titleArray,
+                          pageArray, ptrArray, unloadedArray);
 }
 
-JNI_FUNC(jlong, PdfiumCore, nativeGetBookmarkDestIndex)(JNI_ARGS, jlong docPtr, jlong bookmarkPtr) {
-    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
-    FPDF_BOOKMARK bookmark = reinterpret_cast<FPDF_BOOKMARK>(bookmarkPtr);
+/* Text page keeps the page it was loaded from opened. The page is its own copy, not the one in the
+   page cache of the document, so it counts as a loaded page in MemoryStats */
+struct TextPage {
+    FPDF_PAGE page;
+    FPDF_TEXTPAGE textPage;
+};
 
-    FPDF_DEST dest = FPDFBookmark_GetDest(doc->pdfDocument, bookmark);
-    if (dest == NULL) {
-        return -1;
+static inline FPDF_TEXTPAGE toTextPage(jlong textPagePtr) {
+    return reinterpret_cast<TextPage*>(textPagePtr)->textPage;
+}
+
+static bool rectsOverlap(const std::vector<jfloat> &rects, size_t count, double left, double top,
+                         double right, double bottom) {
+    for(size_t i = 0; i < count; i++) {
+        const jfloat *r = &rects[i * 4];
+        if(r[0] < right && r[2] > left && std::min(r[1], r[3]) < top && std::max(r[1], r[3]) > bottom) {
+            return true;
+        }
     }
-    return (jlong) FPDFDest_GetPageIndex(doc->pdfDocument, dest);
+    return false;
 }
 
-JNI_FUNC(jlongArray, PdfiumCore, nativeGetPageLinks)(JNI_ARGS, jlong pagePtr) {
+JNI_FUNC(jobject, PdfiumCore, nativeGetPageLinksPacked)(JNI_ARGS, jlong docPtr, jlong pagePtr,
+                                                        jlong textPagePtr) {
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
     FPDF_PAGE page = reinterpret_cast<FPDF_PAGE>(pagePtr);
+    std::vector<jfloat> rects;
+    std::vector<jint> dests;
+    // strings are created when the result is filled, so few local references exist at a time
+    std::vector<int> uris; // -1 for none, index to annotUris or webUris + annotUris.size()
+    std::vector<std::string> annotUris;
+    std::vector<std::vector<unsigned short> > webUris;
+
     int pos = 0;
-    std::vector<jlong> links;
     FPDF_LINK link;
     while (FPDFLink_Enumerate(page, &pos, &link)) {
-        links.push_back(reinterpret_cast<jlong>(link));
+        FS_RECTF rect;
+        if (!FPDFLink_GetAnnotRect(link, &rect)) {
+            continue;
+        }
+        jint destIndex = -1;
+        FPDF_DEST dest = FPDFLink_GetDest(doc->pdfDocument, link);
+        if (dest != NULL) {
+            destIndex = (jint) FPDFDest_GetPageIndex(doc->pdfDocument, dest);
+        }
+        int uri = -1;
+        FPDF_ACTION action = FPDFLink_GetAction(link);
+        if (action != NULL) {
+            size_t bufferLen = FPDFAction_GetURIPath(doc->pdfDocument, action, NULL, 0);
+            std::string path;
+            if (bufferLen > 0) {
+                FPDFAction_GetURIPath(doc->pdfDocument, action, WriteInto(&path, bufferLen), bufferLen);
+            }
+            uri = annotUris.size();
+            annotUris.push_back(path);
+        }
+        if (destIndex == -1 && uri == -1) {
+            continue;
+        }
+        rects.push_back(rect.left);
+        rects.push_back(rect.top);
+        rects.push_back(rect.right);
+        rects.push_back(rect.bottom);
+        dests.push_back(destIndex);
+        uris.push_back(uri);
     }
 
-    jlongArray result = env->NewLongArray(links.size());
-    env->SetLongArrayRegion(result, 0, links.size(), &links[0]);
-    return result;
+    size_t annotCount = dests.size();
+    if (textPagePtr != 0) {
+        FPDF_PAGELINK webLinks = FPDFLink_LoadWebLinks(toTextPage(textPagePtr));
+        int webCount = webLinks != NULL ? FPDFLink_CountWebLinks(webLinks) : 0;
+        for (int i = 0; i < webCount; i++) {
+            int urlLen = FPDFLink_GetURL(webLinks, i, NULL, 0);
+            if (urlLen <= 1) {
+                continue;
+            }
+            std::vector<unsigned short> url(urlLen);
+            FPDFLink_GetURL(webLinks, i, &url[0], urlLen);
+            url.resize(urlLen - 1);
+            int uri = -1;
+
+            int rectCount = FPDFLink_CountRects(webLinks, i);
+            for (int r = 0; r < rectCount; r++) {
+                double left, top, right, bottom;
+                FPDFLink_GetRect(webLinks, i, r, &left, &top, &right, &bottom);
+                // link annotations usually cover the same text
+                if (rectsOverlap(rects, annotCount, left, top, right, bottom)) {
+                    continue;
+                }
+                if (uri == -1) {
+                    uri = annotUris.size() + webUris.size();
+                    webUris.push_back(url);
+                }
+                rects.push_back((jfloat) left);
+                rects.push_back((jfloat) top);
+                rects.push_back((jfloat) right);
+                rects.push_back((jfloat) bottom);
+                dests.push_back(-1);
+                uris.push_back(uri);
+            }
+        }
+        if (webLinks != NULL) {
+            FPDFLink_CloseWebLinks(webLinks);
+        }
+    }
+
+    jfloatArray rectArray = env->NewFloatArray(rects.size());
+    if (!rects.empty()) {
+        env->SetFloatArrayRegion(rectArray, 0, rects.size(), &rects[0]);
+    }
+    jintArray destArray = env->NewIntArray(dests.size());
+    if (!dests.empty()) {
+        env->SetIntArrayRegion(destArray, 0, dests.size(), &dests[0]);
+    }
+    jobjectArray uriArray = env->NewObjectArray(uris.size(), sJniCache.stringClass, NULL);
+    jstring uri = NULL;
+    for (size_t i = 0; i < uris.size(); i++) {
+        if (uris[i] == -1) {
+            continue;
+        }
+        if (uri == NULL) {
+            size_t index = uris[i];
+            if (index < annotUris.size()) {
+                uri = env->NewStringUTF(annotUris[index].c_str());
+            } else {
+                std::vector<unsigned short> &url = webUris[index - annotUris.size()];
+                uri = env->NewString(reinterpret_cast<const jchar*>(url.data()), url.size());
+            }
+        }
+        env->SetObjectArrayElement(uriArray, i, uri);
+        // rectangles of one web link share the string
+        if (i + 1 == uris.size() || uris[i + 1] != uris[i]) {
+            env->DeleteLocalRef(uri);
+            uri = NULL;
+        }
+    }
+    return env->NewObject(sJniCache.pageLinksClass, sJniCache.pageLinksInit, rectArray, destArray,
+                          uriArray, (jint) annotCount);
 }
 
-JNI_FUNC(jobject, PdfiumCore, nativeGetDestPageIndex)(JNI_ARGS, jlong docPtr, jlong linkPtr) {
-    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
-    FPDF_LINK link = reinterpret_cast<FPDF_LINK>(linkPtr);
-    FPDF_DEST dest = FPDFLink_GetDest(doc->pdfDocument, link);
-    if (dest == NULL) {
-        return NULL;
+JNI_FUNC(jobject, PdfiumCore, nativePageCoordsToDevice)(JNI_ARGS, jlong pagePtr, jint startX, jint startY, jint sizeX,
+                                            jint sizeY, jint rotate, jdouble pageX, jdouble pageY) {
+    FPDF_PAGE page = reinterpret_cast<FPDF_PAGE>(pagePtr);
+    int deviceX, deviceY;
+
+    FPDF_PageToDevice(page, startX, startY, sizeX, sizeY, rotate, pageX, pageY, &deviceX, &deviceY);
+
+    return env->NewObject(sJniCache.pointClass, sJniCache.pointInit, deviceX, deviceY);
+}
+
+///////////////////////////////////////
+// PDF TextPage api
+///////////
+
+static jlong loadTextPageInternal(JNIEnv *env, DocumentFile *doc, int pageIndex){
+    if(doc == NULL || doc->pdfDocument == NULL) {
+        LOGE("Get text page document null");
+        return -1;
     }
-    unsigned long index = FPDFDest_GetPageIndex(doc->pdfDocument, dest);
-    return NewInteger(env, (jint) index);
+
+    FPDF_PAGE page = FPDF_LoadPage(doc->pdfDocument, pageIndex);
+    if(page == NULL) {
+        LOGE("Loaded page is null");
+        return -1;
+    }
+    FPDF_TEXTPAGE textPage = FPDFText_LoadPage(page);
+    if(textPage == NULL) {
+        LOGE("Loaded text page is null");
+        FPDF_ClosePage(page);
+        return -1;
+    }
+
+    TextPage *result = new TextPage();
+    result->page = page;
+    result->textPage = textPage;
+    return reinterpret_cast<jlong>(result);
 }
 
-JNI_FUNC(jstring, PdfiumCore, nativeGetLinkURI)(JNI_ARGS, jlong docPtr, jlong linkPtr){
+static void closeTextPageInternal(jlong textPagePtr) {
+    TextPage *textPage = reinterpret_cast<TextPage*>(textPagePtr);
+    FPDFText_ClosePage(textPage->textPage);
+    FPDF_ClosePage(textPage->page);
+    delete textPage;
+}
+
+JNI_FUNC(jlong, PdfiumCore, nativeLoadTextPage)(JNI_ARGS, jlong docPtr, jint pageIndex){
     DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
-    FPDF_LINK link = reinterpret_cast<FPDF_LINK>(linkPtr);
-    FPDF_ACTION action = FPDFLink_GetAction(link);
-    if (action == NULL) {
-        return NULL;
+    return loadTextPageInternal(env, doc, (int)pageIndex);
+}
+
+JNI_FUNC(jlongArray, PdfiumCore, nativeLoadTextPages)(JNI_ARGS, jlong docPtr, jint fromIndex, jint toIndex){
+    DocumentFile *doc = reinterpret_cast<DocumentFile*>(docPtr);
+
+    if(toIndex < fromIndex) return NULL;
+    std::vector<jlong> pages(toIndex - fromIndex + 1);
+
+    for(int i = 0; i <= (toIndex - fromIndex); i++){
+        pages[i] = loadTextPageInternal(env, doc, (int)(i + fromIndex));
     }
-    size_t bufferLen = FPDFAction_GetURIPath(doc->pdfDocument, action, NULL, 0);
-    if (bufferLen <= 0) {
+
+    jlongArray javaPages = env->NewLongArray((jsize)pages.size());
+    env->SetLongArrayRegion(javaPages, 0, (jsize)pages.size(), &pages[0]);
+    return javaPages;
+}
+
+JNI_FUNC(void, PdfiumCore, nativeCloseTextPage)(JNI_ARGS, jlong textPagePtr){
+    closeTextPageInternal(textPagePtr);
+}
+
+JNI_FUNC(void, PdfiumCore, nativeCloseTextPages)(JNI_ARGS, jlongArray textPagesPtr){
+    int length = (int)(env->GetArrayLength(textPagesPtr));
+    jlong *pages = env->GetLongArrayElements(textPagesPtr, NULL);
+
+    for(int i = 0; i < length; i++){
+        if(pages[i] != -1) closeTextPageInternal(pages[i]);
+    }
+    env->ReleaseLongArrayElements(textPagesPtr, pages, JNI_ABORT);
+}
+
+JNI_FUNC(jint, PdfiumCore, nativeTextCountChars)(JNI_ARGS, jlong textPagePtr){
+    return (jint)FPDFText_CountChars(toTextPage(textPagePtr));
+}
+
+JNI_FUNC(jint, PdfiumCore, nativeTextGetText)(JNI_ARGS, jlong textPagePtr, jint startIndex,
+                                              jint count, jshortArray result){
+    jshort *buffer = env->GetShortArrayElements(result, NULL);
+    int written = FPDFText_GetText(toTextPage(textPagePtr), (int)startIndex, (int)count,
+                                   reinterpret_cast<unsigned short*>(buffer));
+    env->ReleaseShortArrayElements(result, buffer, 0);
+    return (jint)written;
+}
+
+JNI_FUNC(jstring, PdfiumCore, nativeTextGetTextString)(JNI_ARGS, jlong textPagePtr, jint startIndex,
+                                                       jint count){
+    if(count <= 0) {
         return env->NewStringUTF("");
     }
-    std::string uri;
-    FPDFAction_GetURIPath(doc->pdfDocument, action, WriteInto(&uri, bufferLen), bufferLen);
-    return env->NewStringUTF(uri.c_str());
+    std::vector<unsigned short> buffer(count + 1);
+    int written = FPDFText_GetText(toTextPage(textPagePtr), (int)startIndex, (int)count, &buffer[0]);
+    // written count includes the terminating NUL
+    return env->NewString(reinterpret_cast<const jchar*>(&buffer[0]), written > 0 ? written - 1 : 0);
+}
+
+JNI_FUNC(jint, PdfiumCore, nativeTextGetUnicode)(JNI_ARGS, jlong textPagePtr, jint index){
+    return (jint)FPDFText_GetUnicode(toTextPage(textPagePtr), (int)index);
+}
+
+JNI_FUNC(jdoubleArray, PdfiumCore, nativeTextGetCharBox)(JNI_ARGS, jlong textPagePtr, jint index){
+    jdouble box[4];
+    FPDFText_GetCharBox(toTextPage(textPagePtr), (int)index, &box[0], &box[1], &box[2], &box[3]);
+
+    jdoubleArray result = env->NewDoubleArray(4);
+    env->SetDoubleArrayRegion(result, 0, 4, box);
+    return result;
+}
+
+JNI_FUNC(jfloatArray, PdfiumCore, nativeTextGetCharBoxes)(JNI_ARGS, jlong textPagePtr){
+    FPDF_TEXTPAGE textPage = toTextPage(textPagePtr);
+    int count = FPDFText_CountChars(textPage);
+    if(count < 0) count = 0;
+
+    std::vector<jfloat> boxes(count * 4);
+    for(int i = 0; i < count; i++) {
+        double left = 0, right = 0, bottom = 0, top = 0;
+        FPDFText_GetCharBox(textPage, i, &left, &right, &bottom, &top);
+        boxes[i * 4] = (jfloat)left;
+        boxes[i * 4 + 1] = (jfloat)top;
+        boxes[i * 4 + 2] = (jfloat)right;
+        boxes[i * 4 + 3] = (jfloat)bottom;
+    }
+
+    jfloatArray result = env->NewFloatArray(boxes.size());
+    if(!boxes.empty()) {
+        env->SetFloatArrayRegion(result, 0, boxes.size(), &boxes[0]);
+    }
+    return result;
+}
+
+JNI_FUNC(jboolean, PdfiumCore, nativeTextGetLayout)(JNI_ARGS, jlong textPagePtr, jintArray unicodes,
+                                                    jobject boxes, jfloatArray fontSizes){
+    FPDF_TEXTPAGE textPage = toTextPage(textPagePtr);
+    int count = (int)env->GetArrayLength(unicodes);
+    jfloat *cBoxes = reinterpret_cast<jfloat*>(env->GetDirectBufferAddress(boxes));
+    if(cBoxes == NULL || env->GetDirectBufferCapacity(boxes) < (jlong)count * 4 * sizeof(jfloat)) {
+        LOGE("Invalid char boxes buffer");
+        return JNI_FALSE;
+    }
+
+    std::vector<jint> cUnicodes(count);
+    std::vector<jfloat> cFontSizes(count);
+    for(int i = 0; i < count; i++) {
+        double left = 0, right = 0, bottom = 0, top = 0;
+        FPDFText_GetCharBox(textPage, i, &left, &right, &bottom, &top);
+        cBoxes[i * 4] = (jfloat)left;
+        cBoxes[i * 4 + 1] = (jfloat)top;
+        cBoxes[i * 4 + 2] = (jfloat)right;
+        cBoxes[i * 4 + 3] = (jfloat)bottom;
+        cUnicodes[i] = (jint)FPDFText_GetUnicode(textPage, i);
+        cFontSizes[i] = (jfloat)FPDFText_GetFontSize(textPage, i);
+    }
+
+    if(count > 0) {
+        env->SetIntArrayRegion(unicodes, 0, count, &cUnicodes[0]);
+        env->SetFloatArrayRegion(fontSizes, 0, count, &cFontSizes[0]);
+    }
+    return JNI_TRUE;
 }
 
-JNI_FUNC(jobject, PdfiumCore, nativeGetLinkRect)(JNI_ARGS, jlong linkPtr) {
-    FPDF_LINK link = reinterpret_cast<FPDF_LINK>(linkPtr);
-    FS_RECTF fsRectF;
-    FPDF_BOOL result = FPDFLink_GetAnnotRect(link, &fsRectF);
+JNI_FUNC(jint, PdfiumCore, nativeTextGetCharIndexAtPos)(JNI_ARGS, jlong textPagePtr, jdouble x, jdouble y,
+                                                        jdouble xTolerance, jdouble yTolerance){
+    return (jint)FPDFText_GetCharIndexAtPos(toTextPage(textPagePtr), x, y, xTolerance, yTolerance);
+}
+
+JNI_FUNC(jint, PdfiumCore, nativeTextCountRects)(JNI_ARGS, jlong textPagePtr, jint startIndex, jint count){
+    return (jint)FPDFText_CountRects(toTextPage(textPagePtr), (int)startIndex, (int)count);
+}
+
+JNI_FUNC(jdoubleArray, PdfiumCore, nativeTextGetRect)(JNI_ARGS, jlong textPagePtr, jint rectIndex){
+    jdouble rect[4];
+    FPDFText_GetRect(toTextPage(textPagePtr), (int)rectIndex, &rect[0], &rect[1], &rect[2], &rect[3]);
+
+    jdoubleArray result = env->NewDoubleArray(4);
+    env->SetDoubleArrayRegion(result, 0, 4, rect);
+    return result;
+}
 
-    if (!result) {
+JNI_FUNC(jint, PdfiumCore, nativeTextGetBoundedTextLength)(JNI_ARGS, jlong textPagePtr, jdouble left,
+                                                           jdouble top, jdouble right, jdouble bottom){
+    return (jint)FPDFText_GetBoundedText(toTextPage(textPagePtr), left, top, right, bottom, NULL, 0);
+}
+
+JNI_FUNC(jint, PdfiumCore, nativeTextGetBoundedText)(JNI_ARGS, jlong textPagePtr, jdouble left,
+                                                     jdouble top, jdouble right, jdouble bottom,
+                                                     jshortArray arr){
+    int length = (int)env->GetArrayLength(arr);
+    jshort *buffer = env->GetShortArrayElements(arr, NULL);
+    int written = FPDFText_GetBoundedText(toTextPage(textPagePtr), left, top, right, bottom,
+                                          reinterpret_cast<unsigned short*>(buffer), length);
+    env->ReleaseShortArrayElements(arr, buffer, 0);
+    return (jint)written;
+}
+
+JNI_FUNC(jstring, PdfiumCore, nativeTextGetBoundedTextString)(JNI_ARGS, jlong textPagePtr, jdouble left,
+                                                              jdouble top, jdouble right, jdouble bottom){
+    FPDF_TEXTPAGE textPage = toTextPage(textPagePtr);
+    int length = FPDFText_GetBoundedText(textPage, left, top, right, bottom, NULL, 0);
+    if(length <= 0) {
         return NULL;
     }
+    std::vector<unsigned short> buffer(length + 1);
+    int written = FPDFText_GetBoundedText(textPage, left, top, right, bottom, &buffer[0], length + 1);
+    if(written > length) written = length;
+    return env->NewString(reinterpret_cast<const jchar*>(&buffer[0]), written > 0 ? written : 0);
+}
+
+///////////////////////////////////////
+// PDF Search API
+///////////
+
+JNI_FUNC(jlong, PdfiumCore, nativeSearchStart)(JNI_ARGS, jlong textPagePtr, jstring query,
+                                               jboolean matchCase, jboolean matchWholeWord){
+    int length = env->GetStringLength(query);
+    std::vector<unsigned short> findWhat(length + 1, 0);
+    env->GetStringRegion(query, 0, length, reinterpret_cast<jchar*>(&findWhat[0]));
 
-    jclass clazz = env->FindClass("android/graphics/RectF");
-    jmethodID constructorID = env->GetMethodID(clazz, "<init>", "(FFFF)V");
-    return env->NewObject(clazz, constructorID, fsRectF.left, fsRectF.top, fsRectF.right, fsRectF.bottom);
+    unsigned long flags = 0;
+    if(matchCase) flags |= FPDF_MATCHCASE;
+    if(matchWholeWord) flags |= FPDF_MATCHWHOLEWORD;
+
+    FPDF_SCHHANDLE search = FPDFText_FindStart(toTextPage(textPagePtr), &findWhat[0], flags, 0);
+    return search != NULL ? reinterpret_cast<jlong>(search) : -1;
 }
 
-JNI_FUNC(jobject, PdfiumCore, nativePageCoordsToDevice)(JNI_ARGS, jlong pagePtr, jint startX, jint startY, jint sizeX,
-                                            jint sizeY, jint rotate, jdouble pageX, jdouble pageY) {
-    FPDF_PAGE page = reinterpret_cast<FPDF_PAGE>(pagePtr);
-    int deviceX, deviceY;
+JNI_FUNC(void, PdfiumCore, nativeSearchStop)(JNI_ARGS, jlong searchHandlePtr){
+    FPDFText_FindClose(reinterpret_cast<FPDF_SCHHANDLE>(searchHandlePtr));
+}
 
-    FPDF_PageToDevice(page, startX, startY, sizeX, sizeY, rotate, pageX, pageY, &deviceX, &deviceY);
+JNI_FUNC(jboolean, PdfiumCore, nativeSearchNext)(JNI_ARGS, jlong searchHandlePtr){
+    return FPDFText_FindNext(reinterpret_cast<FPDF_SCHHANDLE>(searchHandlePtr)) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNI_FUNC(jboolean, PdfiumCore, nativeSearchPrev)(JNI_ARGS, jlong searchHandlePtr){
+    return FPDFText_FindPrev(reinterpret_cast<FPDF_SCHHANDLE>(searchHandlePtr)) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNI_FUNC(jint, PdfiumCore, nativeGetCharIndexOfSearchResult)(JNI_ARGS, jlong searchHandlePtr){
+    return (jint)FPDFText_GetSchResultIndex(reinterpret_cast<FPDF_SCHHANDLE>(searchHandlePtr));
+}
+
+JNI_FUNC(jint, PdfiumCore, nativeCountSearchResult)(JNI_ARGS, jlong searchHandlePtr){
+    return (jint)FPDFText_GetSchCount(reinterpret_cast<FPDF_SCHHANDLE>(searchHandlePtr));
+}
 
-    jclass clazz = env->FindClass("android/graphics/Point");
-    jmethodID constructorID = env->GetMethodID(clazz, "<init>", "(II)V");
-    return env->NewObject(clazz, constructorID, deviceX, deviceY);
+JNI_FUNC(jintArray, PdfiumCore, nativeSearchAll)(JNI_ARGS, jlong textPagePtr, jstring query,
+                                                 jboolean matchCase, jboolean matchWholeWord,
+                                                 jint maxHits){
+    jlong searchPtr = Java_com_shockwave_pdfium_PdfiumCore_nativeSearchStart(env, thiz, textPagePtr, query,
+                                                                             matchCase, matchWholeWord);
+    std::vector<jint> hits;
+    if(searchPtr != -1) {
+        FPDF_SCHHANDLE search = reinterpret_cast<FPDF_SCHHANDLE>(searchPtr);
+        while((maxHits <= 0 || (jint)(hits.size() / 2) < maxHits) && FPDFText_FindNext(search)) {
+            hits.push_back((jint)FPDFText_GetSchResultIndex(search));
+            hits.push_back((jint)FPDFText_GetSchCount(search));
+        }
+        FPDFText_FindClose(search);
+    }
+
+    jintArray result = env->NewIntArray(hits.size());
+    if(!hits.empty()) {
+        env->SetIntArrayRegion(result, 0, hits.size(), &hits[0]);
+    }
+    return result;
+}
+
+JNI_FUNC(jfloatArray, PdfiumCore, nativeTextGetRectsForRanges)(JNI_ARGS, jlong textPagePtr,
+                                                               jintArray ranges, jintArray rectCounts){
+    FPDF_TEXTPAGE textPage = toTextPage(textPagePtr);
+    int rangeCount = (int)env->GetArrayLength(ranges) / 2;
+    jint *cRanges = env->GetIntArrayElements(ranges, NULL);
+    std::vector<jint> counts(rangeCount);
+    std::vector<jfloat> rects;
+
+    for(int i = 0; i < rangeCount; i++) {
+        int count = FPDFText_CountRects(textPage, cRanges[i * 2], cRanges[i * 2 + 1]);
+        if(count < 0) count = 0;
+        counts[i] = count;
+        for(int r = 0; r < count; r++) {
+            double left, top, right, bottom;
+            FPDFText_GetRect(textPage, r, &left, &top, &right, &bottom);
+            rects.push_back((jfloat)left);
+            rects.push_back((jfloat)top);
+            rects.push_back((jfloat)right);
+            rects.push_back((jfloat)bottom);
+        }
+    }
+    env->ReleaseIntArrayElements(ranges, cRanges, JNI_ABORT);
+
+    if(rangeCount > 0) {
+        env->SetIntArrayRegion(rectCounts, 0, rangeCount, &counts[0]);
+    }
+    jfloatArray result = env->NewFloatArray(rects.size());
+    if(!rects.empty()) {
+        env->SetFloatArrayRegion(result, 0, rects.size(), &rects[0]);
+    }
+    return result;
 }
 
 }//extern C
@@ -0,0 +1,155 @@
+#ifndef _STREAMING_HPP_
+#define _STREAMING_HPP_
+
+#include "util.hpp"
+
+extern "C" {
+    #include <string.h>
+}
+
+#include <fpdfview.h>
+#include <fpdf_dataavail.h>
+#include <algorithm>
+#include <vector>
+
+/*
+ * Document data which arrives progressively. Received byte ranges are copied to a buffer of the
+ * whole file length and PDFium is told which parts are available through FX_FILEAVAIL.
+ * Ranges PDFium needs next are collected from FX_DOWNLOADHINTS.
+ * Not thread safe, used only with the document lock held.
+ */
+class StreamingData {
+    private:
+    struct FileAvail : FX_FILEAVAIL {
+        StreamingData *owner;
+    };
+    struct DownloadHints : FX_DOWNLOADHINTS {
+        StreamingData *owner;
+    };
+    typedef std::pair<size_t, size_t> Range; // start, end (exclusive)
+
+    unsigned char *buffer;
+    size_t length;
+    FileAvail fileAvail;
+    DownloadHints hints;
+    FPDF_FILEACCESS fileAccess;
+    std::vector<Range> received;
+    std::vector<Range> requested;
+
+    public:
+    FPDF_AVAIL avail;
+
+    StreamingData(size_t length) : length(length) {
+        buffer = reinterpret_cast<unsigned char*>(malloc(length));
+
+        fileAvail.version = 1;
+        fileAvail.IsDataAvail = &isDataAvail;
+        fileAvail.owner = this;
+
+        hints.version = 1;
+        hints.AddSegment = &addSegment;
+        hints.owner = this;
+
+        fileAccess.m_FileLen = length;
+        fileAccess.m_GetBlock = &getBlock;
+        fileAccess.m_Param = this;
+
+        avail = buffer != NULL ? FPDFAvail_Create(&fileAvail, &fileAccess) : NULL;
+    }
+
+    ~StreamingData() {
+        if (avail != NULL) FPDFAvail_Destroy(avail);
+        free(buffer);
+    }
+
+    bool isValid() { return avail != NULL; }
+
+    FX_DOWNLOADHINTS* downloadHints() { return &hints; }
+
+    /* Copy received bytes, returns false if they do not fit the file */
+    bool append(size_t offset, const jbyte *data, size_t size) {
+        if (offset > length || size > length - offset) return false;
+        memcpy(buffer + offset, data, size);
+        addRange(received, offset, offset + size);
+        return true;
+    }
+
+    size_t receivedBytes() {
+        size_t total = 0;
+        for (size_t i = 0; i < received.size(); i++) total += received[i].second - received[i].first;
+        return total;
+    }
+
+    bool isAvailable(size_t offset, size_t size) {
+        if (size == 0) return true;
+        size_t end = offset + size;
+        for (size_t i = 0; i < received.size(); i++) {
+            if (received[i].first <= offset && received[i].second >= end) return true;
+            if (received[i].first > offset) break;
+        }
+        return false;
+    }
+
+    /* Ranges requested by PDFium which were not received yet, as (offset, size) pairs */
+    std::vector<jlong> takeRequestedRanges() {
+        std::vector<jlong> result;
+        for (size_t i = 0; i < requested.size(); i++) {
+            size_t start = requested[i].first;
+            size_t end = requested[i].second;
+            for (size_t j = 0; j < received.size() && start < end; j++) {
+                if (received[j].second <= start) continue;
+                if (received[j].first > start) {
+                    size_t gapEnd = std::min(end, received[j].first);
+                    result.push_back(start);
+                    result.push_back(gapEnd - start);
+                }
+                start = std::max(start, received[j].second);
+            }
+            if (start < end) {
+                result.push_back(start);
+                result.push_back(end - start);
+            }
+        }
+        requested.clear();
+        return result;
+    }
+
+    private:
+    static void addRange(std::vector<Range> &ranges, size_t start, size_t end) {
+        if (start >= end) return;
+        std::vector<Range> merged;
+        size_t i = 0;
+        while (i < ranges.size() && ranges[i].second < start) merged.push_back(ranges[i++]);
+        while (i < ranges.size() && ranges[i].first <= end) {
+            start = std::min(start, ranges[i].first);
+            end = std::max(end, ranges[i].second);
+            i++;
+        }
+        merged.push_back(Range(start, end));
+        while (i < ranges.size()) merged.push_back(ranges[i++]);
+        ranges.swap(merged);
+    }
+
+    static FPDF_BOOL isDataAvail(FX_FILEAVAIL *pThis, size_t offset, size_t size) {
+        return static_cast<FileAvail*>(pThis)->owner->isAvailable(offset, size);
+    }
+
+    static void addSegment(FX_DOWNLOADHINTS *pThis, size_t offset, size_t size) {
+        StreamingData *data = static_cast<DownloadHints*>(pThis)->owner;
+        size_t end = std::min(data->length, offset + size);
+        if (offset < end) addRange(data->requested, offset, end);
+    }
+
+    static int getBlock(void *param, unsigned long position, unsigned char *outBuffer,
+                        unsigned long size) {
+        StreamingData *data = reinterpret_cast<StreamingData*>(param);
+        if (!data->isAvailable(position, size)) {
+            addRange(data->requested, position, std::min((size_t) position + size, data->length));
+            return 0;
+        }
+        memcpy(outBuffer, data->buffer + position, size);
+        return 1;
+    }
+};
+
+#endif
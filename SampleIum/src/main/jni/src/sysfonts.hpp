@@ -0,0 +1,339 @@
+#ifndef _SYSFONTS_HPP_
+#define _SYSFONTS_HPP_
+
+#include "util.hpp"
+
+extern "C" {
+    #include <fcntl.h>
+    #include <unistd.h>
+    #include <sys/mman.h>
+    #include <sys/stat.h>
+    #include <string.h>
+    #include <stdlib.h>
+}
+
+#include <fpdfview.h>
+#include <fpdf_sysfontinfo.h>
+#include <utils/Mutex.h>
+#include <string>
+#include <vector>
+
+/*
+ * FPDF_SYSFONTINFO backed by an index of installed font faces built in Java (SystemFontIndex).
+ * Font files are mapped to memory on first use and stay mapped, so their data is shared by all
+ * documents and by PDFium's font cache. Font handles are pointers to faces, which live as long
+ * as the process. Called by PDFium with the process-wide lock of PdfiumCore held, mappings are
+ * guarded by own lock as well, so the provider does not depend on it.
+ */
+class SystemFonts {
+    public:
+    /* must match SystemFontIndex */
+    enum {
+        STYLE_ITALIC = 1,
+        STYLE_FIXED_PITCH = 2,
+        CHARSET_ANSI = 1,
+        CHARSET_SYMBOL = 2,
+        CHARSET_SHIFTJIS = 4,
+        CHARSET_HANGEUL = 8,
+        CHARSET_GB2312 = 16,
+        CHARSET_CHINESEBIG5 = 32,
+    };
+
+    struct Face {
+        int file;
+        int index;
+        int weight;
+        int style;
+        int charsets;
+        std::string family;
+        /* family without spaces in lower case, for matching names used in documents */
+        std::string key;
+    };
+
+    struct File {
+        std::string path;
+        const uint8_t *data;
+        size_t size;
+        bool failed;
+    };
+
+    SystemFonts() {
+        memset(&info, 0, sizeof(info));
+        info.info.version = 1;
+        info.info.Release = &release;
+        info.info.EnumFonts = &enumFonts;
+        info.info.MapFont = &mapFont;
+        info.info.GetFont = &getFont;
+        info.info.GetFontData = &getFontData;
+        info.info.GetFaceName = &getFaceName;
+        info.info.GetFontCharset = &getFontCharset;
+        info.info.DeleteFont = &deleteFont;
+        info.owner = this;
+    }
+
+    void addFile(const char *path) {
+        File file;
+        file.path = path;
+        file.data = NULL;
+        file.size = 0;
+        file.failed = false;
+        files.push_back(file);
+    }
+
+    void addFace(const char *family, int file, int index, int weight, int style, int charsets) {
+        Face face;
+        face.file = file;
+        face.index = index;
+        face.weight = weight;
+        face.style = style;
+        face.charsets = charsets;
+        face.family = family;
+        face.key = toKey(family);
+        faces.push_back(face);
+    }
+
+    FPDF_SYSFONTINFO* getFontInfo() {
+        return &info.info;
+    }
+
+    private:
+    struct Info {
+        FPDF_SYSFONTINFO info;
+        SystemFonts *owner;
+    };
+
+    Info info;
+    std::vector<File> files;
+    std::vector<Face> faces;
+    android::Mutex mapLock;
+
+    static SystemFonts* from(FPDF_SYSFONTINFO *pThis) {
+        return reinterpret_cast<Info*>(pThis)->owner;
+    }
+
+    static int toCharsetFlag(int charset) {
+        switch(charset) {
+            case FXFONT_SYMBOL_CHARSET: return CHARSET_SYMBOL;
+            case FXFONT_SHIFTJIS_CHARSET: return CHARSET_SHIFTJIS;
+            case FXFONT_HANGEUL_CHARSET: return CHARSET_HANGEUL;
+            case FXFONT_GB2312_CHARSET: return CHARSET_GB2312;
+            case FXFONT_CHINESEBIG5_CHARSET: return CHARSET_CHINESEBIG5;
+            default: return CHARSET_ANSI;
+        }
+    }
+
+    /* Family part of a font name used in a document, e.g. "ABCDEF+Arial-BoldMT" gives "arial" */
+    static std::string toKey(const char *name) {
+        const char *plus = strchr(name, '+');
+        if(plus != NULL && plus - name == 6) {
+            name = plus + 1;
+        }
+        std::string key;
+        for(const char *c = name; *c != 0 && *c != ',' && *c != '-'; c++) {
+            if(*c == ' ') {
+                continue;
+            }
+            key += (*c >= 'A' && *c <= 'Z') ? (char) (*c - 'A' + 'a') : *c;
+        }
+        return key;
+    }
+
+    static void release(FPDF_SYSFONTINFO *pThis) {
+        // owned by the JNI library, installed again after the PDFium library is initialized again
+    }
+
+    static void enumFonts(FPDF_SYSFONTINFO *pThis, void *pMapper) {
+        SystemFonts *fonts = from(pThis);
+        static const int charsets[] = { FXFONT_ANSI_CHARSET, FXFONT_SYMBOL_CHARSET,
+                                        FXFONT_SHIFTJIS_CHARSET, FXFONT_HANGEUL_CHARSET,
+                                        FXFONT_GB2312_CHARSET, FXFONT_CHINESEBIG5_CHARSET };
+        std::vector<std::string> added;
+        for(size_t i = 0; i < fonts->faces.size(); i++) {
+            const Face &face = fonts->faces[i];
+            // mapper keeps one entry per family
+            bool known = false;
+            for(size_t j = 0; j < added.size() && !known; j++) {
+                known = added[j] == face.family;
+            }
+            if(known) {
+                continue;
+            }
+            added.push_back(face.family);
+            for(size_t j = 0; j < sizeof(charsets) / sizeof(charsets[0]); j++) {
+                if(face.charsets & toCharsetFlag(charsets[j])) {
+                    FPDF_AddInstalledFont(pMapper, face.family.c_str(), charsets[j]);
+                }
+            }
+        }
+    }
+
+    /*
+     * Best face for the requested font: faces of the same family first, then faces supporting
+     * the character set, then closest weight and matching style. Latin fonts without a family match
+     * are left to PDFium, which substitutes them with its built-in standard fonts.
+     */
+    static void* mapFont(FPDF_SYSFONTINFO *pThis, int weight, FPDF_BOOL bItalic, int charset,
+                         int pitch_family, const char *face, FPDF_BOOL *bExact) {
+        SystemFonts *fonts = from(pThis);
+        std::string key = face != NULL ? toKey(face) : std::string();
+        int charsetFlag = toCharsetFlag(charset);
+        bool needCharset = charsetFlag != CHARSET_ANSI;
+        bool fixedPitch = (pitch_family & FXFONT_FF_FIXEDPITCH) != 0;
+
+        const Face *best = NULL;
+        int bestScore = -1;
+        bool bestExact = false;
+        for(size_t i = 0; i < fonts->faces.size(); i++) {
+            const Face &candidate = fonts->faces[i];
+            bool exact = !key.empty() && candidate.key == key;
+            bool hasCharset = (candidate.charsets & charsetFlag) != 0;
+            if(!exact && !(needCharset && hasCharset)) {
+                continue;
+            }
+            int score = 0;
+            if(exact) score += 100000;
+            if(hasCharset) score += 10000;
+            score += 1000 - abs(candidate.weight - (weight > 0 ? weight : FXFONT_FW_NORMAL));
+            if(((candidate.style & STYLE_ITALIC) != 0) == (bItalic != 0)) score += 500;
+            if(((candidate.style & STYLE_FIXED_PITCH) != 0) == fixedPitch) score += 200;
+            if(score > bestScore) {
+                best = &candidate;
+                bestScore = score;
+                bestExact = exact;
+            }
+        }
+        if(bExact != NULL) {
+            *bExact = bestExact;
+        }
+        return const_cast<Face*>(best);
+    }
+
+    static void* getFont(FPDF_SYSFONTINFO *pThis, const char *face) {
+        SystemFonts *fonts = from(pThis);
+        std::string key = toKey(face);
+        for(size_t i = 0; i < fonts->faces.size(); i++) {
+            if(fonts->faces[i].key == key) {
+                return &fonts->faces[i];
+            }
+        }
+        return NULL;
+    }
+
+    const File* mapFile(int index) {
+        android::Mutex::Autolock lock(mapLock);
+        File &file = files[index];
+        if(file.data == NULL && !file.failed) {
+            int fd = open(file.path.c_str(), O_RDONLY);
+            struct stat st;
+            if(fd >= 0 && fstat(fd, &st) == 0 && st.st_size > 0) {
+                void *data = mmap(NULL, (size_t) st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+                if(data != MAP_FAILED) {
+                    file.data = reinterpret_cast<const uint8_t*>(data);
+                    file.size = (size_t) st.st_size;
+                }
+            }
+            if(fd >= 0) {
+                close(fd);
+            }
+            if(file.data == NULL) {
+                LOGE("Cannot map font %s", file.path.c_str());
+                file.failed = true;
+            }
+        }
+        return file.data != NULL ? &file : NULL;
+    }
+
+    static uint32_t readU32(const uint8_t *p) {
+        return ((uint32_t) p[0] << 24) | ((uint32_t) p[1] << 16) | ((uint32_t) p[2] << 8) | p[3];
+    }
+
+    /*
+     * Same contract as PDFium's folder font info: table 0 is the whole file of a single face,
+     * 'ttcf' the whole file of a collection, other tags are looked up in the face's table directory.
+     */
+    static unsigned long getFontData(FPDF_SYSFONTINFO *pThis, void *hFont, unsigned int table,
+                                     unsigned char *buffer, unsigned long buf_size) {
+        if(hFont == NULL) {
+            return 0;
+        }
+        SystemFonts *fonts = from(pThis);
+        const Face *face = reinterpret_cast<const Face*>(hFont);
+        const File *file = fonts->mapFile(face->file);
+        if(file == NULL || file->size < 12) {
+            return 0;
+        }
+        bool collection = readU32(file->data) == 0x74746366;
+
+        size_t offset = 0;
+        size_t size = 0;
+        if(table == 0) {
+            size = collection ? 0 : file->size;
+        } else if(table == 0x74746366) {
+            size = collection ? file->size : 0;
+        } else {
+            size_t directory = 0;
+            if(collection) {
+                size_t entry = 12 + (size_t) face->index * 4;
+                if(entry + 4 > file->size) {
+                    return 0;
+                }
+                directory = readU32(file->data + entry);
+            }
+            if(directory + 12 > file->size) {
+                return 0;
+            }
+            size_t numTables = ((size_t) file->data[directory + 4] << 8) | file->data[directory + 5];
+            for(size_t i = 0; i < numTables; i++) {
+                size_t record = directory + 12 + i * 16;
+                if(record + 16 > file->size) {
+                    break;
+                }
+                if(readU32(file->data + record) == table) {
+                    offset = readU32(file->data + record + 8);
+                    size = readU32(file->data + record + 12);
+                    break;
+                }
+            }
+        }
+        if(size == 0 || offset + size > file->size) {
+            return 0;
+        }
+        if(buffer != NULL && buf_size >= size) {
+            memcpy(buffer, file->data + offset, size);
+        }
+        return size;
+    }
+
+    static unsigned long getFaceName(FPDF_SYSFONTINFO *pThis, void *hFont, char *buffer,
+                                     unsigned long buf_size) {
+        if(hFont == NULL) {
+            return 0;
+        }
+        const Face *face = reinterpret_cast<const Face*>(hFont);
+        unsigned long size = face->family.size() + 1;
+        if(buffer != NULL && buf_size >= size) {
+            memcpy(buffer, face->family.c_str(), size);
+        }
+        return size;
+    }
+
+    static int getFontCharset(FPDF_SYSFONTINFO *pThis, void *hFont) {
+        if(hFont == NULL) {
+            return FXFONT_ANSI_CHARSET;
+        }
+        int charsets = reinterpret_cast<const Face*>(hFont)->charsets;
+        if(charsets & CHARSET_ANSI) return FXFONT_ANSI_CHARSET;
+        if(charsets & CHARSET_SHIFTJIS) return FXFONT_SHIFTJIS_CHARSET;
+        if(charsets & CHARSET_GB2312) return FXFONT_GB2312_CHARSET;
+        if(charsets & CHARSET_CHINESEBIG5) return FXFONT_CHINESEBIG5_CHARSET;
+        if(charsets & CHARSET_HANGEUL) return FXFONT_HANGEUL_CHARSET;
+        if(charsets & CHARSET_SYMBOL) return FXFONT_SYMBOL_CHARSET;
+        return FXFONT_ANSI_CHARSET;
+    }
+
+    static void deleteFont(FPDF_SYSFONTINFO *pThis, void *hFont) {
+        // faces live as long as the process
+    }
+};
+
+#endif //_SYSFONTS_HPP_